@@ -0,0 +1,94 @@
+import com.google.common.cache.AdmissionPolicy;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Random;
+
+/**
+ * 对比LRU和TinyLFU两种准入策略在Zipf分布和混入扫描时的命中率
+ */
+public class AdmissionPolicyBenchmark {
+
+    private static final int MAXIMUM_SIZE = 1_000;
+    private static final int KEY_SPACE = 100_000;
+    private static final int ACCESSES = 2_000_000;
+
+    public static void main(String[] args) {
+        long[] zipf = zipfTrace(KEY_SPACE, 0.9, ACCESSES, 42);
+        long[] scan = scanTrace(zipf, 10_000, 5_000);
+
+        System.out.println(String.format("%-10s %-10s %8s", "trace", "policy", "hitRate"));
+        for (AdmissionPolicy policy : AdmissionPolicy.values()) {
+            System.out.println(String.format("%-10s %-10s %7.2f%%", "zipf", policy, 100 * hitRate(policy, zipf)));
+        }
+        for (AdmissionPolicy policy : AdmissionPolicy.values()) {
+            System.out.println(String.format("%-10s %-10s %7.2f%%", "zipf+scan", policy, 100 * hitRate(policy, scan)));
+        }
+    }
+
+    private static double hitRate(AdmissionPolicy policy, long[] trace) {
+        // 单个segment，避免按segment淘汰带来的干扰
+        Cache<Long, Long> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumSize(MAXIMUM_SIZE)
+                .admissionPolicy(policy)
+                .build();
+        long hits = 0;
+        for (long key : trace) {
+            if (cache.getIfPresent(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return (double) hits / trace.length;
+    }
+
+    /**
+     * 按Zipf分布生成访问序列，key越小越热
+     */
+    static long[] zipfTrace(int keySpace, double exponent, int length, long seed) {
+        double[] cdf = new double[keySpace];
+        double sum = 0;
+        for (int i = 0; i < keySpace; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        Random random = new Random(seed);
+        long[] trace = new long[length];
+        for (int i = 0; i < length; i++) {
+            double u = random.nextDouble() * sum;
+            int low = 0;
+            int high = keySpace - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cdf[mid] < u) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            trace[i] = low;
+        }
+        return trace;
+    }
+
+    /**
+     * 每隔interval次访问插入一段只访问一次的顺序扫描
+     */
+    static long[] scanTrace(long[] base, int interval, int scanLength) {
+        int scans = base.length / interval;
+        long[] trace = new long[base.length + scans * scanLength];
+        long scanKey = Long.MAX_VALUE / 2;
+        int pos = 0;
+        for (int i = 0; i < base.length; i++) {
+            trace[pos++] = base[i];
+            if ((i + 1) % interval == 0) {
+                for (int j = 0; j < scanLength; j++) {
+                    trace[pos++] = scanKey++;
+                }
+            }
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,175 @@
+import com.google.common.base.Ticker;
+import com.google.common.cache.AdmissionPolicy;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 用访问序列回放不同的CacheBuilder配置，对比命中率、淘汰次数和吞吐量，用来选择maximumSize等参数
+ *
+ * 用法: {@code java CacheSimulator [参数=值 ...]}，可用参数:
+ * <ul>
+ * <li>trace: 访问序列文件，每行一个key，或者"毫秒时间戳 key"；不指定时生成Zipf分布并混入扫描的序列</li>
+ * <li>maximumSize: 默认1000，可以用逗号分隔多个值</li>
+ * <li>expireAfterAccess: 毫秒，默认不过期</li>
+ * <li>concurrencyLevel: 默认4</li>
+ * <li>threads: 回放线程数，默认4</li>
+ * </ul>
+ * 时间使用序列中的时间戳(生成的序列每次访问1毫秒)，而不是真实时间，所以过期的行为和线上一致，与回放速度无关。
+ */
+public class CacheSimulator {
+
+    private static final int KEY_SPACE = 100_000;
+    private static final int ACCESSES = 2_000_000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("expected name=value: " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        long[][] trace = options.containsKey("trace") ? readTrace(options.get("trace")) : syntheticTrace();
+        int concurrencyLevel = Integer.parseInt(options.getOrDefault("concurrencyLevel", "4"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+        long expireAfterAccess = Long.parseLong(options.getOrDefault("expireAfterAccess", "-1"));
+
+        System.out.println(String.format("accesses=%d, concurrencyLevel=%d, threads=%d, expireAfterAccess=%s",
+                trace[0].length, concurrencyLevel, threads, expireAfterAccess < 0 ? "none" : expireAfterAccess + "ms"));
+        System.out.println(String.format("%-12s %-10s %8s %12s %14s", "maximumSize", "policy", "hitRate",
+                "evictions", "ops/s"));
+        for (String size : options.getOrDefault("maximumSize", "1000").split(",")) {
+            for (AdmissionPolicy policy : AdmissionPolicy.values()) {
+                replay(trace, Long.parseLong(size.trim()), policy, concurrencyLevel, expireAfterAccess, threads);
+            }
+        }
+    }
+
+    /**
+     * 用{@code threads}个线程回放一次，第i个线程回放下标模threads等于i的访问
+     */
+    private static void replay(long[][] trace, long maximumSize, AdmissionPolicy policy, int concurrencyLevel,
+                               long expireAfterAccess, int threads) throws InterruptedException {
+        TraceTicker ticker = new TraceTicker();
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .concurrencyLevel(concurrencyLevel)
+                .maximumSize(maximumSize)
+                .admissionPolicy(policy)
+                .ticker(ticker)
+                .recordStats();
+        if (expireAfterAccess >= 0) {
+            builder.expireAfterAccess(expireAfterAccess, TimeUnit.MILLISECONDS);
+        }
+        Cache<Long, Long> cache = builder.build();
+
+        long[] keys = trace[0];
+        long[] times = trace[1];
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = first; i < keys.length; i += threads) {
+                        ticker.advanceTo(TimeUnit.MILLISECONDS.toNanos(times[i]));
+                        Long key = keys[i];
+                        if (cache.getIfPresent(key) == null) {
+                            cache.put(key, key);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, "simulator-" + t);
+            worker.start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = Math.max(1, System.nanoTime() - startTime);
+
+        CacheStats stats = cache.stats();
+        System.out.println(String.format("%-12d %-10s %7.2f%% %12d %14.0f", maximumSize, policy,
+                100 * stats.hitRate(), stats.evictionCount(), keys.length * 1e9 / elapsed));
+    }
+
+    /**
+     * 读取访问序列文件，返回{keys, 毫秒时间戳}；非数字的key按出现顺序编号
+     */
+    private static long[][] readTrace(String path) throws IOException {
+        long[] keys = new long[1024];
+        long[] times = new long[1024];
+        Map<String, Long> ids = new HashMap<>();
+        int length = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (length == keys.length) {
+                    keys = Arrays.copyOf(keys, length * 2);
+                    times = Arrays.copyOf(times, length * 2);
+                }
+                String[] fields = line.split("\\s+");
+                String key = fields[fields.length - 1];
+                Long id = ids.get(key);
+                if (id == null) {
+                    id = (long) ids.size();
+                    ids.put(key, id);
+                }
+                keys[length] = id;
+                times[length] = (fields.length > 1) ? Long.parseLong(fields[0]) : length;
+                length++;
+            }
+        }
+        return new long[][]{Arrays.copyOf(keys, length), Arrays.copyOf(times, length)};
+    }
+
+    /**
+     * Zipf分布并每隔一段插入一次扫描，每次访问间隔1毫秒
+     */
+    private static long[][] syntheticTrace() {
+        long[] keys = AdmissionPolicyBenchmark.scanTrace(
+                AdmissionPolicyBenchmark.zipfTrace(KEY_SPACE, 0.9, ACCESSES, 42), 10_000, 5_000);
+        long[] times = new long[keys.length];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = i;
+        }
+        return new long[][]{keys, times};
+    }
+
+    /**
+     * 按序列中的时间戳前进的时钟，多个线程回放时取见过的最大时间，保证单调
+     */
+    private static final class TraceTicker extends Ticker {
+        private final AtomicLong nanos = new AtomicLong();
+
+        void advanceTo(long time) {
+            nanos.accumulateAndGet(time, Math::max);
+        }
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * 打印不同配置下entry的类型、字段和每个entry占用的内存
+ *
+ * 估算大小按64位JVM开启压缩指针计算：对象头12字节，引用4字节，按8字节对齐。
+ * 实测大小是放入{@link #ENTRIES}个entry前后的堆占用之差，包含了key、value、ValueReference和table，
+ * 运行时加上-XX:+UseSerialGC结果更稳定。
+ */
+public class EntryLayoutBenchmark {
+
+    private static final int ENTRIES = 200_000;
+
+    public static void main(String[] args) throws Exception {
+        report("strong", () -> CacheBuilder.newBuilder());
+        report("maximumSize", () -> CacheBuilder.newBuilder().maximumSize(ENTRIES * 2));
+        report("refreshAfterWrite", () -> CacheBuilder.newBuilder().refreshAfterWrite(1, TimeUnit.MINUTES));
+        report("maximumSize+refresh", () -> CacheBuilder.newBuilder()
+                .maximumSize(ENTRIES * 2).refreshAfterWrite(1, TimeUnit.MINUTES));
+        report("maximumSize+expireAfterWrite", () -> CacheBuilder.newBuilder()
+                .maximumSize(ENTRIES * 2).expireAfterWrite(1, TimeUnit.MINUTES));
+        report("expireAfterAccess", () -> CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.MINUTES));
+        report("expireAfterAccess+Write", () -> CacheBuilder.newBuilder()
+                .expireAfterAccess(1, TimeUnit.MINUTES).expireAfterWrite(1, TimeUnit.MINUTES));
+        report("weakKeys+maximumSize", () -> CacheBuilder.newBuilder().weakKeys().maximumSize(ENTRIES * 2));
+    }
+
+    private static void report(String name, Supplier<CacheBuilder<Object, Object>> builder) throws Exception {
+        Cache<Object, Object> probe = builder.get().build();
+        probe.put(0L, 0L);
+        Object entry = firstEntry(probe);
+
+        Cache<Object, Object> cache = builder.get().build();
+        Long[] keys = new Long[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            keys[i] = (long) i;
+        }
+        long before = usedHeap();
+        for (Long key : keys) {
+            cache.put(key, key);
+        }
+        long after = usedHeap();
+
+        System.out.println(String.format("%-30s %-28s estimated=%3d bytes, measured=%6.1f bytes/entry",
+                name, entry.getClass().getSimpleName(), shallowSize(entry.getClass()),
+                (double) (after - before) / ENTRIES));
+        System.out.println("    " + fields(entry.getClass()));
+        if (cache.size() != ENTRIES) {
+            throw new AssertionError();
+        }
+    }
+
+    private static Object firstEntry(Cache<?, ?> cache) throws Exception {
+        Object localCache = field(cache, "localCache");
+        for (Object segment : (Object[]) field(localCache, "segments")) {
+            AtomicReferenceArray<?> table = (AtomicReferenceArray<?>) field(segment, "table");
+            for (int i = 0; table != null && i < table.length(); i++) {
+                if (table.get(i) != null) {
+                    return table.get(i);
+                }
+            }
+        }
+        throw new IllegalStateException("empty cache");
+    }
+
+    private static Object field(Object target, String name) throws Exception {
+        for (Class<?> type = target.getClass(); type != null; type = type.getSuperclass()) {
+            try {
+                Field field = type.getDeclaredField(name);
+                field.setAccessible(true);
+                return field.get(target);
+            } catch (NoSuchFieldException e) {
+                // 在父类中继续找
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+
+    private static List<String> fields(Class<?> type) {
+        List<String> fields = new ArrayList<>();
+        for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    fields.add(field.getType().getSimpleName() + " " + field.getName());
+                }
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * 对象本身的大小，不包含引用的对象
+     */
+    private static long shallowSize(Class<?> type) {
+        long size = 12;
+        for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    size += fieldSize(field.getType());
+                }
+            }
+        }
+        return (size + 7) & ~7;
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        return 4;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
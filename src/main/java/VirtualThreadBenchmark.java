@@ -0,0 +1,58 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.threadpool.ThreadPoolExecutor;
+
+/**
+ * 对比平台线程的ThreadPoolExecutor和每个任务一个虚拟线程的线程池执行阻塞型任务的吞吐量
+ *
+ * 每个任务sleep一段时间，模拟一次Jedis调用的网络往返。平台线程池的吞吐量受maximumPoolSize限制，
+ * 虚拟线程池只受maxConcurrency限制，同时占用的平台线程数只有CPU核数那么多。
+ * JDK 21之前虚拟线程池退化为平台线程，这时两者的差别只在线程数。
+ *
+ * java.util.threadpool需要加到java.base中运行：
+ * --patch-module java.base=<classes> --add-exports java.base/java.util.threadpool=ALL-UNNAMED
+ */
+public class VirtualThreadBenchmark {
+
+    private static final int TASKS = 20_000;
+    private static final long IO_MILLIS = 10;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(String.format("%-28s %8s %12s %12s", "executor", "ms", "tasks/s", "peakThreads"));
+        for (int threads : new int[]{50, 200}) {
+            run("platform(" + threads + ")", new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>()));
+        }
+        for (int concurrency : new int[]{200, 2_000}) {
+            run("virtual(" + concurrency + ")", ThreadPoolExecutor.newVirtualThreadPerTaskExecutor(concurrency,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadPoolExecutor.AbortPolicy()));
+        }
+    }
+
+    private static void run(String name, ThreadPoolExecutor executor) throws InterruptedException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        threadBean.resetPeakThreadCount();
+        CountDownLatch done = new CountDownLatch(TASKS);
+        long start = System.nanoTime();
+        for (int i = 0; i < TASKS; i++) {
+            executor.execute(() -> {
+                try {
+                    Thread.sleep(IO_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        System.out.println(String.format("%-28s %8d %12.0f %12d", name, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                TASKS / (elapsed / 1e9), threadBean.getPeakThreadCount()));
+    }
+}
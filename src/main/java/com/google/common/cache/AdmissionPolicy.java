@@ -0,0 +1,23 @@
+package com.google.common.cache;
+
+
+import com.google.common.annotations.GwtIncompatible;
+
+
+/**
+ * 按容量淘汰时，新元素能否进入缓存的准入策略
+ */
+@GwtIncompatible
+public enum AdmissionPolicy {
+    /**
+     * 默认策略，新元素总是被接纳，按LRU从accessQueue头部淘汰
+     */
+    LRU,
+
+    /**
+     * TinyLFU，用CountMin sketch估计访问频率，
+     * 只有新元素的频率高于LRU选出的受害者时才会被接纳，否则淘汰新元素本身。
+     * 可以防止一次性的扫描把热点数据冲刷出去
+     */
+    TINY_LFU
+}
@@ -0,0 +1,34 @@
+package com.google.common.cache;
+
+
+import com.google.common.annotations.GwtIncompatible;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+
+/**
+ * 异步加载数据，配合{@link CacheBuilder#buildAsync(AsyncCacheLoader)}使用
+ */
+@GwtIncompatible
+@FunctionalInterface
+public interface AsyncCacheLoader<K, V> {
+
+    /**
+     * 异步加载key对应的值，不能返回null，加载失败时返回异常完成的future
+     *
+     * @param executor cache配置的线程池，可以用它执行加载
+     */
+    CompletableFuture<V> asyncLoad(K key, Executor executor) throws Exception;
+
+    /**
+     * 一次加载多个key，默认不支持，cache会退化为逐个调用{@link #asyncLoad}
+     *
+     * @throws UnsupportedOperationException 没有实现批量加载
+     */
+    default CompletableFuture<Map<K, V>> asyncLoadAll(Iterable<? extends K> keys, Executor executor)
+            throws Exception {
+        throw new UnsupportedOperationException();
+    }
+}
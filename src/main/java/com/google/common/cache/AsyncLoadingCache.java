@@ -0,0 +1,67 @@
+package com.google.common.cache;
+
+
+import com.google.common.annotations.GwtIncompatible;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+
+/**
+ * 异步的LoadingCache，缓存中存放的是{@link CompletableFuture}
+ *
+ * 同一个key并发的get共享同一个正在加载的future，调用线程不会被阻塞。
+ * 加载失败或返回null的future会被自动移除，下次get会重新加载。
+ */
+@GwtIncompatible
+public interface AsyncLoadingCache<K, V> {
+
+    /**
+     * 获取key对应的future，不存在时发起一次异步加载
+     */
+    CompletableFuture<V> get(K key);
+
+    /**
+     * 获取多个key对应的值，所有缺失的key合并为一次{@link AsyncCacheLoader#asyncLoadAll}
+     */
+    CompletableFuture<Map<K, V>> getAll(Iterable<? extends K> keys);
+
+    /**
+     * 获取key对应的future，不存在时返回null，不会触发加载
+     */
+    @Nullable
+    CompletableFuture<V> getIfPresent(Object key);
+
+    /**
+     * 放入一个future，失败时同样会被自动移除
+     */
+    void put(K key, CompletableFuture<V> valueFuture);
+
+    /**
+     * 移除key
+     */
+    void invalidate(Object key);
+
+    /**
+     * @return 近似的entry数量，包括正在加载的
+     */
+    long size();
+
+    /**
+     * @return 操作记录
+     */
+    CacheStats stats();
+
+    /**
+     * 执行清理
+     */
+    void cleanUp();
+
+    /**
+     * @return 以map的形式查看缓存，修改会直接作用在缓存上
+     */
+    ConcurrentMap<K, CompletableFuture<V>> asMap();
+}
@@ -0,0 +1,28 @@
+package com.google.common.cache;
+
+import com.google.common.annotations.GwtIncompatible;
+
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * 可以一次收到多个移除通知的监听器，配合{@link CacheBuilder#removalExecutor}使用时，
+ * 后台线程每次把队列中积攒的通知(最多{@link RemovalPipeline#MAX_BATCH_SIZE}个)一起交给它，
+ * 适合把移除写回Redis这类可以批量提交的操作
+ *
+ * 没有配置removalExecutor时，每个通知单独调用一次{@link #onRemovals}
+ */
+@GwtIncompatible
+public interface BatchRemovalListener<K, V> extends RemovalListener<K, V> {
+
+    /**
+     * @param notifications 按移除的先后排列，不为空
+     */
+    void onRemovals(List<RemovalNotification<K, V>> notifications);
+
+    @Override
+    default void onRemoval(RemovalNotification<K, V> notification) {
+        onRemovals(Collections.singletonList(notification));
+    }
+}
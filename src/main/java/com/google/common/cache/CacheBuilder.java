@@ -14,7 +14,6 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.base.Ticker;
-import com.google.common.cache.AbstractCache.SimpleStatsCounter;
 import com.google.common.cache.AbstractCache.StatsCounter;
 import com.google.common.cache.LocalCache.Strength;
 import com.google.errorprone.annotations.CheckReturnValue;
@@ -22,15 +21,21 @@ import com.google.j2objc.annotations.J2ObjCIncompatible;
 
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.nio.file.Path;
 import java.util.ConcurrentModificationException;
 import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 
 @GwtCompatible(emulated = true)
@@ -71,7 +76,7 @@ public final class CacheBuilder<K, V> {
             new Supplier<StatsCounter>() {
                 @Override
                 public StatsCounter get() {
-                    return new SimpleStatsCounter();
+                    return new ConcurrentStatsCounter();
                 }
             };
 
@@ -110,6 +115,13 @@ public final class CacheBuilder<K, V> {
     long maximumSize = UNSET_INT;
     long maximumWeight = UNSET_INT;
     @MonotonicNonNull Weigher<? super K, ? super V> weigher;
+    @MonotonicNonNull AdmissionPolicy admissionPolicy;
+    @MonotonicNonNull Serializer<?> serializer;
+    @MonotonicNonNull DiskTier<?, ?> diskTier;
+    @MonotonicNonNull Path warmSnapshot;
+    double memoryUsageThreshold = UNSET_INT;
+    @MonotonicNonNull Serializer<?> warmKeySerializer;
+    @MonotonicNonNull Serializer<?> warmValueSerializer;
 
     @MonotonicNonNull Strength keyStrength;
     @MonotonicNonNull Strength valueStrength;
@@ -117,11 +129,23 @@ public final class CacheBuilder<K, V> {
     long expireAfterWriteNanos = UNSET_INT;
     long expireAfterAccessNanos = UNSET_INT;
     long refreshNanos = UNSET_INT;
+    @MonotonicNonNull Executor refreshExecutor;
+    double refreshJitter;
+    @MonotonicNonNull Expiry<? super K, ? super V> expiry;
+    @MonotonicNonNull ScheduledExecutorService scheduler;
+    @MonotonicNonNull Executor maintenanceExecutor;
+    long negativeTtlNanos = UNSET_INT;
+    long negativeMaxTtlNanos = UNSET_INT;
+    int coalesceBatchSize = UNSET_INT;
+    long coalesceWindowNanos = UNSET_INT;
 
     @MonotonicNonNull Equivalence<Object> keyEquivalence;
     @MonotonicNonNull Equivalence<Object> valueEquivalence;
 
     @MonotonicNonNull RemovalListener<? super K, ? super V> removalListener;
+    @MonotonicNonNull Executor removalExecutor;
+    int removalQueueCapacity = UNSET_INT;
+    @MonotonicNonNull RemovalOverflowPolicy removalOverflowPolicy;
     @MonotonicNonNull Ticker ticker;
 
     Supplier<? extends StatsCounter> statsCounterSupplier = NULL_STATS_COUNTER;
@@ -232,6 +256,19 @@ public final class CacheBuilder<K, V> {
         return (concurrencyLevel == UNSET_INT) ? DEFAULT_CONCURRENCY_LEVEL : concurrencyLevel;
     }
 
+    /**
+     * 按CPU核数设置并发等级，每个核4个Segment，等同于{@code concurrencyLevel(4 * availableProcessors())}，核数在调用时读取一次
+     *
+     * 默认的4个Segment在核数很多的机器上会导致Segment锁竞争严重。设置了maximumSize或maximumWeight时，
+     * Segment数量仍然受限于每个Segment至少容纳约20个entry。
+     * 锁竞争的情况可以通过{@link CacheMetrics#lockContentionRate()}观察
+     *
+     * @throws IllegalStateException 如果concurrencyLevel已经设置过啦
+     */
+    public CacheBuilder<K, V> concurrencyLevelForCores() {
+        return concurrencyLevel(4 * Runtime.getRuntime().availableProcessors());
+    }
+
     /**
      * 设置缓存中可以包含多少个的值，size和weight二选一
      *
@@ -285,6 +322,7 @@ public final class CacheBuilder<K, V> {
     public <K1 extends K, V1 extends V> CacheBuilder<K1, V1> weigher(
             Weigher<? super K1, ? super V1> weigher) {
         checkState(this.weigher == null);
+        checkState(this.serializer == null, "weigher can not be combined with offHeap");
         if (strictParsing) {
             checkState(
                     this.maximumSize == UNSET_INT,
@@ -303,7 +341,7 @@ public final class CacheBuilder<K, V> {
         if (expireAfterWriteNanos == 0 || expireAfterAccessNanos == 0) {
             return 0;
         }
-        return (weigher == null) ? maximumSize : maximumWeight;
+        return (weigher == null && serializer == null) ? maximumSize : maximumWeight;
     }
 
     // Make a safe contravariant cast now so we don't have to do it over and over.
@@ -312,6 +350,136 @@ public final class CacheBuilder<K, V> {
         return (Weigher<K1, V1>) MoreObjects.firstNonNull(weigher, OneWeigher.INSTANCE);
     }
 
+    /**
+     * 把value序列化后保存在堆外，缓存最多占用{@code maxBytes}字节的堆外内存
+     *
+     * 堆上只保留一个记录位置的handle，大量value不再进入老年代，GC停顿不再随缓存大小增长。
+     * 按序列化后占用的字节数淘汰，不能再设置maximumSize、maximumWeight或weigher，也不能使用弱引用或软引用的value。
+     * 每次读取都会反序列化，得到的是一个新的对象。单个value超过1MB时保存在堆上；堆外空间碎片化时
+     * 先淘汰同一大小等级最久未访问的entry腾出空间，仍然不够才保存在堆上，次数见{@link CacheMetrics#offHeapFallbackCount()}
+     *
+     * @param maxBytes 最多占用的堆外字节数
+     * @param serializer value的序列化方式
+     * @throws IllegalArgumentException {@code maxBytes}为负数
+     * @throws IllegalStateException 已经设置过啦，或者已经设置了其他按容量淘汰的方式
+     */
+    @GwtIncompatible // java.nio.ByteBuffer
+    public <K1 extends K, V1 extends V> CacheBuilder<K1, V1> offHeap(long maxBytes, Serializer<V1> serializer) {
+        checkState(this.serializer == null, "offHeap was already set");
+        checkState(this.maximumSize == UNSET_INT, "maximum size was already set to %s", this.maximumSize);
+        checkState(this.maximumWeight == UNSET_INT, "maximum weight was already set to %s", this.maximumWeight);
+        checkState(this.weigher == null, "offHeap can not be combined with a weigher");
+        checkArgument(maxBytes >= 0, "maxBytes must not be negative: %s", maxBytes);
+
+        @SuppressWarnings("unchecked")
+        CacheBuilder<K1, V1> me = (CacheBuilder<K1, V1>) this;
+        me.maximumWeight = maxBytes;
+        me.serializer = checkNotNull(serializer);
+        return me;
+    }
+
+    @SuppressWarnings("unchecked")
+    <V1 extends V> Serializer<V1> getSerializer() {
+        return (Serializer<V1>) serializer;
+    }
+
+    /**
+     * 按容量淘汰的entry写入磁盘上的二级缓存，未命中时先从二级缓存取回，再调用CacheLoader
+     *
+     * 必须和maximumSize、maximumWeight或offHeap一起使用。{@code tier}由调用者创建和关闭，
+     * 命中率等统计也从它上面读取
+     *
+     * @throws IllegalStateException 已经设置过啦
+     */
+    @GwtIncompatible // java.nio.MappedByteBuffer
+    public <K1 extends K, V1 extends V> CacheBuilder<K1, V1> diskTier(DiskTier<K1, V1> tier) {
+        checkState(this.diskTier == null, "disk tier was already set to %s", this.diskTier);
+
+        @SuppressWarnings("unchecked")
+        CacheBuilder<K1, V1> me = (CacheBuilder<K1, V1>) this;
+        me.diskTier = checkNotNull(tier);
+        return me;
+    }
+
+    @SuppressWarnings("unchecked")
+    <K1 extends K, V1 extends V> DiskTier<K1, V1> getDiskTier() {
+        return (DiskTier<K1, V1>) diskTier;
+    }
+
+    /**
+     * 创建缓存时从{@link CacheSnapshot#snapshotTo}生成的快照中加载entry，保留生成快照时剩余的存活时间
+     *
+     * 加载在build时同步完成，快照中的每个section由一个线程并行加载；文件不存在或损坏时只记录日志
+     *
+     * @throws IllegalStateException 已经设置过啦
+     */
+    @GwtIncompatible // java.nio.file.Path
+    public <K1 extends K, V1 extends V> CacheBuilder<K1, V1> warmFrom(
+            Path snapshot, Serializer<K1> keySerializer, Serializer<V1> valueSerializer) {
+        checkState(this.warmSnapshot == null, "warm snapshot was already set to %s", this.warmSnapshot);
+
+        @SuppressWarnings("unchecked")
+        CacheBuilder<K1, V1> me = (CacheBuilder<K1, V1>) this;
+        me.warmSnapshot = checkNotNull(snapshot);
+        me.warmKeySerializer = checkNotNull(keySerializer);
+        me.warmValueSerializer = checkNotNull(valueSerializer);
+        return me;
+    }
+
+    @Nullable Path getWarmSnapshot() {
+        return warmSnapshot;
+    }
+
+    @SuppressWarnings("unchecked")
+    <K1 extends K> Serializer<K1> getWarmKeySerializer() {
+        return (Serializer<K1>) warmKeySerializer;
+    }
+
+    @SuppressWarnings("unchecked")
+    <V1 extends V> Serializer<V1> getWarmValueSerializer() {
+        return (Serializer<V1>) warmValueSerializer;
+    }
+
+    /**
+     * 设置按容量淘汰时的准入策略，必须和maximumSize或maximumWeight一起使用
+     *
+     * @throws IllegalStateException 已经设置过啦
+     */
+    @GwtIncompatible // To be supported
+    public CacheBuilder<K, V> admissionPolicy(AdmissionPolicy admissionPolicy) {
+        checkState(this.admissionPolicy == null,
+                "admission policy was already set to %s", this.admissionPolicy);
+        this.admissionPolicy = checkNotNull(admissionPolicy);
+        return this;
+    }
+
+    AdmissionPolicy getAdmissionPolicy() {
+        return MoreObjects.firstNonNull(admissionPolicy, AdmissionPolicy.LRU);
+    }
+
+    /**
+     * 按堆内存压力收缩容量，可以代替{@link #softValues()}
+     *
+     * GC之后堆内存池的占用仍超过{@code usageThreshold}时，每次把有效容量收缩到原来的3/4，
+     * 并立即按LRU淘汰到新容量；压力解除后每10秒恢复一步。GC不再需要追踪SoftReference，
+     * 内存紧张时淘汰的也是最冷的entry
+     *
+     * 需要同时设置maximumSize或maximumWeight，收缩以它为基准
+     *
+     * @param usageThreshold GC后堆内存占用的比例，例如0.8
+     * @throws IllegalArgumentException usageThreshold不在(0, 1)之间
+     * @throws IllegalStateException 已经设置过啦
+     */
+    @GwtIncompatible // java.lang.management
+    public CacheBuilder<K, V> evictOnMemoryPressure(double usageThreshold) {
+        checkState(memoryUsageThreshold == UNSET_INT,
+                "memory usage threshold was already set to %s", memoryUsageThreshold);
+        checkArgument(usageThreshold > 0 && usageThreshold < 1,
+                "usageThreshold must be in (0, 1): %s", usageThreshold);
+        this.memoryUsageThreshold = usageThreshold;
+        return this;
+    }
+
     /**
      * 将key设为虚引用
      *
@@ -391,6 +559,7 @@ public final class CacheBuilder<K, V> {
                 expireAfterWriteNanos == UNSET_INT,
                 "expireAfterWrite was already set to %s ns",
                 expireAfterWriteNanos);
+        checkState(expiry == null, "expireAfterWrite may not be used with variable expiration");
         checkArgument(duration >= 0, "duration cannot be negative: %s %s", duration, unit);
         this.expireAfterWriteNanos = unit.toNanos(duration);
         return this;
@@ -428,6 +597,7 @@ public final class CacheBuilder<K, V> {
                 expireAfterAccessNanos == UNSET_INT,
                 "expireAfterAccess was already set to %s ns",
                 expireAfterAccessNanos);
+        checkState(expiry == null, "expireAfterAccess may not be used with variable expiration");
         checkArgument(duration >= 0, "duration cannot be negative: %s %s", duration, unit);
         this.expireAfterAccessNanos = unit.toNanos(duration);
         return this;
@@ -439,6 +609,122 @@ public final class CacheBuilder<K, V> {
                 : expireAfterAccessNanos;
     }
 
+    /**
+     * 每个entry各自的过期时间，由时间轮驱动，不能和expireAfterWrite、expireAfterAccess同时使用
+     *
+     * @param expiry 计算每个entry的存活时长
+     * @throws IllegalStateException 已经设置过了，或者已经设置了固定的过期时间
+     */
+    @GwtIncompatible // To be supported
+    public <K1 extends K, V1 extends V> CacheBuilder<K1, V1> expireAfter(
+            Expiry<? super K1, ? super V1> expiry) {
+        checkState(this.expiry == null, "expiry was already set to %s", this.expiry);
+        checkState(expireAfterWriteNanos == UNSET_INT,
+                "expireAfter may not be used with expireAfterWrite");
+        checkState(expireAfterAccessNanos == UNSET_INT,
+                "expireAfter may not be used with expireAfterAccess");
+
+        // safely limiting the kinds of caches this can produce
+        @SuppressWarnings("unchecked")
+        CacheBuilder<K1, V1> me = (CacheBuilder<K1, V1>) this;
+        me.expiry = checkNotNull(expiry);
+        return me;
+    }
+
+    // Make a safe contravariant cast now so we don't have to do it over and over.
+    @SuppressWarnings("unchecked")
+    <K1 extends K, V1 extends V> @Nullable Expiry<K1, V1> getExpiry() {
+        return (Expiry<K1, V1>) expiry;
+    }
+
+    /**
+     * 设置定时清理的调度器，不设置时只在读写时顺带清理。
+     * 定时清理会处理过期的entry、被gc的引用和等待中的移除通知
+     *
+     * 调度器只持有cache的弱引用，cache被回收后定时任务会自行取消
+     *
+     * @throws IllegalStateException 已经设置过啦
+     */
+    @GwtIncompatible // To be supported
+    public CacheBuilder<K, V> scheduler(ScheduledExecutorService scheduler) {
+        checkState(this.scheduler == null, "scheduler was already set to %s", this.scheduler);
+        this.scheduler = checkNotNull(scheduler);
+        return this;
+    }
+
+    @Nullable ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * 设置执行清理和移除监听器的线程池，不设置时在触发清理的调用线程上执行
+     *
+     * 设置后读操作只负责记录，达到DRAIN_THRESHOLD或读缓冲区满时把清理任务交给这个线程池，
+     * 不会再由某个倒霉的请求线程承担整次清理的延迟
+     *
+     * @throws IllegalStateException 已经设置过啦
+     */
+    @GwtIncompatible // To be supported
+    public CacheBuilder<K, V> maintenanceExecutor(Executor executor) {
+        checkState(this.maintenanceExecutor == null,
+                "maintenance executor was already set to %s", this.maintenanceExecutor);
+        this.maintenanceExecutor = checkNotNull(executor);
+        return this;
+    }
+
+    @Nullable Executor getMaintenanceExecutor() {
+        return maintenanceExecutor;
+    }
+
+    /**
+     * 缓存加载失败的结果：CacheLoader抛出异常或者返回null之后，同一个key的未命中在一段时间内直接抛出同样的异常，
+     * 不再访问后端，防止后端故障时请求被放大
+     *
+     * 同一个key连续失败时缓存时间从{@code initialTtl}开始每次翻倍，最多{@code maxTtl}；
+     * 加载成功、写入或删除这个key时清除。失败记录不计入maximumSize，命中次数见{@link CacheMetrics#negativeHitCount()}
+     *
+     * @throws IllegalArgumentException initialTtl不是正数或者maxTtl小于initialTtl
+     * @throws IllegalStateException 已经设置过啦
+     */
+    @GwtIncompatible // To be supported
+    public CacheBuilder<K, V> negativeCaching(long initialTtl, long maxTtl, TimeUnit unit) {
+        checkState(negativeTtlNanos == UNSET_INT, "negativeCaching was already set to %s ns", negativeTtlNanos);
+        checkArgument(initialTtl > 0, "initialTtl must be positive: %s %s", initialTtl, unit);
+        checkArgument(maxTtl >= initialTtl, "maxTtl must not be less than initialTtl: %s %s", maxTtl, unit);
+        this.negativeTtlNanos = unit.toNanos(initialTtl);
+        this.negativeMaxTtlNanos = unit.toNanos(maxTtl);
+        return this;
+    }
+
+    /**
+     * 合并并发的未命中：一个时间窗口内不同线程对不同key的加载合并为一次{@link CacheLoader#loadAll}
+     *
+     * 第一个未命中的线程等待{@code window}，或者等到攒够{@code maxBatchSize}个key，然后发起loadAll，
+     * 窗口内的其他线程只等待结果。适合后端批量接口远比逐个调用便宜的场景(如Redis的MGET)，
+     * 代价是单次未命中的延迟最多增加一个窗口。loader没有实现loadAll时退化为逐个load
+     *
+     * @param maxBatchSize 一次loadAll最多的key数量
+     * @param window 等待更多未命中的时间
+     * @param unit 时间单位
+     * @throws IllegalArgumentException {@code maxBatchSize}不是正数或{@code window}是负数
+     * @throws IllegalStateException 已经设置过啦
+     */
+    @GwtIncompatible // To be supported
+    public CacheBuilder<K, V> coalesceLoads(int maxBatchSize, long window, TimeUnit unit) {
+        checkNotNull(unit);
+        checkState(this.coalesceBatchSize == UNSET_INT,
+                "load coalescing was already set to %s keys", this.coalesceBatchSize);
+        checkArgument(maxBatchSize > 0, "maxBatchSize must be positive: %s", maxBatchSize);
+        checkArgument(window >= 0, "window must not be negative: %s %s", window, unit);
+        this.coalesceBatchSize = maxBatchSize;
+        this.coalesceWindowNanos = unit.toNanos(window);
+        return this;
+    }
+
+    boolean coalescesLoads() {
+        return coalesceBatchSize != UNSET_INT;
+    }
+
     /**
      * 写后多久后刷新
      *
@@ -475,6 +761,37 @@ public final class CacheBuilder<K, V> {
         return (refreshNanos == UNSET_INT) ? DEFAULT_REFRESH_NANOS : refreshNanos;
     }
 
+    /**
+     * 提前刷新：在到达refreshAfterWrite之前就在{@code executor}上异步reload，读线程始终返回旧值
+     *
+     * 每个key的刷新时间在{@code [refresh * (1 - jitter), refresh]}之间按hash打散，避免大量同时写入的key
+     * 在同一时刻一起reload。设置了{@link #scheduler}时，定时任务还会主动刷新最近一个刷新周期内被读过的key，
+     * 没被读过的key不刷新，等到下一次读或者过期。设置了{@link #maintenanceExecutor}时扫描在它上面执行，
+     * 扫描分批持锁，不会长时间阻塞写操作
+     *
+     * @param executor 执行reload的线程池
+     * @param jitter 提前量占刷新间隔的最大比例
+     * @throws IllegalArgumentException {@code jitter}不在[0, 1)之间
+     * @throws IllegalStateException 已经设置过啦
+     */
+    @GwtIncompatible // To be supported
+    public CacheBuilder<K, V> refreshAhead(Executor executor, double jitter) {
+        checkState(this.refreshExecutor == null,
+                "refresh executor was already set to %s", this.refreshExecutor);
+        checkArgument(jitter >= 0 && jitter < 1, "jitter must be in [0, 1): %s", jitter);
+        this.refreshExecutor = checkNotNull(executor);
+        this.refreshJitter = jitter;
+        return this;
+    }
+
+    @Nullable Executor getRefreshExecutor() {
+        return refreshExecutor;
+    }
+
+    double getRefreshJitter() {
+        return refreshJitter;
+    }
+
     /**
      * 为这个缓存指定一个纳秒精度的时间源. 默认为 {@link System#nanoTime}
      *
@@ -519,8 +836,33 @@ public final class CacheBuilder<K, V> {
                 MoreObjects.firstNonNull(removalListener, NullListener.INSTANCE);
     }
 
+    /**
+     * 在{@code executor}上异步投递移除通知，写线程只负责入队，慢的监听器(例如写回Redis)不会拖慢请求
+     *
+     * 同一时刻只有一个投递任务，通知按移除的顺序到达；{@link BatchRemovalListener}每次收到一批通知。
+     * 积压的通知超过{@code capacity}时按{@code overflowPolicy}处理，丢弃的数量见
+     * {@link CacheMetrics#droppedNotificationCount()}
+     *
+     * @param capacity 队列容量，BLOCK时写线程在队列超过这个长度后等待
+     * @throws IllegalArgumentException capacity不是正数
+     * @throws IllegalStateException 已经设置过啦
+     */
+    @GwtIncompatible // To be supported
+    public CacheBuilder<K, V> removalExecutor(Executor executor, int capacity,
+                                              RemovalOverflowPolicy overflowPolicy) {
+        checkState(this.removalExecutor == null,
+                "removal executor was already set to %s", this.removalExecutor);
+        checkArgument(capacity > 0, "capacity must be positive: %s", capacity);
+        this.removalExecutor = checkNotNull(executor);
+        this.removalQueueCapacity = capacity;
+        this.removalOverflowPolicy = checkNotNull(overflowPolicy);
+        return this;
+    }
+
     /**
      * 记录操作数据
+     *
+     * 计数使用LongAdder，可以在生产环境一直开启；加载耗时直方图和按原因分类的淘汰通过{@link CacheMetrics#of}读取
      */
     public CacheBuilder<K, V> recordStats() {
         statsCounterSupplier = CACHE_STATS_COUNTER;
@@ -541,6 +883,11 @@ public final class CacheBuilder<K, V> {
     public <K1 extends K, V1 extends V> LoadingCache<K1, V1> build(
             CacheLoader<? super K1, V1> loader) {
         checkWeightWithWeigher();
+        checkAdmissionPolicy();
+        checkRefreshAhead();
+        checkOffHeap();
+        checkMemoryPressure();
+        checkNegativeCaching();
         return new LocalCache.LocalLoadingCache<>(this, loader);
     }
 
@@ -549,17 +896,165 @@ public final class CacheBuilder<K, V> {
      */
     public <K1 extends K, V1 extends V> Cache<K1, V1> build() {
         checkWeightWithWeigher();
+        checkAdmissionPolicy();
         checkNonLoadingCache();
+        checkOffHeap();
+        checkMemoryPressure();
+        checkNegativeCaching();
         return new LocalCache.LocalManualCache<>(this);
     }
 
+    /**
+     * 创建一个key为long的{@link LongKeyCache}，key不装箱，entry不再有独立的对象
+     *
+     * 支持initialCapacity、concurrencyLevel、maximumSize、expireAfterWrite、expireAfterAccess、
+     * ticker、removalListener和recordStats；其余选项依赖每个entry一个对象的结构，设置了会抛出异常
+     *
+     * @throws IllegalStateException 设置了LongKeyCache不支持的选项
+     */
+    @GwtIncompatible // StampedLock
+    public <V1 extends V> LongKeyCache<V1> buildLongKeyed() {
+        checkNonLoadingCache();
+        checkState(weigher == null && maximumWeight == UNSET_INT, "maximumWeight is not supported by a LongKeyCache");
+        checkState(keyStrength == null && valueStrength == null,
+                "weak or soft references are not supported by a LongKeyCache");
+        checkState(keyEquivalence == null && valueEquivalence == null,
+                "custom equivalence is not supported by a LongKeyCache");
+        checkState(expiry == null, "expireAfter is not supported by a LongKeyCache");
+        checkState(admissionPolicy == null, "admissionPolicy is not supported by a LongKeyCache");
+        checkState(serializer == null, "offHeap is not supported by a LongKeyCache");
+        checkState(diskTier == null, "diskTier is not supported by a LongKeyCache");
+        checkState(warmSnapshot == null, "warmFrom is not supported by a LongKeyCache");
+        checkState(memoryUsageThreshold == UNSET_INT, "evictOnMemoryPressure is not supported by a LongKeyCache");
+        checkState(negativeTtlNanos == UNSET_INT, "negativeCaching is not supported by a LongKeyCache");
+        checkState(scheduler == null && maintenanceExecutor == null && removalExecutor == null,
+                "background maintenance is not supported by a LongKeyCache");
+        return new LongKeyCache<>(this);
+    }
+
+    /**
+     * 创建一个AsyncLoadingCache，加载在{@link ForkJoinPool#commonPool()}上执行
+     */
+    @GwtIncompatible // CompletableFuture
+    public <K1 extends K, V1 extends V> AsyncLoadingCache<K1, V1> buildAsync(
+            AsyncCacheLoader<? super K1, V1> loader) {
+        return buildAsync(loader, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 创建一个AsyncLoadingCache
+     *
+     * 缓存中存放的是future，weigher和expireAfter(Expiry)需要看到最终的值，暂不支持。
+     * 弱引用或软引用的只是future本身，值还在使用时future就可能被回收，所以也不支持weakValues和softValues
+     *
+     * @param executor 传给{@link AsyncCacheLoader}的线程池
+     */
+    @GwtIncompatible // CompletableFuture
+    public <K1 extends K, V1 extends V> AsyncLoadingCache<K1, V1> buildAsync(
+            AsyncCacheLoader<? super K1, V1> loader, Executor executor) {
+        checkNotNull(loader);
+        checkNotNull(executor);
+        checkWeightWithWeigher();
+        checkAdmissionPolicy();
+        checkNonLoadingCache();
+        checkMemoryPressure();
+        checkState(weigher == null, "weigher is not supported by an AsyncLoadingCache");
+        checkState(expiry == null, "expireAfter is not supported by an AsyncLoadingCache");
+        checkState(valueStrength == null || valueStrength == Strength.STRONG,
+                "weakValues and softValues are not supported by an AsyncLoadingCache");
+        checkState(serializer == null, "offHeap is not supported by an AsyncLoadingCache");
+        checkState(diskTier == null, "diskTier is not supported by an AsyncLoadingCache");
+        checkState(warmSnapshot == null, "warmFrom is not supported by an AsyncLoadingCache");
+        checkState(negativeTtlNanos == UNSET_INT, "negativeCaching is not supported by an AsyncLoadingCache");
+        CacheBuilder<K1, CompletableFuture<V1>> delegate = asyncDelegate();
+        return new LocalCache.LocalAsyncLoadingCache<>(delegate, loader, executor);
+    }
+
+    /**
+     * 复制一份存放future的CacheBuilder，移除监听器收到的是future完成后的值
+     */
+    private <K1 extends K, V1 extends V> CacheBuilder<K1, CompletableFuture<V1>> asyncDelegate() {
+        CacheBuilder<K1, CompletableFuture<V1>> delegate = new CacheBuilder<>();
+        delegate.strictParsing = strictParsing;
+        delegate.initialCapacity = initialCapacity;
+        delegate.concurrencyLevel = concurrencyLevel;
+        delegate.maximumSize = maximumSize;
+        delegate.memoryUsageThreshold = memoryUsageThreshold;
+        delegate.admissionPolicy = admissionPolicy;
+        delegate.keyStrength = keyStrength;
+        delegate.expireAfterWriteNanos = expireAfterWriteNanos;
+        delegate.expireAfterAccessNanos = expireAfterAccessNanos;
+        delegate.keyEquivalence = keyEquivalence;
+        delegate.ticker = ticker;
+        delegate.scheduler = scheduler;
+        delegate.maintenanceExecutor = maintenanceExecutor;
+        delegate.removalExecutor = removalExecutor;
+        delegate.removalQueueCapacity = removalQueueCapacity;
+        delegate.removalOverflowPolicy = removalOverflowPolicy;
+        delegate.statsCounterSupplier = statsCounterSupplier;
+        if (removalListener != null) {
+            final RemovalListener<K1, V1> listener = getRemovalListener();
+            delegate.removalListener = new RemovalListener<K1, CompletableFuture<V1>>() {
+                @Override
+                public void onRemoval(RemovalNotification<K1, CompletableFuture<V1>> notification) {
+                    CompletableFuture<V1> future = notification.getValue();
+                    V1 value = (future != null && future.isDone() && !future.isCompletedExceptionally())
+                            ? future.join()
+                            : null;
+                    listener.onRemoval(
+                            RemovalNotification.create(notification.getKey(), value, notification.getCause()));
+                }
+            };
+        }
+        return delegate;
+    }
+
     private void checkNonLoadingCache() {
         checkState(refreshNanos == UNSET_INT, "refreshAfterWrite requires a LoadingCache");
+        checkState(refreshExecutor == null, "refreshAhead requires a LoadingCache");
+        checkState(coalesceBatchSize == UNSET_INT, "coalesceLoads requires a LoadingCache");
+    }
+
+    private void checkOffHeap() {
+        if (serializer != null) {
+            checkState(getValueStrength() == Strength.STRONG, "offHeap can not be combined with weak or soft values");
+        }
+        if (diskTier != null) {
+            checkState(maximumSize != UNSET_INT || maximumWeight != UNSET_INT,
+                    "diskTier requires maximumSize, maximumWeight or offHeap");
+        }
+    }
+
+    private void checkRefreshAhead() {
+        if (refreshExecutor != null) {
+            checkState(refreshNanos != UNSET_INT, "refreshAhead requires refreshAfterWrite");
+        }
+    }
+
+    private void checkNegativeCaching() {
+        if (negativeTtlNanos != UNSET_INT) {
+            checkState(keyStrength == null || keyStrength == Strength.STRONG,
+                    "negativeCaching can not be combined with weak keys");
+        }
+    }
+
+    private void checkMemoryPressure() {
+        if (memoryUsageThreshold != UNSET_INT) {
+            checkState(maximumSize != UNSET_INT || maximumWeight != UNSET_INT,
+                    "evictOnMemoryPressure requires maximumSize or maximumWeight");
+        }
+    }
+
+    private void checkAdmissionPolicy() {
+        if (getAdmissionPolicy() != AdmissionPolicy.LRU) {
+            checkState(maximumSize != UNSET_INT || maximumWeight != UNSET_INT,
+                    "admissionPolicy requires maximumSize or maximumWeight");
+        }
     }
 
     private void checkWeightWithWeigher() {
         if (weigher == null) {
-            checkState(maximumWeight == UNSET_INT, "maximumWeight requires weigher");
+            checkState(maximumWeight == UNSET_INT || serializer != null, "maximumWeight requires weigher");
         } else {
             if (strictParsing) {
                 checkState(maximumWeight != UNSET_INT, "weigher requires maximumWeight");
@@ -587,12 +1082,39 @@ public final class CacheBuilder<K, V> {
         if (maximumWeight != UNSET_INT) {
             s.add("maximumWeight", maximumWeight);
         }
+        if (admissionPolicy != null) {
+            s.add("admissionPolicy", admissionPolicy);
+        }
+        if (serializer != null) {
+            s.addValue("offHeap");
+        }
+        if (diskTier != null) {
+            s.addValue("diskTier");
+        }
+        if (warmSnapshot != null) {
+            s.add("warmFrom", warmSnapshot);
+        }
+        if (memoryUsageThreshold != UNSET_INT) {
+            s.add("evictOnMemoryPressure", memoryUsageThreshold);
+        }
+        if (negativeTtlNanos != UNSET_INT) {
+            s.add("negativeCaching", negativeTtlNanos + "ns-" + negativeMaxTtlNanos + "ns");
+        }
+        if (coalesceBatchSize != UNSET_INT) {
+            s.add("coalesceLoads", coalesceBatchSize + " keys/" + coalesceWindowNanos + "ns");
+        }
         if (expireAfterWriteNanos != UNSET_INT) {
             s.add("expireAfterWrite", expireAfterWriteNanos + "ns");
         }
         if (expireAfterAccessNanos != UNSET_INT) {
             s.add("expireAfterAccess", expireAfterAccessNanos + "ns");
         }
+        if (expiry != null) {
+            s.addValue("expiry");
+        }
+        if (refreshExecutor != null) {
+            s.add("refreshJitter", refreshJitter);
+        }
         if (keyStrength != null) {
             s.add("keyStrength", Ascii.toLowerCase(keyStrength.toString()));
         }
@@ -608,6 +1130,9 @@ public final class CacheBuilder<K, V> {
         if (removalListener != null) {
             s.addValue("removalListener");
         }
+        if (removalExecutor != null) {
+            s.add("removalQueue", removalQueueCapacity + "/" + removalOverflowPolicy);
+        }
         return s.toString();
     }
 }
@@ -0,0 +1,369 @@
+package com.google.common.cache;
+
+import com.google.common.annotations.GwtIncompatible;
+import com.google.common.cache.AbstractCache.SimpleStatsCounter;
+import com.google.common.cache.AbstractCache.StatsCounter;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+
+/**
+ * 某一时刻缓存统计的快照，在{@link CacheStats}的基础上增加了加载耗时直方图和按原因分类的淘汰
+ *
+ * 只有{@link CacheBuilder#recordStats()}的缓存才有直方图和淘汰原因，其他情况下这些值都为0。
+ */
+@GwtIncompatible
+public final class CacheMetrics {
+
+    final CacheStats stats;
+    final long estimatedSize;
+    final long evictionWeight;
+    final long[] evictionsByCause;
+    final long[] loadSuccessLatency;
+    final long[] loadExceptionLatency;
+    final int segmentCount;
+    final long lockCount;
+    final long contendedLockCount;
+    final long droppedNotificationCount;
+    final long negativeHitCount;
+    final long negativeEntryCount;
+    final long offHeapFallbackCount;
+
+    CacheMetrics(CacheStats stats, long estimatedSize, long evictionWeight, long[] evictionsByCause,
+                 long[] loadSuccessLatency, long[] loadExceptionLatency, int segmentCount, long lockCount,
+                 long contendedLockCount, long droppedNotificationCount, long negativeHitCount,
+                 long negativeEntryCount, long offHeapFallbackCount) {
+        this.stats = stats;
+        this.estimatedSize = estimatedSize;
+        this.evictionWeight = evictionWeight;
+        this.evictionsByCause = evictionsByCause;
+        this.loadSuccessLatency = loadSuccessLatency;
+        this.loadExceptionLatency = loadExceptionLatency;
+        this.segmentCount = segmentCount;
+        this.lockCount = lockCount;
+        this.contendedLockCount = contendedLockCount;
+        this.droppedNotificationCount = droppedNotificationCount;
+        this.negativeHitCount = negativeHitCount;
+        this.negativeEntryCount = negativeEntryCount;
+        this.offHeapFallbackCount = offHeapFallbackCount;
+    }
+
+    /**
+     * 统计{@code cache}当前的数据，汇总所有Segment
+     *
+     * @throws IllegalArgumentException {@code cache}不是由CacheBuilder创建的
+     */
+    public static CacheMetrics of(Cache<?, ?> cache) {
+        checkArgument(cache instanceof LocalCache.LocalManualCache, "not built by CacheBuilder: %s", cache);
+        return ((LocalCache.LocalManualCache<?, ?>) cache).localCache.metrics();
+    }
+
+    /**
+     * 把{@code cache}的统计注册为MXBean，ObjectName为{@code com.google.common.cache:type=Cache,name=<name>}
+     *
+     * MXBean只持有cache的引用，不再使用时需要调用者注销
+     *
+     * @throws JMException 名字不合法或者已经注册过
+     */
+    public static ObjectName registerMBean(final Cache<?, ?> cache, String name) throws JMException {
+        checkArgument(cache instanceof LocalCache.LocalManualCache, "not built by CacheBuilder: %s", cache);
+        ObjectName objectName = new ObjectName("com.google.common.cache:type=Cache,name=" + ObjectName.quote(name));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new StandardMBean(new MXBean(cache), CacheMetricsMXBean.class, true), objectName);
+        return objectName;
+    }
+
+    /**
+     * 汇总若干个StatsCounter
+     */
+    static CacheMetrics aggregate(List<StatsCounter> counters, long estimatedSize, int segmentCount,
+                                  long lockCount, long contendedLockCount, long droppedNotificationCount,
+                                  long negativeHitCount, long negativeEntryCount, long offHeapFallbackCount) {
+        SimpleStatsCounter stats = new SimpleStatsCounter();
+        long evictionWeight = 0;
+        long[] evictionsByCause = new long[ConcurrentStatsCounter.CAUSES.length];
+        long[] loadSuccessLatency = new long[ConcurrentStatsCounter.BUCKETS];
+        long[] loadExceptionLatency = new long[ConcurrentStatsCounter.BUCKETS];
+        for (StatsCounter counter : counters) {
+            stats.incrementBy(counter);
+            if (counter instanceof ConcurrentStatsCounter) {
+                ConcurrentStatsCounter concurrent = (ConcurrentStatsCounter) counter;
+                evictionWeight += concurrent.evictionWeight.sum();
+                add(evictionsByCause, ConcurrentStatsCounter.sums(concurrent.evictionsByCause));
+                add(loadSuccessLatency, ConcurrentStatsCounter.sums(concurrent.loadSuccessLatency));
+                add(loadExceptionLatency, ConcurrentStatsCounter.sums(concurrent.loadExceptionLatency));
+            }
+        }
+        return new CacheMetrics(stats.snapshot(), estimatedSize, evictionWeight, evictionsByCause,
+                loadSuccessLatency, loadExceptionLatency, segmentCount, lockCount, contendedLockCount,
+                droppedNotificationCount, negativeHitCount, negativeEntryCount, offHeapFallbackCount);
+    }
+
+    public CacheStats stats() {
+        return stats;
+    }
+
+    public long estimatedSize() {
+        return estimatedSize;
+    }
+
+    /**
+     * @return 被淘汰的entry的weight之和
+     */
+    public long evictionWeight() {
+        return evictionWeight;
+    }
+
+    /**
+     * @return 因为{@code cause}被淘汰的次数，只统计{@link RemovalCause#wasEvicted()}的原因
+     */
+    public long evictionCount(RemovalCause cause) {
+        return evictionsByCause[checkNotNull(cause).ordinal()];
+    }
+
+    public int segmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * @return 所有Segment获取锁的次数
+     */
+    public long lockCount() {
+        return lockCount;
+    }
+
+    /**
+     * @return 获取Segment锁时需要等待的次数
+     */
+    public long contendedLockCount() {
+        return contendedLockCount;
+    }
+
+    /**
+     * 获取Segment锁时需要等待的比例，持续偏高时应该调大concurrencyLevel或者使用{@link CacheBuilder#concurrencyLevelForCores()}
+     */
+    public double lockContentionRate() {
+        return (lockCount == 0) ? 0.0 : (double) contendedLockCount / lockCount;
+    }
+
+    /**
+     * @return 异步投递移除通知时因为队列满被丢弃的通知数，见{@link CacheBuilder#removalExecutor}
+     */
+    public long droppedNotificationCount() {
+        return droppedNotificationCount;
+    }
+
+    /**
+     * @return 命中缓存的加载失败、直接抛出异常的次数，这些请求也计入{@link CacheStats#missCount()}，
+     *     见{@link CacheBuilder#negativeCaching}
+     */
+    public long negativeHitCount() {
+        return negativeHitCount;
+    }
+
+    /**
+     * @return 还没过期的加载失败记录数，不计入{@link #estimatedSize()}
+     */
+    public long negativeEntryCount() {
+        return negativeEntryCount;
+    }
+
+    /**
+     * @return value因为堆外空间碎片化暂时保存在堆上的次数，见{@link CacheBuilder#offHeap}；
+     *     持续增长说明maxBytes相对value的大小分布偏小
+     */
+    public long offHeapFallbackCount() {
+        return offHeapFallbackCount;
+    }
+
+    /**
+     * 加载成功耗时的直方图，第i个元素是耗时在[2^(i-1), 2^i)纳秒之间的次数
+     */
+    public long[] loadSuccessLatencyHistogram() {
+        return loadSuccessLatency.clone();
+    }
+
+    /**
+     * 加载失败耗时的直方图，分桶方式和{@link #loadSuccessLatencyHistogram()}一样
+     */
+    public long[] loadExceptionLatencyHistogram() {
+        return loadExceptionLatency.clone();
+    }
+
+    /**
+     * 加载成功耗时的分位数，精度是2倍，返回所在桶的上界
+     *
+     * @param quantile 0到1之间，例如0.99
+     * @return 单位纳秒，没有加载过时返回0
+     */
+    public long loadLatencyQuantile(double quantile) {
+        checkArgument(quantile >= 0 && quantile <= 1, "quantile must be in [0, 1]: %s", quantile);
+        long total = 0;
+        for (long count : loadSuccessLatency) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < loadSuccessLatency.length; i++) {
+            seen += loadSuccessLatency[i];
+            if (seen >= rank && seen > 0) {
+                return (i == 0) ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheMetrics{" + stats
+                + ", estimatedSize=" + estimatedSize
+                + ", evictionWeight=" + evictionWeight
+                + ", evictionsByCause=" + Arrays.toString(evictionsByCause)
+                + ", segmentCount=" + segmentCount
+                + ", lockContentionRate=" + lockContentionRate()
+                + ", droppedNotificationCount=" + droppedNotificationCount
+                + ", negativeHitCount=" + negativeHitCount
+                + ", negativeEntryCount=" + negativeEntryCount
+                + ", offHeapFallbackCount=" + offHeapFallbackCount
+                + "}";
+    }
+
+    private static void add(long[] target, long[] values) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] += values[i];
+        }
+    }
+
+    /**
+     * 每次读取属性都重新统计一次
+     */
+    static final class MXBean implements CacheMetricsMXBean {
+        final Cache<?, ?> cache;
+
+        MXBean(Cache<?, ?> cache) {
+            this.cache = cache;
+        }
+
+        CacheMetrics metrics() {
+            return of(cache);
+        }
+
+        @Override
+        public long getEstimatedSize() {
+            return metrics().estimatedSize();
+        }
+
+        @Override
+        public long getHitCount() {
+            return metrics().stats().hitCount();
+        }
+
+        @Override
+        public long getMissCount() {
+            return metrics().stats().missCount();
+        }
+
+        @Override
+        public double getHitRate() {
+            return metrics().stats().hitRate();
+        }
+
+        @Override
+        public long getLoadSuccessCount() {
+            return metrics().stats().loadSuccessCount();
+        }
+
+        @Override
+        public long getLoadExceptionCount() {
+            return metrics().stats().loadExceptionCount();
+        }
+
+        @Override
+        public double getAverageLoadPenalty() {
+            return metrics().stats().averageLoadPenalty();
+        }
+
+        @Override
+        public long getEvictionCount() {
+            return metrics().stats().evictionCount();
+        }
+
+        @Override
+        public long getEvictionWeight() {
+            return metrics().evictionWeight();
+        }
+
+        @Override
+        public long getSizeEvictionCount() {
+            return metrics().evictionCount(RemovalCause.SIZE);
+        }
+
+        @Override
+        public long getExpiredEvictionCount() {
+            return metrics().evictionCount(RemovalCause.EXPIRED);
+        }
+
+        @Override
+        public long getCollectedEvictionCount() {
+            return metrics().evictionCount(RemovalCause.COLLECTED);
+        }
+
+        @Override
+        public int getSegmentCount() {
+            return metrics().segmentCount();
+        }
+
+        @Override
+        public double getLockContentionRate() {
+            return metrics().lockContentionRate();
+        }
+
+        @Override
+        public long getDroppedNotificationCount() {
+            return metrics().droppedNotificationCount();
+        }
+
+        @Override
+        public long getNegativeHitCount() {
+            return metrics().negativeHitCount();
+        }
+
+        @Override
+        public long getNegativeEntryCount() {
+            return metrics().negativeEntryCount();
+        }
+
+        @Override
+        public long getOffHeapFallbackCount() {
+            return metrics().offHeapFallbackCount();
+        }
+
+        @Override
+        public long getLoadLatencyP50() {
+            return metrics().loadLatencyQuantile(0.5);
+        }
+
+        @Override
+        public long getLoadLatencyP99() {
+            return metrics().loadLatencyQuantile(0.99);
+        }
+
+        @Override
+        public long getLoadLatencyP999() {
+            return metrics().loadLatencyQuantile(0.999);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.google.common.cache;
+
+import com.google.common.annotations.GwtIncompatible;
+
+
+/**
+ * 通过JMX暴露的缓存统计，由{@link CacheMetrics#registerMBean}注册，每次读取属性时重新统计
+ */
+@GwtIncompatible
+public interface CacheMetricsMXBean {
+
+    long getEstimatedSize();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRate();
+
+    long getLoadSuccessCount();
+
+    long getLoadExceptionCount();
+
+    double getAverageLoadPenalty();
+
+    long getEvictionCount();
+
+    long getEvictionWeight();
+
+    long getSizeEvictionCount();
+
+    long getExpiredEvictionCount();
+
+    long getCollectedEvictionCount();
+
+    int getSegmentCount();
+
+    double getLockContentionRate();
+
+    long getDroppedNotificationCount();
+
+    long getNegativeHitCount();
+
+    long getNegativeEntryCount();
+
+    long getOffHeapFallbackCount();
+
+    /**
+     * @return 加载耗时的中位数上界，单位纳秒
+     */
+    long getLoadLatencyP50();
+
+    long getLoadLatencyP99();
+
+    long getLoadLatencyP999();
+}
@@ -0,0 +1,79 @@
+package com.google.common.cache;
+
+import com.google.common.annotations.GwtIncompatible;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+
+/**
+ * 在{@link ForkJoinPool#commonPool()}上并行执行的批量操作，几百万entry的全表扫描可以用上所有的核
+ *
+ * 扫描按Segment和table下标拆分，不加锁；删除时每个entry只短暂持有所在Segment的锁，不会长时间阻塞写入。
+ * 和{@link Cache#asMap()}的视图一样是弱一致的，扫描过程中的并发写入可能看到也可能看不到。
+ * {@code asMap().entrySet().parallelStream()}等并行流也使用同样的拆分方式。
+ */
+@GwtIncompatible
+public final class CacheOperations {
+
+    private CacheOperations() {
+    }
+
+    /**
+     * 并行遍历所有entry，{@code action}会被多个线程同时调用
+     *
+     * @throws IllegalArgumentException {@code cache}不是由CacheBuilder创建的
+     */
+    public static <K, V> void forEach(Cache<K, V> cache, BiConsumer<? super K, ? super V> action) {
+        localCache(cache).forEachParallel(action);
+    }
+
+    /**
+     * 并行删除满足{@code filter}的entry，删除会产生{@link RemovalCause#EXPLICIT}通知
+     *
+     * @return 删除的entry数量
+     * @throws IllegalArgumentException {@code cache}不是由CacheBuilder创建的
+     */
+    public static <K, V> long removeIf(Cache<K, V> cache, BiPredicate<? super K, ? super V> filter) {
+        return localCache(cache).removeIfParallel(filter);
+    }
+
+    /**
+     * 并行删除key满足{@code keyFilter}的entry
+     *
+     * @return 删除的entry数量
+     * @throws IllegalArgumentException {@code cache}不是由CacheBuilder创建的
+     */
+    public static <K> long invalidateAll(Cache<K, ?> cache, Predicate<? super K> keyFilter) {
+        checkNotNull(keyFilter);
+        return localCache(cache).removeIfParallel((key, value) -> keyFilter.test(key));
+    }
+
+    /**
+     * 和{@link Cache#invalidateAll()}一样，但每个Segment在不同的线程上清空
+     *
+     * @throws IllegalArgumentException {@code cache}不是由CacheBuilder创建的
+     */
+    public static void invalidateAll(Cache<?, ?> cache) {
+        localCache(cache).clearParallel();
+    }
+
+    /**
+     * 和{@link Cache#cleanUp()}一样，但每个Segment在不同的线程上清理
+     *
+     * @throws IllegalArgumentException {@code cache}不是由CacheBuilder创建的
+     */
+    public static void cleanUp(Cache<?, ?> cache) {
+        localCache(cache).cleanUpParallel();
+    }
+
+    private static <K, V> LocalCache<K, V> localCache(Cache<K, V> cache) {
+        checkArgument(cache instanceof LocalCache.LocalManualCache, "not built by CacheBuilder: %s", cache);
+        return ((LocalCache.LocalManualCache<K, V>) cache).localCache;
+    }
+}
@@ -0,0 +1,240 @@
+package com.google.common.cache;
+
+import com.google.common.annotations.GwtIncompatible;
+import com.google.common.cache.LocalCache.Segment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+
+/**
+ * 把缓存内容保存到文件，重启后用{@link CacheBuilder#warmFrom}预热，避免发布后缓存从零开始
+ *
+ * 文件格式(大端):
+ * <pre>
+ * int magic, int version, int sectionCount
+ * 每个section: long byteLength, int entryCount, 然后是entryCount条记录
+ * 每条记录: long remainingNanos(-1表示不过期), int keyLength, key, int valueLength, value
+ * </pre>
+ * 一个section对应生成快照时的一个Segment，section内按访问顺序从冷到热排列，
+ * 按这个顺序插入时最热的entry最后被淘汰。section带着长度，加载时每个section一个线程并行读取。
+ * 写入和读取都只经过固定大小的缓冲区，section的大小不受内存和2GB映射上限的限制。
+ */
+@GwtIncompatible
+public final class CacheSnapshot {
+
+    static final int MAGIC = 0x4C435350;
+    static final int VERSION = 1;
+    static final long NO_EXPIRATION = -1;
+    static final int SECTION_HEADER = 12;
+    /**
+     * 读写文件的缓冲区大小，section再大也只占用这么多内存(加上单条记录)
+     */
+    static final int WINDOW_SIZE = 64 * 1024;
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * 把{@code cache}的内容写入{@code path}，先写临时文件再原子替换
+     *
+     * 每个Segment只在复制entry引用时短暂持有锁，序列化和写文件都在锁外进行，
+     * 所以快照是弱一致的：生成过程中的写入可能包含也可能不包含
+     *
+     * @param cache 由{@link CacheBuilder}创建的缓存
+     * @throws IllegalArgumentException {@code cache}不是由CacheBuilder创建的
+     * @throws IOException 写文件失败
+     */
+    public static <K, V> void snapshotTo(Cache<K, V> cache, Path path, Serializer<K> keySerializer,
+                                         Serializer<V> valueSerializer) throws IOException {
+        checkArgument(cache instanceof LocalCache.LocalManualCache, "not built by CacheBuilder: %s", cache);
+        checkNotNull(keySerializer);
+        checkNotNull(valueSerializer);
+        LocalCache<K, V> map = ((LocalCache.LocalManualCache<K, V>) cache).localCache;
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Channels.newOutputStream(channel), WINDOW_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(map.segments.length);
+            for (Segment<K, V> segment : map.segments) {
+                writeSection(channel, out, map, segment, keySerializer, valueSerializer);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 先写一个占位的section头，边序列化边写文件，最后回到section头的位置填上长度和条数
+     */
+    private static <K, V> void writeSection(FileChannel channel, DataOutputStream out, LocalCache<K, V> map,
+                                            Segment<K, V> segment, Serializer<K> keySerializer,
+                                            Serializer<V> valueSerializer) throws IOException {
+        out.flush();
+        long headerPosition = channel.position();
+        out.write(new byte[SECTION_HEADER]);
+        int count = 0;
+        long now = map.ticker.read();
+        for (ReferenceEntry<K, V> e : segment.snapshotOrder()) {
+            K key = e.getKey();
+            LocalCache.ValueReference<K, V> valueReference = e.getValueReference();
+            if (key == null || valueReference.isLoading()) {
+                continue;
+            }
+            V value = valueReference.get();
+            if (value == null) {
+                continue;
+            }
+            long expirationTime = segment.expirationTime(e);
+            long remaining = (expirationTime == Long.MAX_VALUE) ? NO_EXPIRATION : expirationTime - now;
+            if (remaining != NO_EXPIRATION && remaining <= 0) {
+                // 已经过期
+                continue;
+            }
+            byte[] keyBytes = keySerializer.serialize(key);
+            byte[] valueBytes = valueSerializer.serialize(value);
+            out.writeLong(remaining);
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            out.writeInt(valueBytes.length);
+            out.write(valueBytes);
+            count++;
+        }
+        out.flush();
+        long byteLength = channel.position() - headerPosition - SECTION_HEADER;
+        ByteBuffer header = ByteBuffer.allocate(SECTION_HEADER).putLong(byteLength).putInt(count);
+        header.flip();
+        while (header.hasRemaining()) {
+            // 按位置写不改变channel的position
+            channel.write(header, headerPosition + header.position());
+        }
+    }
+
+    /**
+     * 从快照中加载entry，每个section一个线程；文件不存在或者损坏时记录日志，缓存保持为空
+     */
+    static <K, V> void warm(LocalCache<K, V> map, Path path, Serializer<K> keySerializer,
+                            Serializer<V> valueSerializer) {
+        if (!Files.exists(path)) {
+            LocalCache.logger.log(Level.INFO, "Cache snapshot {0} does not exist, starting cold", path);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = read(channel, 0, 12);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("not a cache snapshot: " + path);
+            }
+            int sectionCount = header.getInt();
+
+            // 先跳着读出每个section的位置，再并行加载
+            List<CompletableFuture<Void>> workers = new ArrayList<>(sectionCount);
+            long position = 12;
+            for (int i = 0; i < sectionCount; i++) {
+                ByteBuffer sectionHeader = read(channel, position, SECTION_HEADER);
+                long byteLength = sectionHeader.getLong();
+                int count = sectionHeader.getInt();
+                final DataInputStream section = new DataInputStream(new BufferedInputStream(
+                        new SectionInputStream(channel, position + SECTION_HEADER, byteLength), WINDOW_SIZE));
+                workers.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        restoreSection(map, section, count, keySerializer, valueSerializer);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+                position += SECTION_HEADER + byteLength;
+            }
+            CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[0])).join();
+        } catch (Exception e) {
+            LocalCache.logger.log(Level.WARNING, "Exception thrown when warming cache from " + path, e);
+        }
+    }
+
+    private static <K, V> void restoreSection(LocalCache<K, V> map, DataInputStream section, int count,
+                                              Serializer<K> keySerializer, Serializer<V> valueSerializer)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            long remaining = section.readLong();
+            byte[] keyBytes = new byte[section.readInt()];
+            section.readFully(keyBytes);
+            byte[] valueBytes = new byte[section.readInt()];
+            section.readFully(valueBytes);
+
+            K key = keySerializer.deserialize(keyBytes);
+            V value = valueSerializer.deserialize(valueBytes);
+            int hash = map.hash(checkNotNull(key));
+            map.segmentFor(hash).restore(key, hash, checkNotNull(value), remaining);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("truncated cache snapshot");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 按位置读取文件中的一个section，多个section可以在不同线程上同时读同一个channel
+     */
+    static final class SectionInputStream extends InputStream {
+        final FileChannel channel;
+        long position;
+        final long end;
+
+        SectionInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("truncated cache snapshot");
+            }
+            position += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.google.common.cache;
+
+import com.google.common.annotations.GwtIncompatible;
+import com.google.common.cache.AbstractCache.StatsCounter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * {@link CacheBuilder#recordStats()}使用的统计，所有计数都是LongAdder，多线程同时记录时没有竞争
+ *
+ * 除了{@link CacheStats}中的计数，还记录：
+ * <ul>
+ * <li>加载成功和失败的耗时直方图，按纳秒的2的n次方分桶</li>
+ * <li>按{@link RemovalCause}分类的淘汰次数，以及淘汰掉的总weight</li>
+ * </ul>
+ * 这些通过{@link CacheMetrics#of}读取。
+ */
+@GwtIncompatible
+final class ConcurrentStatsCounter implements StatsCounter {
+
+    /**
+     * 直方图的桶数，第i个桶记录[2^(i-1), 2^i)纳秒，第0个桶记录0
+     */
+    static final int BUCKETS = 64;
+
+    static final RemovalCause[] CAUSES = RemovalCause.values();
+
+    final LongAdder hitCount = new LongAdder();
+    final LongAdder missCount = new LongAdder();
+    final LongAdder loadSuccessCount = new LongAdder();
+    final LongAdder loadExceptionCount = new LongAdder();
+    final LongAdder totalLoadTime = new LongAdder();
+    final LongAdder evictionCount = new LongAdder();
+    final LongAdder evictionWeight = new LongAdder();
+    final LongAdder[] evictionsByCause = newAdders(CAUSES.length);
+    final LongAdder[] loadSuccessLatency = newAdders(BUCKETS);
+    final LongAdder[] loadExceptionLatency = newAdders(BUCKETS);
+
+    @Override
+    public void recordHits(int count) {
+        hitCount.add(count);
+    }
+
+    @Override
+    public void recordMisses(int count) {
+        missCount.add(count);
+    }
+
+    @Override
+    public void recordLoadSuccess(long loadTime) {
+        loadSuccessCount.increment();
+        totalLoadTime.add(loadTime);
+        loadSuccessLatency[bucket(loadTime)].increment();
+    }
+
+    @Override
+    public void recordLoadException(long loadTime) {
+        loadExceptionCount.increment();
+        totalLoadTime.add(loadTime);
+        loadExceptionLatency[bucket(loadTime)].increment();
+    }
+
+    /**
+     * 不知道原因的淘汰，只计数
+     */
+    @Override
+    public void recordEviction() {
+        evictionCount.increment();
+    }
+
+    /**
+     * 记录一次淘汰的原因和weight
+     */
+    void recordEviction(RemovalCause cause, int weight) {
+        evictionCount.increment();
+        evictionsByCause[cause.ordinal()].increment();
+        evictionWeight.add(weight);
+    }
+
+    @Override
+    public CacheStats snapshot() {
+        return new CacheStats(
+                negativeToMaxValue(hitCount.sum()),
+                negativeToMaxValue(missCount.sum()),
+                negativeToMaxValue(loadSuccessCount.sum()),
+                negativeToMaxValue(loadExceptionCount.sum()),
+                negativeToMaxValue(totalLoadTime.sum()),
+                negativeToMaxValue(evictionCount.sum()));
+    }
+
+    static int bucket(long nanos) {
+        return (nanos <= 0) ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    static long[] sums(LongAdder[] adders) {
+        long[] sums = new long[adders.length];
+        for (int i = 0; i < adders.length; i++) {
+            sums[i] = adders[i].sum();
+        }
+        return sums;
+    }
+
+    private static LongAdder[] newAdders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * 溢出时返回Long.MAX_VALUE
+     */
+    private static long negativeToMaxValue(long value) {
+        return (value >= 0) ? value : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,447 @@
+package com.google.common.cache;
+
+import com.google.common.annotations.GwtIncompatible;
+import com.google.errorprone.annotations.concurrent.GuardedBy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+
+/**
+ * 本地磁盘上的二级缓存，保存因为容量({@link RemovalCause#SIZE})被淘汰的entry
+ *
+ * 通过{@link CacheBuilder#diskTier}配置。一级缓存未命中时先查这里，命中就把value移回一级缓存，
+ * 不再调用CacheLoader；没有命中才去后端加载。
+ *
+ * value序列化后追加写入内存映射的日志文件，内存中只保留key到文件位置的索引。
+ * 日志由若干个固定大小的文件组成，写满一个就新建一个：
+ * <ul>
+ * <li>新建文件时，如果有文件中的有效数据不足一半，把其中仍然有效的记录搬到新文件，删除旧文件(压缩)</li>
+ * <li>文件总大小超过maxBytes时，删除最旧的文件，其中的entry直接丢弃</li>
+ * </ul>
+ *
+ * 进程重启后不恢复，打开时会清空目录中之前的日志文件。所有方法都是线程安全的。
+ *
+ * 一级缓存在Segment的锁内调用{@link #put}、{@link #invalidate}，这两个操作只修改并发的索引，不序列化也不写文件：
+ * put先在索引中放入一个持有value的占位，由{@link #flush}在Segment的锁外序列化、追加写入并替换占位。
+ * 写文件、新建文件和压缩由一把写锁串行化，不会阻塞其他Segment的读写。
+ */
+@GwtIncompatible
+public final class DiskTier<K, V> implements Closeable {
+
+    /**
+     * 日志文件数量的下限，文件大小为maxBytes / MIN_FILES
+     */
+    static final int MIN_FILES = 4;
+
+    /**
+     * 单个日志文件的大小上限，MappedByteBuffer最大只能映射2GB
+     */
+    static final int MAX_FILE_SIZE = 1 << 30;
+
+    /**
+     * 有效数据低于这个比例的文件会被压缩
+     */
+    static final double COMPACTION_THRESHOLD = 0.5;
+
+    static final int RECORD_HEADER = 4;
+    static final String FILE_PREFIX = "l2-";
+    static final String FILE_SUFFIX = ".log";
+
+    final Path directory;
+    final Serializer<V> serializer;
+    final int fileSize;
+    final int maxFiles;
+
+    final ConcurrentMap<K, Slot> index = new ConcurrentHashMap<>();
+    /*等待写入文件的占位*/
+    final Queue<Map.Entry<K, Slot>> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    /*保护files、nextFileNumber和文件内容的写入*/
+    final ReentrantLock writeLock = new ReentrantLock();
+    /*从旧到新，最后一个是正在写入的文件*/
+    final ArrayDeque<LogFile> files = new ArrayDeque<>();
+    int nextFileNumber;
+    volatile boolean closed;
+
+    final LongAdder hitCount = new LongAdder();
+    final LongAdder missCount = new LongAdder();
+    final LongAdder evictionCount = new LongAdder();
+
+    DiskTier(Path directory, long maxBytes, Serializer<V> serializer) {
+        this.directory = directory;
+        this.serializer = serializer;
+        this.fileSize = (int) Math.min(MAX_FILE_SIZE, Math.max(maxBytes / MIN_FILES, RECORD_HEADER + 1));
+        this.maxFiles = (int) Math.max(MIN_FILES, maxBytes / fileSize);
+    }
+
+    /**
+     * 在{@code directory}下创建一个最多占用{@code maxBytes}字节的二级缓存
+     *
+     * @throws IOException 创建目录或日志文件失败
+     */
+    public static <K, V> DiskTier<K, V> open(Path directory, long maxBytes, Serializer<V> serializer)
+            throws IOException {
+        checkNotNull(directory);
+        checkNotNull(serializer);
+        checkArgument(maxBytes > 0, "maxBytes must be positive: %s", maxBytes);
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stale =
+                     Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path path : stale) {
+                Files.deleteIfExists(path);
+            }
+        }
+        DiskTier<K, V> tier = new DiskTier<>(directory, maxBytes, serializer);
+        tier.files.addLast(tier.newLogFile());
+        return tier;
+    }
+
+    /**
+     * 一个日志文件
+     */
+    static final class LogFile {
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int position;
+        /*invalidate和take不持有写锁，所以是原子的*/
+        final AtomicLong liveBytes = new AtomicLong();
+
+        LogFile(Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * 索引中的一条记录，还没写入文件时持有value，写入后记录文件中的位置
+     */
+    static final class Slot {
+        final @Nullable Object value;
+        final @Nullable LogFile file;
+        final int offset;
+        final int length;
+        /*按cache的ticker计算的过期时间*/
+        final long expirationTime;
+        /*写入时一级缓存的版本，见take*/
+        final int epoch;
+
+        Slot(@Nullable Object value, @Nullable LogFile file, int offset, int length, long expirationTime, int epoch) {
+            this.value = value;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.expirationTime = expirationTime;
+            this.epoch = epoch;
+        }
+
+        /**
+         * 从索引中删除后调用，减去所在文件的有效数据
+         */
+        void release() {
+            if (file != null) {
+                file.liveBytes.addAndGet(-(RECORD_HEADER + length));
+            }
+        }
+    }
+
+    /**
+     * 放入一个被一级缓存淘汰的entry，只放入索引，序列化和写文件由{@link #flush}完成
+     *
+     * @param expirationTime 按cache的ticker计算的过期时间，不过期时为Long.MAX_VALUE
+     * @param epoch          一级缓存当前的版本，{@link #take}时版本不同的记录视为不存在
+     */
+    void put(K key, V value, long expirationTime, int epoch) {
+        if (closed) {
+            return;
+        }
+        Slot slot = new Slot(value, null, 0, 0, expirationTime, epoch);
+        Slot previous = index.put(key, slot);
+        if (previous != null) {
+            previous.release();
+        }
+        pendingWrites.add(new AbstractMap.SimpleImmutableEntry<>(key, slot));
+    }
+
+    /**
+     * 把{@link #put}放入的value序列化并写入日志文件，调用者不能持有Segment的锁
+     *
+     * 已经有线程在写时直接返回，由那个线程写完队列中的记录
+     */
+    void flush() {
+        while (!pendingWrites.isEmpty() && writeLock.tryLock()) {
+            try {
+                Map.Entry<K, Slot> pending;
+                while ((pending = pendingWrites.poll()) != null) {
+                    if (!closed) {
+                        write(pending.getKey(), pending.getValue());
+                    }
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    @GuardedBy("writeLock")
+    private void write(K key, Slot pending) {
+        if (index.get(key) != pending) {
+            // 已经被取出、删除或者覆盖
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        V value = (V) pending.value;
+        byte[] bytes = serializer.serialize(value);
+        if (bytes.length + RECORD_HEADER > fileSize) {
+            index.remove(key, pending);
+            return;
+        }
+        try {
+            LogFile active = files.peekLast();
+            if (active.position + RECORD_HEADER + bytes.length > fileSize) {
+                active = roll();
+            }
+            Slot written = new Slot(null, active, write(active, bytes), bytes.length,
+                    pending.expirationTime, pending.epoch);
+            if (!index.replace(key, pending, written)) {
+                written.release();
+            }
+        } catch (IOException e) {
+            index.remove(key, pending);
+            LocalCache.logger.log(Level.WARNING, "Exception thrown when writing disk tier", e);
+        }
+    }
+
+    /**
+     * 取出key对应的value并从二级缓存中删除，调用者会把它放回一级缓存
+     *
+     * @param now   cache的ticker的当前时间
+     * @param epoch key所在Segment当前的版本，Segment清空后版本改变，清空前写入的记录不再返回
+     * @return 没有、已经过期或者版本不同时返回null
+     */
+    @Nullable
+    V take(Object key, long now, int epoch) {
+        Slot slot = index.remove(key);
+        if (slot == null) {
+            missCount.increment();
+            return null;
+        }
+        slot.release();
+        if (now - slot.expirationTime >= 0 || slot.epoch != epoch) {
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        if (slot.value != null) {
+            @SuppressWarnings("unchecked")
+            V value = (V) slot.value;
+            return value;
+        }
+        // 文件被删除后映射的内存仍然有效，记录写入后不会被修改，所以不需要加锁
+        return serializer.deserialize(read(slot));
+    }
+
+    /**
+     * 删除key，一级缓存写入新值或者显式删除时在Segment的锁内调用，避免之后读到旧值
+     */
+    void invalidate(Object key) {
+        Slot slot = index.remove(key);
+        if (slot != null) {
+            slot.release();
+        }
+    }
+
+    /**
+     * 删除所有entry
+     */
+    void invalidateAll() {
+        for (Iterator<Slot> it = index.values().iterator(); it.hasNext(); ) {
+            Slot slot = it.next();
+            it.remove();
+            slot.release();
+        }
+    }
+
+    public long hitCount() {
+        return hitCount.sum();
+    }
+
+    public long missCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * @return 删除最旧的日志文件时丢弃的entry数量
+     */
+    public long evictionCount() {
+        return evictionCount.sum();
+    }
+
+    public long size() {
+        return index.size();
+    }
+
+    /**
+     * @return 日志文件占用的磁盘空间
+     */
+    public long diskBytes() {
+        writeLock.lock();
+        try {
+            return (long) files.size() * fileSize;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 关闭并删除所有日志文件
+     */
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            index.clear();
+            pendingWrites.clear();
+            IOException failure = null;
+            for (LogFile file : files) {
+                try {
+                    deleteLogFile(file);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            files.clear();
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @GuardedBy("writeLock")
+    private int write(LogFile file, byte[] bytes) {
+        int offset = file.position;
+        file.buffer.putInt(offset, bytes.length);
+        ByteBuffer target = file.buffer.duplicate();
+        target.position(offset + RECORD_HEADER);
+        target.put(bytes);
+        file.position = offset + RECORD_HEADER + bytes.length;
+        file.liveBytes.addAndGet(RECORD_HEADER + bytes.length);
+        return offset;
+    }
+
+    private byte[] read(Slot slot) {
+        byte[] bytes = new byte[slot.length];
+        ByteBuffer source = slot.file.buffer.duplicate();
+        source.position(slot.offset + RECORD_HEADER);
+        source.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 新建一个日志文件，顺便压缩最稀疏的文件，并删除超出大小限制的旧文件
+     */
+    @GuardedBy("writeLock")
+    private LogFile roll() throws IOException {
+        LogFile previous = files.peekLast();
+        LogFile active = newLogFile();
+        files.addLast(active);
+
+        // 有效数据不足一半的文件，搬到新文件中一定放得下
+        LogFile sparsest = null;
+        for (LogFile file : files) {
+            if (file != previous && file != active && file.liveBytes.get() < fileSize * COMPACTION_THRESHOLD
+                    && (sparsest == null || file.liveBytes.get() < sparsest.liveBytes.get())) {
+                sparsest = file;
+            }
+        }
+        if (sparsest != null) {
+            compact(sparsest, active);
+        }
+
+        while (files.size() > maxFiles) {
+            LogFile oldest = files.pollFirst();
+            for (Iterator<Map.Entry<K, Slot>> it = index.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<K, Slot> entry = it.next();
+                if (entry.getValue().file == oldest && index.remove(entry.getKey(), entry.getValue())) {
+                    evictionCount.increment();
+                }
+            }
+            deleteLogFile(oldest);
+        }
+        return active;
+    }
+
+    /**
+     * 把source中仍然有效的记录搬到target，搬运期间被取出或删除的记录在target中按无效数据计算
+     */
+    @GuardedBy("writeLock")
+    private void compact(LogFile source, LogFile target) throws IOException {
+        checkState(source.liveBytes.get() <= fileSize - target.position);
+        for (Map.Entry<K, Slot> entry : index.entrySet()) {
+            Slot slot = entry.getValue();
+            if (slot.file == source && target.position + RECORD_HEADER + slot.length <= fileSize) {
+                Slot moved = new Slot(null, target, write(target, read(slot)), slot.length,
+                        slot.expirationTime, slot.epoch);
+                if (index.replace(entry.getKey(), slot, moved)) {
+                    slot.release();
+                } else {
+                    moved.release();
+                }
+            }
+        }
+        files.remove(source);
+        deleteLogFile(source);
+    }
+
+    private LogFile newLogFile() throws IOException {
+        Path path = directory.resolve(FILE_PREFIX + (nextFileNumber++) + FILE_SUFFIX);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            return new LogFile(path, channel, buffer);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void deleteLogFile(LogFile file) throws IOException {
+        // 映射的内存在buffer被回收时释放，Linux上可以先删除文件
+        file.channel.close();
+        Files.deleteIfExists(file.path);
+    }
+}
@@ -0,0 +1,36 @@
+package com.google.common.cache;
+
+
+import com.google.common.annotations.GwtIncompatible;
+
+
+/**
+ * 计算每个entry各自的过期时间，配合{@link CacheBuilder#expireAfter(Expiry)}使用
+ *
+ * 所有方法返回的都是从currentTime开始计算的剩余存活时长，单位为纳秒。
+ * 返回{@code currentDuration}表示不修改过期时间。
+ */
+@GwtIncompatible
+public interface Expiry<K, V> {
+
+    /**
+     * 新建entry后的存活时长
+     *
+     * @param currentTime 当前时间，来自cache的ticker
+     */
+    long expireAfterCreate(K key, V value, long currentTime);
+
+    /**
+     * 替换value后的存活时长
+     *
+     * @param currentDuration 替换前的剩余存活时长
+     */
+    long expireAfterUpdate(K key, V value, long currentTime, long currentDuration);
+
+    /**
+     * 读取后的存活时长
+     *
+     * @param currentDuration 读取前的剩余存活时长
+     */
+    long expireAfterRead(K key, V value, long currentTime, long currentDuration);
+}
@@ -0,0 +1,117 @@
+package com.google.common.cache;
+
+
+/**
+ * 4位计数器的CountMin sketch，用来估计元素最近的访问频率
+ *
+ * 每个long存放16个4位计数器，每个元素在4行中各有一个计数器，估计值取4个中的最小值。
+ * 计数器最大为15，累计的增加次数达到sampleSize时所有计数器减半(老化)，
+ * 让频率反映的是最近的热度而不是历史总量。
+ *
+ * 不是线程安全的，调用时必须持有Segment的锁。
+ */
+final class FrequencySketch {
+
+    /*4行计数器的种子*/
+    static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    static final long RESET_MASK = 0x7777777777777777L;
+
+    /*计数器数量的上限*/
+    final int maximumCapacity;
+    long[] table;
+    int tableMask;
+    int sampleSize;
+    int additions;
+
+    /**
+     * 计数器的数量随元素数增长，不按{@code maximumSize}一次分配：
+     * 按权重淘汰时{@code maximumSize}是权重(例如字节数)，远大于实际的元素数
+     *
+     * @param maximumSize 缓存可以容纳的元素数的上限，决定计数器数量的上限
+     */
+    FrequencySketch(long maximumSize) {
+        maximumCapacity = ReadBuffer.ceilingPowerOfTwo((int) Math.min(Math.max(maximumSize, 8), 1 << 30));
+        resize(8);
+    }
+
+    /**
+     * 元素数超过计数器数量时扩容到不小于{@code size}的2的幂，扩容后所有计数器清零
+     */
+    void ensureCapacity(int size) {
+        if (size <= table.length || table.length >= maximumCapacity) {
+            return;
+        }
+        resize(Math.min(ReadBuffer.ceilingPowerOfTwo(size), maximumCapacity));
+    }
+
+    void resize(int size) {
+        table = new long[size];
+        tableMask = size - 1;
+        sampleSize = (int) Math.min(10L * size, Integer.MAX_VALUE);
+        additions = 0;
+    }
+
+    /**
+     * @return 元素的估计频率，范围[0, 15]
+     */
+    int frequency(int hash) {
+        int start = (spread(hash) & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * 增加元素的频率，累计次数达到sampleSize时老化
+     */
+    void increment(int hash) {
+        int start = (spread(hash) & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && (++additions == sampleSize)) {
+            reset();
+        }
+    }
+
+    boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = (0xfL << offset);
+        if ((table[i] & mask) != mask) {
+            table[i] += (1L << offset);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 所有计数器减半
+     */
+    void reset() {
+        int count = 0;
+        for (int i = 0; i < table.length; i++) {
+            //每个计数器的最低位，用于修正additions
+            count += Long.bitCount(table[i] & 0x1111111111111111L);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions = (additions >>> 1) - (count >>> 2);
+    }
+
+    int indexOf(int item, int i) {
+        long hash = (item + SEEDS[i]) * SEEDS[i];
+        hash += (hash >>> 32);
+        return ((int) hash) & tableMask;
+    }
+
+    static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,346 @@
+package com.google.common.cache;
+
+
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheLoader.UnsupportedLoadingOperationException;
+import com.google.common.cache.LocalCache.LoadingValueReference;
+import com.google.common.cache.LocalCache.Segment;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * 把多个线程在一个短时间窗口内的未命中合并为一次{@link CacheLoader#loadAll}
+ *
+ * 第一个提交到空批次的线程成为leader，最多等待window，或者等到批次中的key达到maxBatchSize，
+ * 然后由它调用loadAll，把每个key的结果设置到对应的LoadingValueReference中。
+ * 其他线程提交后直接等待自己的LoadingValueReference，和lockedGetOrLoad中等待并发加载的方式一样。
+ * 一次提交的key超过批次的剩余容量时，放不下的key进入新的批次，由提交的线程担任新批次的leader，
+ * 所以每次loadAll的key数都不超过maxBatchSize。
+ *
+ * loader没有实现loadAll时，之后的加载不再合并，退化为逐个load。
+ *
+ * 保存某个key的结果时抛出的异常(例如weigher)只让这个key失败，其他key照常完成，异常最后由leader抛出。
+ * 分发过程中的其他异常会让所有还没有结果的key失败，不会有线程一直等待。
+ */
+final class LoadCoalescer<K, V> {
+
+    final LocalCache<K, V> map;
+    final CacheLoader<? super K, V> loader;
+    final long windowNanos;
+    final int maxBatchSize;
+
+    final ReentrantLock lock = new ReentrantLock();
+
+    /*正在收集请求的批次*/
+    Batch<K, V> current;
+
+    /*loader不支持loadAll*/
+    volatile boolean bulkUnsupported;
+
+    LoadCoalescer(LocalCache<K, V> map, CacheLoader<? super K, V> loader, long windowNanos, int maxBatchSize) {
+        this.map = map;
+        this.loader = loader;
+        this.windowNanos = windowNanos;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * 一个待加载的key
+     */
+    static final class Request<K, V> {
+        final Segment<K, V> segment;
+        final K key;
+        final int hash;
+        final LoadingValueReference<K, V> loadingValueReference;
+
+        Request(Segment<K, V> segment, K key, int hash, LoadingValueReference<K, V> loadingValueReference) {
+            this.segment = segment;
+            this.key = key;
+            this.hash = hash;
+            this.loadingValueReference = loadingValueReference;
+        }
+    }
+
+    static final class Batch<K, V> {
+        /*同一个key可能有多个请求，加载一次，结果设置给所有请求*/
+        final Map<K, List<Request<K, V>>> requests = new LinkedHashMap<>();
+        final Condition full;
+
+        Batch(Condition full) {
+            this.full = full;
+        }
+
+        void add(Request<K, V> request) {
+            List<Request<K, V>> waiters = requests.get(request.key);
+            if (waiters == null) {
+                waiters = new ArrayList<>(1);
+                requests.put(request.key, waiters);
+            }
+            waiters.add(request);
+        }
+    }
+
+    /**
+     * 提交一组已经占位的key，返回时这些key不一定已经加载完成，调用者需要等待各自的LoadingValueReference
+     */
+    void submit(List<Request<K, V>> requests) {
+        for (Request<K, V> request : requests) {
+            request.loadingValueReference.stopwatch.start();
+        }
+        if (bulkUnsupported) {
+            loadEach(requests);
+            return;
+        }
+
+        //由这个线程担任leader的批次，除了最后一个都已经装满
+        List<Batch<K, V>> led = new ArrayList<>(1);
+        lock.lock();
+        try {
+            for (Request<K, V> request : requests) {
+                Batch<K, V> batch = current;
+                if (batch == null) {
+                    batch = current = new Batch<>(lock.newCondition());
+                    led.add(batch);
+                }
+                batch.add(request);
+                if (batch.requests.size() >= maxBatchSize) {
+                    //批次已满，关闭它并唤醒leader
+                    current = null;
+                    batch.full.signal();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (led.isEmpty()) {
+            return;
+        }
+
+        //前面的批次失败时仍然要分发后面的批次，否则等待它们的线程会一直阻塞
+        Throwable failure = null;
+        int last = led.size() - 1;
+        for (int i = 0; i < last; i++) {
+            try {
+                dispatch(led.get(i));
+            } catch (Throwable t) {
+                failure = (failure == null) ? t : failure;
+            }
+        }
+        Batch<K, V> batch = led.get(last);
+        lock.lock();
+        try {
+            long nanos = windowNanos;
+            boolean interrupted = false;
+            while (current == batch && nanos > 0) {
+                try {
+                    nanos = batch.full.awaitNanos(nanos);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (current == batch) {
+                current = null;
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            dispatch(batch);
+        } catch (Throwable t) {
+            failure = (failure == null) ? t : failure;
+        }
+        throwIfFailed(failure);
+    }
+
+    /**
+     * 由leader调用loadAll，并把结果分发给每个key，返回时批次中的每个请求都已经完成或者失败
+     */
+    void dispatch(Batch<K, V> batch) {
+        Map<K, List<Request<K, V>>> requests = batch.requests;
+        Throwable failure;
+        try {
+            failure = distribute(requests);
+        } catch (Throwable t) {
+            //takeFromDiskTier或者map.put抛出异常，requests中剩下的都是还没有结果的请求
+            failAll(requests.values(), t);
+            failure = t;
+        }
+        throwIfFailed(failure);
+    }
+
+    /**
+     * 分发过程中会从requests中删除已经有结果的key
+     *
+     * @return 第一个保存结果失败的异常，没有则为null
+     */
+    @Nullable
+    Throwable distribute(Map<K, List<Request<K, V>>> requests) {
+        Throwable failure = null;
+        if (map.diskTier != null) {
+            long now = map.ticker.read();
+            for (Iterator<Map.Entry<K, List<Request<K, V>>>> it = requests.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<K, List<Request<K, V>>> entry = it.next();
+                V value = map.takeFromDiskTier(entry.getKey(), now);
+                if (value != null) {
+                    it.remove();
+                    failure = completeAll(entry.getValue(), value, failure);
+                }
+            }
+            if (requests.isEmpty()) {
+                return failure;
+            }
+        }
+        Map<K, V> result;
+        try {
+            @SuppressWarnings("unchecked") // safe since all keys extend K
+            Map<K, V> loaded = (Map<K, V>) loader.loadAll(requests.keySet());
+            result = loaded;
+        } catch (UnsupportedLoadingOperationException e) {
+            bulkUnsupported = true;
+            List<Request<K, V>> remaining = new ArrayList<>();
+            for (List<Request<K, V>> waiters : requests.values()) {
+                remaining.addAll(waiters);
+            }
+            requests.clear();
+            try {
+                loadEach(remaining);
+            } catch (Throwable t) {
+                failure = (failure == null) ? t : failure;
+            }
+            return failure;
+        } catch (Throwable t) {
+            if (t instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            failAll(requests.values(), t);
+            requests.clear();
+            return failure;
+        }
+
+        if (result == null) {
+            InvalidCacheLoadException e =
+                    new InvalidCacheLoadException(loader + " returned null map from loadAll");
+            failAll(requests.values(), e);
+            requests.clear();
+            return failure;
+        }
+
+        for (Map.Entry<K, V> entry : result.entrySet()) {
+            K key = entry.getKey();
+            V value = entry.getValue();
+            List<Request<K, V>> waiters = (key == null) ? null : requests.remove(key);
+            if (waiters != null) {
+                if (value == null) {
+                    failAll(Collections.singletonList(waiters),
+                            new InvalidCacheLoadException("loadAll failed to return a value for " + key));
+                } else {
+                    failure = completeAll(waiters, value, failure);
+                }
+            } else if (key != null && value != null) {
+                //loadAll顺带返回了没有请求的key，和LocalCache.loadAll一样放入缓存
+                map.put(key, value);
+            }
+        }
+        for (List<Request<K, V>> waiters : requests.values()) {
+            for (Request<K, V> request : waiters) {
+                fail(request, new InvalidCacheLoadException("loadAll failed to return a value for " + request.key));
+            }
+        }
+        requests.clear();
+        return failure;
+    }
+
+    /**
+     * 不合并，逐个调用load，加载统计仍然由getAndRecordStats记录
+     */
+    void loadEach(List<Request<K, V>> requests) {
+        Throwable failure = null;
+        for (Request<K, V> request : requests) {
+            V value;
+            try {
+                value = loader.load(request.key);
+            } catch (Throwable t) {
+                if (t instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                fail(request, t);
+                continue;
+            }
+            if (value == null) {
+                fail(request, new InvalidCacheLoadException("CacheLoader returned null for key " + request.key + "."));
+            } else {
+                failure = completeAll(Collections.singletonList(request), value, failure);
+            }
+        }
+        throwIfFailed(failure);
+    }
+
+    /**
+     * 把value设置给一个key的所有请求，某个请求保存失败时只让这个请求失败
+     *
+     * @return {@code failure}，为null时返回第一个保存失败的异常
+     */
+    @Nullable
+    Throwable completeAll(List<Request<K, V>> waiters, V value, @Nullable Throwable failure) {
+        for (Request<K, V> request : waiters) {
+            try {
+                complete(request, value);
+            } catch (Throwable t) {
+                fail(request, t);
+                failure = (failure == null) ? t : failure;
+            }
+        }
+        return failure;
+    }
+
+    void complete(Request<K, V> request, V value) {
+        request.loadingValueReference.set(value);
+        try {
+            request.segment.getAndRecordStats(
+                    request.key, request.hash, request.loadingValueReference, Futures.immediateFuture(value));
+        } catch (ExecutionException e) {
+            throw new AssertionError("impossible; Futures.immediateFuture can't throw");
+        }
+    }
+
+    static void throwIfFailed(@Nullable Throwable failure) {
+        if (failure != null) {
+            Throwables.throwIfUnchecked(failure);
+            // 分发过程中只会抛出unchecked异常，loader的checked异常已经设置给了对应的请求
+            throw new AssertionError(failure);
+        }
+    }
+
+    void failAll(Iterable<List<Request<K, V>>> requests, Throwable t) {
+        for (List<Request<K, V>> waiters : requests) {
+            for (Request<K, V> request : waiters) {
+                fail(request, t);
+            }
+        }
+    }
+
+    void fail(Request<K, V> request, Throwable t) {
+        request.loadingValueReference.setException(t);
+        try {
+            request.segment.getAndRecordStats(
+                    request.key, request.hash, request.loadingValueReference, Futures.<V>immediateFailedFuture(t));
+        } catch (Throwable ignored) {
+            // getAndRecordStats removed the loading value; waiters see the exception
+        }
+    }
+}
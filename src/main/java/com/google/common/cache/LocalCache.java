@@ -27,17 +27,22 @@ import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.StreamSupport;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -82,7 +87,7 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
     static final int CONTAINS_VALUE_RETRIES = 3;
 
     /**
-     * 每次执行postReadCleanup操作时readCount都增1，
+     * 没有readBuffer时，每次执行postReadCleanup操作时readCount都增1，
      * 当其达到64时（DRAIN_THRESHOLD为0x3F，即0011 1111），引发cleanUp操作。
      * DRAIN_THRESHOLD必须为(2^n)-1作为他的值
      */
@@ -93,6 +98,16 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
      */
     static final int DRAIN_MAX = 16;
 
+    /**
+     * 提前刷新扫描table时每次持锁检查的桶数，扫描完一批就释放锁，写操作最多等待一批
+     */
+    static final int REFRESH_SCAN_BUCKETS = 64;
+
+    /**
+     * 堆外空间不足时，为一个value最多检查和淘汰的entry数
+     */
+    static final int OFF_HEAP_RECLAIM_MAX = 64;
+
 
     static final Logger logger = Logger.getLogger(LocalCache.class.getName());
 
@@ -146,6 +161,21 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
      */
     final Weigher<K, V> weigher;
 
+    /**
+     * 按容量淘汰的entry写入的二级缓存，没有设置时为null
+     */
+    final @Nullable DiskTier<K, V> diskTier;
+
+    /**
+     * 开启offHeap时value的序列化方式，其他情况为null
+     */
+    final @Nullable Serializer<V> serializer;
+
+    /**
+     * 按容量淘汰时的准入策略
+     */
+    final AdmissionPolicy admissionPolicy;
+
     /**
      * 在没有操作多久后失效.
      */
@@ -161,6 +191,66 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
      */
     final long refreshNanos;
 
+    /**
+     * 提前刷新时执行reload的线程池，没有设置refreshAhead时为null
+     */
+    final @Nullable Executor refreshExecutor;
+
+    /**
+     * 提前刷新的最大比例
+     */
+    final double refreshJitter;
+
+    /**
+     * 在refreshExecutor上reload的defaultLoader
+     */
+    final @Nullable CacheLoader<? super K, V> refreshAheadLoader;
+
+    /**
+     * 每个entry各自的过期时间，没有设置时为null
+     */
+    final @Nullable Expiry<K, V> expiry;
+
+    /**
+     * 执行清理和移除监听器的线程池，为null时在调用线程上执行
+     */
+    final @Nullable Executor maintenanceExecutor;
+
+    /**
+     * 是否已经有一个投递移除通知的任务在排队
+     */
+    final AtomicBoolean notificationPending = new AtomicBoolean();
+
+    /**
+     * 在maintenanceExecutor上投递移除通知，只创建一次
+     */
+    final Runnable notificationTask = new Runnable() {
+        @Override
+        public void run() {
+            notificationPending.set(false);
+            processPendingNotifications();
+        }
+    };
+
+    /**
+     * 是否已经有一个提前刷新的扫描任务在排队或者执行
+     */
+    final AtomicBoolean refreshAheadPending = new AtomicBoolean();
+
+    /**
+     * 在maintenanceExecutor上扫描需要提前刷新的entry，只创建一次
+     */
+    final Runnable refreshAheadTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                refreshAhead();
+            } finally {
+                refreshAheadPending.set(false);
+            }
+        }
+    };
+
     /**
      * 等待被移除监听器消费的队列.
      */
@@ -171,6 +261,11 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
      */
     final RemovalListener<K, V> removalListener;
 
+    /**
+     * 设置了removalExecutor时异步批量投递移除通知，此时removalNotificationQueue不再使用
+     */
+    final @Nullable RemovalPipeline<K, V> removalPipeline;
+
     /**
      * 时钟，可以修改的时间戳
      */
@@ -191,6 +286,21 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
      */
     final @Nullable CacheLoader<? super K, V> defaultLoader;
 
+    /**
+     * 合并并发的未命中，只有设置了coalesceLoads并且有defaultLoader时才不为null
+     */
+    final @Nullable LoadCoalescer<K, V> loadCoalescer;
+
+    /**
+     * 堆内存压力下收缩容量，只有设置了evictOnMemoryPressure时才不为null
+     */
+    final @Nullable MemorySentinel memorySentinel;
+
+    /**
+     * 加载失败的结果，只有设置了negativeCaching时才不为null
+     */
+    final @Nullable NegativeCache negativeCache;
+
     /**
      * 创建一个新的LocalCache，从builder获取参数
      */
@@ -206,20 +316,41 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
 
         maxWeight = builder.getMaximumWeight();
         weigher = builder.getWeigher();
+        serializer = builder.getSerializer();
+        diskTier = builder.getDiskTier();
+        admissionPolicy = builder.getAdmissionPolicy();
         expireAfterAccessNanos = builder.getExpireAfterAccessNanos();
         expireAfterWriteNanos = builder.getExpireAfterWriteNanos();
         refreshNanos = builder.getRefreshNanos();
+        refreshExecutor = builder.getRefreshExecutor();
+        refreshJitter = builder.getRefreshJitter();
+        expiry = builder.getExpiry();
+        maintenanceExecutor = builder.getMaintenanceExecutor();
 
         removalListener = builder.getRemovalListener();
+        removalPipeline = (removalListener != CacheBuilder.NullListener.INSTANCE && builder.removalExecutor != null)
+                ? new RemovalPipeline<K, V>(removalListener, builder.removalExecutor, builder.removalQueueCapacity,
+                builder.removalOverflowPolicy)
+                : null;
         removalNotificationQueue =
-                (removalListener == CacheBuilder.NullListener.INSTANCE)
+                (removalListener == CacheBuilder.NullListener.INSTANCE || removalPipeline != null)
                         ? LocalCache.<RemovalNotification<K, V>>discardingQueue()
                         : new ConcurrentLinkedQueue<RemovalNotification<K, V>>();
 
         ticker = builder.getTicker(recordsTime());
-        entryFactory = EntryFactory.getFactory(keyStrength, usesAccessEntries(), usesWriteEntries());
+        entryFactory = EntryFactory.getFactory(keyStrength,
+                usesAccessQueue(), recordsAccess(), usesWriteQueue(), recordsWrite(), expiresVariably());
         globalStatsCounter = builder.getStatsCounterSupplier().get();
         defaultLoader = loader;
+        refreshAheadLoader = (loader != null && refreshExecutor != null)
+                ? CacheLoader.asyncReloading(loader, refreshExecutor)
+                : null;
+        negativeCache = (builder.negativeTtlNanos != UNSET_INT)
+                ? new NegativeCache(builder.negativeTtlNanos, builder.negativeMaxTtlNanos, builder.getTicker(true))
+                : null;
+        loadCoalescer = (loader != null && builder.coalescesLoads())
+                ? new LoadCoalescer<K, V>(this, loader, builder.coalesceWindowNanos, builder.coalesceBatchSize)
+                : null;
         //最大的容量为MAXIMUM_CAPACITY
         int initialCapacity = Math.min(builder.getInitialCapacity(), MAXIMUM_CAPACITY);
         if (evictsBySize() && !customWeigher()) {
@@ -267,6 +398,62 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
                 this.segments[i] = createSegment(segmentSize, UNSET_INT, builder.getStatsCounterSupplier().get());
             }
         }
+
+        ScheduledExecutorService scheduler = builder.getScheduler();
+        if (scheduler != null) {
+            schedulePeriodicCleanUp(scheduler);
+        }
+
+        memorySentinel = (builder.memoryUsageThreshold != UNSET_INT)
+                ? MemorySentinel.register(this, builder.memoryUsageThreshold)
+                : null;
+
+        Path snapshot = builder.getWarmSnapshot();
+        if (snapshot != null) {
+            CacheSnapshot.<K, V>warm(this, snapshot, builder.getWarmKeySerializer(), builder.getWarmValueSerializer());
+        }
+    }
+
+    /**
+     * 时间轮最小的桶跨度约为1秒，按这个间隔定时清理
+     */
+    static final long CLEANUP_INTERVAL_NANOS = TimerWheel.SPANS[0];
+
+    /**
+     * 定时任务只持有cache的弱引用，cache被回收后取消自身
+     */
+    void schedulePeriodicCleanUp(ScheduledExecutorService scheduler) {
+        PeriodicCleanUp task = new PeriodicCleanUp(this);
+        task.future = scheduler.scheduleWithFixedDelay(task, CLEANUP_INTERVAL_NANOS, CLEANUP_INTERVAL_NANOS, NANOSECONDS);
+    }
+
+    /**
+     * 定时清理任务，必须是静态类：匿名类会持有{@code LocalCache.this}，scheduler引用着任务，cache就永远不会被回收
+     */
+    static final class PeriodicCleanUp implements Runnable {
+        final WeakReference<LocalCache<?, ?>> cacheRef;
+        volatile @Nullable Future<?> future;
+
+        PeriodicCleanUp(LocalCache<?, ?> cache) {
+            this.cacheRef = new WeakReference<LocalCache<?, ?>>(cache);
+        }
+
+        @Override
+        public void run() {
+            LocalCache<?, ?> cache = cacheRef.get();
+            if (cache == null) {
+                Future<?> future = this.future;
+                if (future != null) {
+                    future.cancel(false);
+                }
+                return;
+            }
+            try {
+                cache.scheduleCleanUp();
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "Exception thrown during scheduled cleanup", t);
+            }
+        }
     }
 
     /**
@@ -277,7 +464,21 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
     }
 
     boolean customWeigher() {
-        return weigher != CacheBuilder.OneWeigher.INSTANCE;
+        return weigher != CacheBuilder.OneWeigher.INSTANCE || storesOffHeap();
+    }
+
+    /**
+     * @return value是否序列化后保存在堆外
+     */
+    boolean storesOffHeap() {
+        return serializer != null;
+    }
+
+    /**
+     * @return 是否使用TinyLFU准入
+     */
+    boolean usesFrequencySketch() {
+        return evictsBySize() && admissionPolicy == AdmissionPolicy.TINY_LFU;
     }
 
     /**
@@ -299,10 +500,46 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
         return expireAfterAccessNanos > 0;
     }
 
+    /**
+     * @return 是否开启了每个entry各自的过期时间
+     */
+    boolean expiresVariably() {
+        return expiry != null;
+    }
+
     boolean refreshes() {
         return refreshNanos > 0;
     }
 
+    /**
+     * @return 是否在refreshExecutor上提前刷新
+     */
+    boolean refreshesAhead() {
+        return refreshes() && refreshExecutor != null;
+    }
+
+    /**
+     * 写入多久之后需要刷新，提前刷新时按hash在[refreshNanos * (1 - jitter), refreshNanos]之间打散
+     */
+    long refreshThreshold(int hash) {
+        if (refreshExecutor == null) {
+            return refreshNanos;
+        }
+        // 取rehash的高24位作为[0, 1)之间的均匀分布
+        double fraction = (rehash(hash) >>> 8) / (double) (1 << 24);
+        return refreshNanos - (long) (refreshNanos * refreshJitter * fraction);
+    }
+
+    /**
+     * 刷新使用的loader，提前刷新时reload在refreshExecutor上执行
+     */
+    CacheLoader<? super K, V> refreshLoader(CacheLoader<? super K, V> loader) {
+        if (refreshExecutor == null) {
+            return loader;
+        }
+        return (loader == defaultLoader) ? refreshAheadLoader : CacheLoader.asyncReloading(loader, refreshExecutor);
+    }
+
     boolean usesAccessQueue() {
         return expiresAfterAccess() || evictsBySize();
     }
@@ -316,11 +553,11 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
     }
 
     boolean recordsAccess() {
-        return expiresAfterAccess();
+        return expiresAfterAccess() || refreshesAhead();
     }
 
     boolean recordsTime() {
-        return recordsWrite() || recordsAccess();
+        return recordsWrite() || recordsAccess() || expiresVariably();
     }
 
     boolean usesWriteEntries() {
@@ -516,6 +753,164 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
                 copyWriteEntry(original, newEntry);
                 return newEntry;
             }
+        },
+        STRONG_ORDERED {
+            @Override
+            <K, V> ReferenceEntry<K, V> newEntry(Segment<K, V> segment, K key, int hash,
+                                                 @Nullable ReferenceEntry<K, V> next) {
+                return new StrongOrderedEntry<>(key, hash, next);
+            }
+
+            @Override
+            <K, V> ReferenceEntry<K, V> copyEntry(Segment<K, V> segment, ReferenceEntry<K, V> original,
+                                                  ReferenceEntry<K, V> newNext) {
+                ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+                copyAccessOrder(original, newEntry);
+                return newEntry;
+            }
+        },
+        STRONG_ORDERED_WRITE {
+            @Override
+            <K, V> ReferenceEntry<K, V> newEntry(Segment<K, V> segment, K key, int hash,
+                                                 @Nullable ReferenceEntry<K, V> next) {
+                return new StrongOrderedWriteEntry<>(key, hash, next);
+            }
+
+            @Override
+            <K, V> ReferenceEntry<K, V> copyEntry(Segment<K, V> segment, ReferenceEntry<K, V> original,
+                                                  ReferenceEntry<K, V> newNext) {
+                ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+                copyAccessOrder(original, newEntry);
+                copyWriteEntry(original, newEntry);
+                return newEntry;
+            }
+        },
+        STRONG_WRITE_TIME {
+            @Override
+            <K, V> ReferenceEntry<K, V> newEntry(Segment<K, V> segment, K key, int hash,
+                                                 @Nullable ReferenceEntry<K, V> next) {
+                return new StrongWriteTimeEntry<>(key, hash, next);
+            }
+
+            @Override
+            <K, V> ReferenceEntry<K, V> copyEntry(Segment<K, V> segment, ReferenceEntry<K, V> original,
+                                                  ReferenceEntry<K, V> newNext) {
+                ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+                copyWriteTime(original, newEntry);
+                return newEntry;
+            }
+        },
+        STRONG_ORDERED_WRITE_TIME {
+            @Override
+            <K, V> ReferenceEntry<K, V> newEntry(Segment<K, V> segment, K key, int hash,
+                                                 @Nullable ReferenceEntry<K, V> next) {
+                return new StrongOrderedWriteTimeEntry<>(key, hash, next);
+            }
+
+            @Override
+            <K, V> ReferenceEntry<K, V> copyEntry(Segment<K, V> segment, ReferenceEntry<K, V> original,
+                                                  ReferenceEntry<K, V> newNext) {
+                ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+                copyAccessOrder(original, newEntry);
+                copyWriteTime(original, newEntry);
+                return newEntry;
+            }
+        },
+        WEAK_ORDERED {
+            @Override
+            <K, V> ReferenceEntry<K, V> newEntry(Segment<K, V> segment, K key, int hash,
+                                                 @Nullable ReferenceEntry<K, V> next) {
+                return new WeakOrderedEntry<>(segment.keyReferenceQueue, key, hash, next);
+            }
+
+            @Override
+            <K, V> ReferenceEntry<K, V> copyEntry(Segment<K, V> segment, ReferenceEntry<K, V> original,
+                                                  ReferenceEntry<K, V> newNext) {
+                ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+                copyAccessOrder(original, newEntry);
+                return newEntry;
+            }
+        },
+        WEAK_ORDERED_WRITE {
+            @Override
+            <K, V> ReferenceEntry<K, V> newEntry(Segment<K, V> segment, K key, int hash,
+                                                 @Nullable ReferenceEntry<K, V> next) {
+                return new WeakOrderedWriteEntry<>(segment.keyReferenceQueue, key, hash, next);
+            }
+
+            @Override
+            <K, V> ReferenceEntry<K, V> copyEntry(Segment<K, V> segment, ReferenceEntry<K, V> original,
+                                                  ReferenceEntry<K, V> newNext) {
+                ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+                copyAccessOrder(original, newEntry);
+                copyWriteEntry(original, newEntry);
+                return newEntry;
+            }
+        },
+        WEAK_WRITE_TIME {
+            @Override
+            <K, V> ReferenceEntry<K, V> newEntry(Segment<K, V> segment, K key, int hash,
+                                                 @Nullable ReferenceEntry<K, V> next) {
+                return new WeakWriteTimeEntry<>(segment.keyReferenceQueue, key, hash, next);
+            }
+
+            @Override
+            <K, V> ReferenceEntry<K, V> copyEntry(Segment<K, V> segment, ReferenceEntry<K, V> original,
+                                                  ReferenceEntry<K, V> newNext) {
+                ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+                copyWriteTime(original, newEntry);
+                return newEntry;
+            }
+        },
+        WEAK_ORDERED_WRITE_TIME {
+            @Override
+            <K, V> ReferenceEntry<K, V> newEntry(Segment<K, V> segment, K key, int hash,
+                                                 @Nullable ReferenceEntry<K, V> next) {
+                return new WeakOrderedWriteTimeEntry<>(segment.keyReferenceQueue, key, hash, next);
+            }
+
+            @Override
+            <K, V> ReferenceEntry<K, V> copyEntry(Segment<K, V> segment, ReferenceEntry<K, V> original,
+                                                  ReferenceEntry<K, V> newNext) {
+                ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+                copyAccessOrder(original, newEntry);
+                copyWriteTime(original, newEntry);
+                return newEntry;
+            }
+        },
+        STRONG_TIMER {
+            @Override
+            <K, V> ReferenceEntry<K, V> newEntry(Segment<K, V> segment, K key, int hash,
+                                                 @Nullable ReferenceEntry<K, V> next) {
+                return new StrongTimerEntry<>(key, hash, next);
+            }
+
+            @Override
+            <K, V> ReferenceEntry<K, V> copyEntry(Segment<K, V> segment, ReferenceEntry<K, V> original,
+                                                  ReferenceEntry<K, V> newNext) {
+                ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+                copyAccessEntry(original, newEntry);
+                copyWriteEntry(original, newEntry);
+                copyTimer(original, newEntry);
+                return newEntry;
+            }
+        },
+        WEAK_TIMER {
+            @Override
+            <K, V> ReferenceEntry<K, V> newEntry(Segment<K, V> segment, K key, int hash,
+                                                 @Nullable ReferenceEntry<K, V> next) {
+                return new WeakTimerEntry<>(segment.keyReferenceQueue, key, hash, next);
+            }
+
+            @Override
+            <K, V> ReferenceEntry<K, V> copyEntry(Segment<K, V> segment, ReferenceEntry<K, V> original,
+                                                  ReferenceEntry<K, V> newNext) {
+                ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+                copyAccessEntry(original, newEntry);
+                copyWriteEntry(original, newEntry);
+                copyTimer(original, newEntry);
+                return newEntry;
+            }
         };
 
         // Masks used to compute indices in the following table.
@@ -547,6 +942,34 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             return factories[flags];
         }
 
+        /**
+         * 按实际用到的字段选择entry的布局
+         *
+         * 只按大小淘汰时entry只需要访问队列的指针，不需要accessTime；只配置refreshAfterWrite时只需要writeTime，
+         * 不需要写队列的指针。这些组合使用去掉了多余字段的entry，其余组合和{@link #getFactory(Strength, boolean, boolean)}一样。
+         * 每个entry各自过期时使用带时间轮节点的entry。
+         */
+        static EntryFactory getFactory(Strength keyStrength, boolean usesAccessQueue, boolean recordsAccess,
+                                       boolean usesWriteQueue, boolean recordsWrite, boolean expiresVariably) {
+            boolean weak = keyStrength == Strength.WEAK;
+            if (expiresVariably) {
+                return weak ? WEAK_TIMER : STRONG_TIMER;
+            }
+            if (!recordsAccess && recordsWrite && !usesWriteQueue) {
+                if (usesAccessQueue) {
+                    return weak ? WEAK_ORDERED_WRITE_TIME : STRONG_ORDERED_WRITE_TIME;
+                }
+                return weak ? WEAK_WRITE_TIME : STRONG_WRITE_TIME;
+            }
+            if (usesAccessQueue && !recordsAccess) {
+                if (usesWriteQueue) {
+                    return weak ? WEAK_ORDERED_WRITE : STRONG_ORDERED_WRITE;
+                }
+                return weak ? WEAK_ORDERED : STRONG_ORDERED;
+            }
+            return getFactory(keyStrength, usesAccessQueue || recordsAccess, usesWriteQueue || recordsWrite);
+        }
+
         /**
          * 创建一个新的entry
          *
@@ -582,11 +1005,42 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             nullifyAccessOrder(original);
         }
 
+        /**
+         * 只复制访问队列中的位置，用于没有accessTime字段的entry
+         */
         // Guarded By Segment.this
-        <K, V> void copyWriteEntry(ReferenceEntry<K, V> original, ReferenceEntry<K, V> newEntry) {
-            // TODO(fry): when we link values instead of entries this method can go
-            // away, as can connectWriteOrder, nullifyWriteOrder.
-            newEntry.setWriteTime(original.getWriteTime());
+        <K, V> void copyAccessOrder(ReferenceEntry<K, V> original, ReferenceEntry<K, V> newEntry) {
+            connectAccessOrder(original.getPreviousInAccessQueue(), newEntry);
+            connectAccessOrder(newEntry, original.getNextInAccessQueue());
+
+            nullifyAccessOrder(original);
+        }
+
+        /**
+         * 把时间轮节点转移到新的entry上
+         */
+        // Guarded By Segment.this
+        <K, V> void copyTimer(ReferenceEntry<K, V> original, ReferenceEntry<K, V> newEntry) {
+            TimerWheel.Node<K, V> timer = timerOf(original);
+            if (timer != null) {
+                timer.entry = newEntry;
+                setTimer(newEntry, timer);
+                setTimer(original, null);
+            }
+        }
+
+        /**
+         * 只复制写入时间，用于不在写队列中的entry
+         */
+        <K, V> void copyWriteTime(ReferenceEntry<K, V> original, ReferenceEntry<K, V> newEntry) {
+            newEntry.setWriteTime(original.getWriteTime());
+        }
+
+        // Guarded By Segment.this
+        <K, V> void copyWriteEntry(ReferenceEntry<K, V> original, ReferenceEntry<K, V> newEntry) {
+            // TODO(fry): when we link values instead of entries this method can go
+            // away, as can connectWriteOrder, nullifyWriteOrder.
+            newEntry.setWriteTime(original.getWriteTime());
 
             connectWriteOrder(original.getPreviousInWriteQueue(), newEntry);
             connectWriteOrder(newEntry, original.getNextInWriteQueue());
@@ -1072,7 +1526,7 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
     /**
      * 重写了关于Access和Write的方法
      */
-    static final class StrongAccessWriteEntry<K, V> extends StrongEntry<K, V> {
+    static class StrongAccessWriteEntry<K, V> extends StrongEntry<K, V> {
         StrongAccessWriteEntry(K key, int hash, @Nullable ReferenceEntry<K, V> next) {
             super(key, hash, next);
         }
@@ -1158,6 +1612,212 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
         }
     }
 
+    /**
+     * 持有时间轮节点的entry，用于每个entry各自过期的缓存
+     *
+     * 节点直接放在entry上，读操作更新过期时间时不需要额外的查找
+     */
+    interface TimerEntry<K, V> {
+        TimerWheel.@Nullable Node<K, V> getTimer();
+
+        void setTimer(TimerWheel.@Nullable Node<K, V> timer);
+    }
+
+    static final class StrongTimerEntry<K, V> extends StrongAccessWriteEntry<K, V> implements TimerEntry<K, V> {
+        StrongTimerEntry(K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            super(key, hash, next);
+        }
+
+        // 读操作无锁地读取，写操作持有Segment的锁
+        volatile TimerWheel.@Nullable Node<K, V> timer;
+
+        @Override
+        public TimerWheel.@Nullable Node<K, V> getTimer() {
+            return timer;
+        }
+
+        @Override
+        public void setTimer(TimerWheel.@Nullable Node<K, V> timer) {
+            this.timer = timer;
+        }
+    }
+
+    /**
+     * 只在访问队列中排序，没有accessTime字段，用于只按大小淘汰、不按访问时间过期的缓存
+     */
+    static final class StrongOrderedEntry<K, V> extends StrongEntry<K, V> {
+        StrongOrderedEntry(K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            super(key, hash, next);
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> nextAccess = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getNextInAccessQueue() {
+            return nextAccess;
+        }
+
+        @Override
+        public void setNextInAccessQueue(ReferenceEntry<K, V> next) {
+            this.nextAccess = next;
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> previousAccess = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getPreviousInAccessQueue() {
+            return previousAccess;
+        }
+
+        @Override
+        public void setPreviousInAccessQueue(ReferenceEntry<K, V> previous) {
+            this.previousAccess = previous;
+        }
+    }
+
+    /**
+     * 在访问队列中排序但没有accessTime字段，写入时间和写队列和WriteEntry一样
+     */
+    static final class StrongOrderedWriteEntry<K, V> extends StrongEntry<K, V> {
+        StrongOrderedWriteEntry(K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            super(key, hash, next);
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> nextAccess = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getNextInAccessQueue() {
+            return nextAccess;
+        }
+
+        @Override
+        public void setNextInAccessQueue(ReferenceEntry<K, V> next) {
+            this.nextAccess = next;
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> previousAccess = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getPreviousInAccessQueue() {
+            return previousAccess;
+        }
+
+        @Override
+        public void setPreviousInAccessQueue(ReferenceEntry<K, V> previous) {
+            this.previousAccess = previous;
+        }
+
+        volatile long writeTime = Long.MAX_VALUE;
+
+        @Override
+        public long getWriteTime() {
+            return writeTime;
+        }
+
+        @Override
+        public void setWriteTime(long time) {
+            this.writeTime = time;
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> nextWrite = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getNextInWriteQueue() {
+            return nextWrite;
+        }
+
+        @Override
+        public void setNextInWriteQueue(ReferenceEntry<K, V> next) {
+            this.nextWrite = next;
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> previousWrite = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getPreviousInWriteQueue() {
+            return previousWrite;
+        }
+
+        @Override
+        public void setPreviousInWriteQueue(ReferenceEntry<K, V> previous) {
+            this.previousWrite = previous;
+        }
+    }
+
+    /**
+     * 只记录写入时间，不在写队列中，用于只配置了refreshAfterWrite的缓存
+     */
+    static final class StrongWriteTimeEntry<K, V> extends StrongEntry<K, V> {
+        StrongWriteTimeEntry(K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            super(key, hash, next);
+        }
+
+        volatile long writeTime = Long.MAX_VALUE;
+
+        @Override
+        public long getWriteTime() {
+            return writeTime;
+        }
+
+        @Override
+        public void setWriteTime(long time) {
+            this.writeTime = time;
+        }
+    }
+
+    /**
+     * 在访问队列中排序并记录写入时间，用于按大小淘汰并且refreshAfterWrite、不按时间过期的缓存
+     */
+    static final class StrongOrderedWriteTimeEntry<K, V> extends StrongEntry<K, V> {
+        StrongOrderedWriteTimeEntry(K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            super(key, hash, next);
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> nextAccess = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getNextInAccessQueue() {
+            return nextAccess;
+        }
+
+        @Override
+        public void setNextInAccessQueue(ReferenceEntry<K, V> next) {
+            this.nextAccess = next;
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> previousAccess = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getPreviousInAccessQueue() {
+            return previousAccess;
+        }
+
+        @Override
+        public void setPreviousInAccessQueue(ReferenceEntry<K, V> previous) {
+            this.previousAccess = previous;
+        }
+
+        volatile long writeTime = Long.MAX_VALUE;
+
+        @Override
+        public long getWriteTime() {
+            return writeTime;
+        }
+
+        @Override
+        public void setWriteTime(long time) {
+            this.writeTime = time;
+        }
+    }
+
     /**
      * 继承了WeakReference，弱引用
      */
@@ -1319,14 +1979,234 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
     }
 
     /**
-     * 重写了关于Write的方法
+     * 重写了关于Write的方法
+     */
+    static final class WeakWriteEntry<K, V> extends WeakEntry<K, V> {
+        WeakWriteEntry(ReferenceQueue<K> queue, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            super(queue, key, hash, next);
+        }
+
+        // The code below is exactly the same for each write entry type.
+
+        volatile long writeTime = Long.MAX_VALUE;
+
+        @Override
+        public long getWriteTime() {
+            return writeTime;
+        }
+
+        @Override
+        public void setWriteTime(long time) {
+            this.writeTime = time;
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> nextWrite = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getNextInWriteQueue() {
+            return nextWrite;
+        }
+
+        @Override
+        public void setNextInWriteQueue(ReferenceEntry<K, V> next) {
+            this.nextWrite = next;
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> previousWrite = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getPreviousInWriteQueue() {
+            return previousWrite;
+        }
+
+        @Override
+        public void setPreviousInWriteQueue(ReferenceEntry<K, V> previous) {
+            this.previousWrite = previous;
+        }
+    }
+
+    /**
+     * 重写了关于Access和Write的方法
+     */
+    static class WeakAccessWriteEntry<K, V> extends WeakEntry<K, V> {
+        WeakAccessWriteEntry(
+                ReferenceQueue<K> queue, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            super(queue, key, hash, next);
+        }
+
+        // The code below is exactly the same for each access entry type.
+
+        volatile long accessTime = Long.MAX_VALUE;
+
+        @Override
+        public long getAccessTime() {
+            return accessTime;
+        }
+
+        @Override
+        public void setAccessTime(long time) {
+            this.accessTime = time;
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> nextAccess = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getNextInAccessQueue() {
+            return nextAccess;
+        }
+
+        @Override
+        public void setNextInAccessQueue(ReferenceEntry<K, V> next) {
+            this.nextAccess = next;
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> previousAccess = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getPreviousInAccessQueue() {
+            return previousAccess;
+        }
+
+        @Override
+        public void setPreviousInAccessQueue(ReferenceEntry<K, V> previous) {
+            this.previousAccess = previous;
+        }
+
+        // The code below is exactly the same for each write entry type.
+
+        volatile long writeTime = Long.MAX_VALUE;
+
+        @Override
+        public long getWriteTime() {
+            return writeTime;
+        }
+
+        @Override
+        public void setWriteTime(long time) {
+            this.writeTime = time;
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> nextWrite = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getNextInWriteQueue() {
+            return nextWrite;
+        }
+
+        @Override
+        public void setNextInWriteQueue(ReferenceEntry<K, V> next) {
+            this.nextWrite = next;
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> previousWrite = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getPreviousInWriteQueue() {
+            return previousWrite;
+        }
+
+        @Override
+        public void setPreviousInWriteQueue(ReferenceEntry<K, V> previous) {
+            this.previousWrite = previous;
+        }
+    }
+
+    /**
+     * 持有时间轮节点的entry，见{@link StrongTimerEntry}
+     */
+    static final class WeakTimerEntry<K, V> extends WeakAccessWriteEntry<K, V> implements TimerEntry<K, V> {
+        WeakTimerEntry(ReferenceQueue<K> queue, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            super(queue, key, hash, next);
+        }
+
+        // 读操作无锁地读取，写操作持有Segment的锁
+        volatile TimerWheel.@Nullable Node<K, V> timer;
+
+        @Override
+        public TimerWheel.@Nullable Node<K, V> getTimer() {
+            return timer;
+        }
+
+        @Override
+        public void setTimer(TimerWheel.@Nullable Node<K, V> timer) {
+            this.timer = timer;
+        }
+    }
+
+    /**
+     * 只在访问队列中排序，没有accessTime字段，用于只按大小淘汰、不按访问时间过期的缓存
+     */
+    static final class WeakOrderedEntry<K, V> extends WeakEntry<K, V> {
+        WeakOrderedEntry(ReferenceQueue<K> queue, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            super(queue, key, hash, next);
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> nextAccess = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getNextInAccessQueue() {
+            return nextAccess;
+        }
+
+        @Override
+        public void setNextInAccessQueue(ReferenceEntry<K, V> next) {
+            this.nextAccess = next;
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> previousAccess = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getPreviousInAccessQueue() {
+            return previousAccess;
+        }
+
+        @Override
+        public void setPreviousInAccessQueue(ReferenceEntry<K, V> previous) {
+            this.previousAccess = previous;
+        }
+    }
+
+    /**
+     * 在访问队列中排序但没有accessTime字段，写入时间和写队列和WriteEntry一样
      */
-    static final class WeakWriteEntry<K, V> extends WeakEntry<K, V> {
-        WeakWriteEntry(ReferenceQueue<K> queue, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+    static final class WeakOrderedWriteEntry<K, V> extends WeakEntry<K, V> {
+        WeakOrderedWriteEntry(ReferenceQueue<K> queue, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
             super(queue, key, hash, next);
         }
 
-        // The code below is exactly the same for each write entry type.
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> nextAccess = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getNextInAccessQueue() {
+            return nextAccess;
+        }
+
+        @Override
+        public void setNextInAccessQueue(ReferenceEntry<K, V> next) {
+            this.nextAccess = next;
+        }
+
+        // Guarded By Segment.this
+        ReferenceEntry<K, V> previousAccess = nullEntry();
+
+        @Override
+        public ReferenceEntry<K, V> getPreviousInAccessQueue() {
+            return previousAccess;
+        }
+
+        @Override
+        public void setPreviousInAccessQueue(ReferenceEntry<K, V> previous) {
+            this.previousAccess = previous;
+        }
 
         volatile long writeTime = Long.MAX_VALUE;
 
@@ -1368,26 +2248,32 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
     }
 
     /**
-     * 重写了关于Access和Write的方法
+     * 只记录写入时间，不在写队列中，用于只配置了refreshAfterWrite的缓存
      */
-    static final class WeakAccessWriteEntry<K, V> extends WeakEntry<K, V> {
-        WeakAccessWriteEntry(
-                ReferenceQueue<K> queue, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+    static final class WeakWriteTimeEntry<K, V> extends WeakEntry<K, V> {
+        WeakWriteTimeEntry(ReferenceQueue<K> queue, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
             super(queue, key, hash, next);
         }
 
-        // The code below is exactly the same for each access entry type.
-
-        volatile long accessTime = Long.MAX_VALUE;
+        volatile long writeTime = Long.MAX_VALUE;
 
         @Override
-        public long getAccessTime() {
-            return accessTime;
+        public long getWriteTime() {
+            return writeTime;
         }
 
         @Override
-        public void setAccessTime(long time) {
-            this.accessTime = time;
+        public void setWriteTime(long time) {
+            this.writeTime = time;
+        }
+    }
+
+    /**
+     * 在访问队列中排序并记录写入时间，用于按大小淘汰并且refreshAfterWrite、不按时间过期的缓存
+     */
+    static final class WeakOrderedWriteTimeEntry<K, V> extends WeakEntry<K, V> {
+        WeakOrderedWriteTimeEntry(ReferenceQueue<K> queue, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            super(queue, key, hash, next);
         }
 
         // Guarded By Segment.this
@@ -1416,8 +2302,6 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             this.previousAccess = previous;
         }
 
-        // The code below is exactly the same for each write entry type.
-
         volatile long writeTime = Long.MAX_VALUE;
 
         @Override
@@ -1429,32 +2313,6 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
         public void setWriteTime(long time) {
             this.writeTime = time;
         }
-
-        // Guarded By Segment.this
-        ReferenceEntry<K, V> nextWrite = nullEntry();
-
-        @Override
-        public ReferenceEntry<K, V> getNextInWriteQueue() {
-            return nextWrite;
-        }
-
-        @Override
-        public void setNextInWriteQueue(ReferenceEntry<K, V> next) {
-            this.nextWrite = next;
-        }
-
-        // Guarded By Segment.this
-        ReferenceEntry<K, V> previousWrite = nullEntry();
-
-        @Override
-        public ReferenceEntry<K, V> getPreviousInWriteQueue() {
-            return previousWrite;
-        }
-
-        @Override
-        public void setPreviousInWriteQueue(ReferenceEntry<K, V> previous) {
-            this.previousWrite = previous;
-        }
     }
 
     /**
@@ -1666,6 +2524,84 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
         }
     }
 
+    /**
+     * 堆外暂时没有空间、等待移回堆外的value，保留序列化后的字节，移回时不需要再次序列化
+     */
+    static final class PendingOffHeapValueReference<K, V> extends StrongValueReference<K, V> {
+        final byte[] bytes;
+        final int weight;
+
+        PendingOffHeapValueReference(V referent, byte[] bytes, int weight) {
+            super(referent);
+            this.bytes = bytes;
+            this.weight = weight;
+        }
+
+        @Override
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    /**
+     * 保存在堆外的value，堆上只有handle
+     *
+     * 每次get都从堆外读取并反序列化；chunk已经被释放时返回null，和value被回收一样处理
+     */
+    static final class OffHeapValueReference<K, V> implements ValueReference<K, V> {
+        final OffHeapStore store;
+        final Serializer<V> serializer;
+        final long handle;
+        final int weight;
+
+        OffHeapValueReference(OffHeapStore store, Serializer<V> serializer, long handle, int weight) {
+            this.store = store;
+            this.serializer = serializer;
+            this.handle = handle;
+            this.weight = weight;
+        }
+
+        @Override
+        public @Nullable V get() {
+            byte[] bytes = store.read(handle);
+            return (bytes == null) ? null : serializer.deserialize(bytes);
+        }
+
+        @Override
+        public int getWeight() {
+            return weight;
+        }
+
+        @Override
+        public ReferenceEntry<K, V> getEntry() {
+            return null;
+        }
+
+        @Override
+        public ValueReference<K, V> copyFor(ReferenceQueue<V> queue, V value, ReferenceEntry<K, V> entry) {
+            return this;
+        }
+
+        @Override
+        public boolean isLoading() {
+            return false;
+        }
+
+        @Override
+        public boolean isActive() {
+            return true;
+        }
+
+        @Override
+        public V waitForValue() {
+            return get();
+        }
+
+        @Override
+        public void notifyNewValue(V newValue) {
+        }
+    }
+
     /**
      * 扰动函数
      */
@@ -1784,9 +2720,27 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
         if (expiresAfterWrite() && (now - entry.getWriteTime() >= expireAfterWriteNanos)) {
             return true;
         }
+        if (expiresVariably()) {
+            TimerWheel.Node<K, V> timer = timerOf(entry);
+            return timer != null && (now - timer.time >= 0);
+        }
         return false;
     }
 
+    /**
+     * @return entry在时间轮中的节点，没有调度过或者不是{@link TimerEntry}时返回null
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> TimerWheel.@Nullable Node<K, V> timerOf(ReferenceEntry<K, V> entry) {
+        return (entry instanceof TimerEntry) ? ((TimerEntry<K, V>) entry).getTimer() : null;
+    }
+
+    // Guarded By Segment.this
+    @SuppressWarnings("unchecked")
+    static <K, V> void setTimer(ReferenceEntry<K, V> entry, TimerWheel.@Nullable Node<K, V> timer) {
+        ((TimerEntry<K, V>) entry).setTimer(timer);
+    }
+
     // queues
 
     // Guarded By Segment.this
@@ -1815,10 +2769,33 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
         nulled.setPreviousInWriteQueue(nullEntry);
     }
 
+    /**
+     * 有maintenanceExecutor时把移除通知交给它投递，否则在当前线程投递
+     */
+    void dispatchPendingNotifications() {
+        if (removalPipeline != null) {
+            removalPipeline.dispatch();
+        } else if (maintenanceExecutor == null) {
+            processPendingNotifications();
+        } else if (!removalNotificationQueue.isEmpty() && notificationPending.compareAndSet(false, true)) {
+            try {
+                maintenanceExecutor.execute(notificationTask);
+            } catch (RejectedExecutionException e) {
+                notificationPending.set(false);
+                logger.log(Level.WARNING, "Exception thrown when submitting removal notifications", e);
+                processPendingNotifications();
+            }
+        }
+    }
+
     /**
      * 消费removalNotificationQueue队列
      */
     void processPendingNotifications() {
+        if (removalPipeline != null) {
+            removalPipeline.dispatch();
+            return;
+        }
         RemovalNotification<K, V> notification;
         while ((notification = removalNotificationQueue.poll()) != null) {
             try {
@@ -1861,6 +2838,11 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
 
         int modCount;
 
+        /**
+         * 二级缓存中属于这个Segment的记录的版本，每次clear加一，之前写入二级缓存的记录不再返回
+         */
+        volatile int diskTierEpoch;
+
         /**
          * 阈值，大于这个值时就需要扩容，一般为capacity的0.75
          */
@@ -1887,11 +2869,16 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
         final @Nullable ReferenceQueue<V> valueReferenceQueue;
 
         /**
-         * recencyQueue启用条件和accessQueue一样。
-         * recencyQueue是为accessQueue服务的,在无锁的情况使用recencyQueue
-         * recencyQueue是ConcurrentLinkedQueue,无需加锁，可提高效率
+         * readBuffer启用条件和accessQueue一样。
+         * readBuffer是为accessQueue服务的,在无锁的情况下记录读操作，
+         * 有界且有损，读不分配对象，缓冲区满时丢弃访问记录，持有锁时再批量移动到accessQueue
+         */
+        final @Nullable ReadBuffer<ReferenceEntry<K, V>> readBuffer;
+
+        /**
+         * 消费readBuffer时使用，只创建一次，避免每次drain都分配lambda
          */
-        final Queue<ReferenceEntry<K, V>> recencyQueue;
+        final Consumer<ReferenceEntry<K, V>> readBufferDrainer = this::onAccess;
 
         /**
          * 自从上次写操作之后被读的次数
@@ -1915,6 +2902,67 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
          */
         final StatsCounter statsCounter;
 
+        /**
+         * TinyLFU准入时使用的频率统计，其他情况为null
+         */
+        @GuardedBy("this")
+        final @Nullable FrequencySketch sketch;
+
+        /**
+         * 开启expireAfter(Expiry)时按过期时间组织entry的时间轮，其他情况为null
+         */
+        @GuardedBy("this")
+        final @Nullable TimerWheel<K, V> timerWheel;
+
+        /**
+         * 是否已经有一个清理任务在maintenanceExecutor中排队
+         */
+        final AtomicBoolean maintenancePending = new AtomicBoolean();
+
+        /**
+         * 在maintenanceExecutor上执行的清理任务，只创建一次
+         */
+        final Runnable maintenanceTask = new Runnable() {
+            @Override
+            public void run() {
+                //先清除标记，清理过程中再次触发的请求可以重新排队
+                maintenancePending.set(false);
+                runLockedCleanup(map.ticker.read());
+                //已经在后台线程上，直接投递移除通知
+                map.processPendingNotifications();
+            }
+        };
+
+        /**
+         * 时间轮中到期的entry由它移除，只创建一次
+         */
+        final Predicate<TimerWheel.Node<K, V>> timerExpirer = this::expireTimer;
+
+        /**
+         * 获取锁的次数，以及其中需要等待其他线程释放锁的次数，都只在持有锁时修改
+         */
+        @GuardedBy("this")
+        long lockCount;
+        @GuardedBy("this")
+        long contendedLockCount;
+
+        /**
+         * 开启offHeap时保存value的堆外存储，其他情况为null
+         */
+        @GuardedBy("this")
+        final @Nullable OffHeapStore offHeapStore;
+
+        /**
+         * 堆外空间不足、暂时保存在堆上的entry，在{@link #evictEntries}中腾出空间后移回堆外
+         */
+        @GuardedBy("this")
+        final @Nullable Queue<ReferenceEntry<K, V>> heapFallbacks;
+
+        /**
+         * value最终保存在堆上的次数，包括超过slab大小的value和腾不出堆外空间的value，不加锁读取
+         */
+        volatile long offHeapFallbackCount;
+
         /**
          * 构造函数
          */
@@ -1927,13 +2975,29 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             keyReferenceQueue = map.usesKeyReferences() ? new ReferenceQueue<K>() : null;
 
             valueReferenceQueue = map.usesValueReferences() ? new ReferenceQueue<V>() : null;
-            //只有recencyQueue是ConcurrentLinkedQueue
-            recencyQueue = map.usesAccessQueue() ? new ConcurrentLinkedQueue<ReferenceEntry<K, V>>()
-                    : LocalCache.<ReferenceEntry<K, V>>discardingQueue();
+            readBuffer = map.usesAccessQueue() ? new ReadBuffer<ReferenceEntry<K, V>>() : null;
 
             writeQueue = map.usesWriteQueue() ? new WriteQueue<K, V>() : LocalCache.<ReferenceEntry<K, V>>discardingQueue();
 
             accessQueue = map.usesAccessQueue() ? new AccessQueue<K, V>() : LocalCache.<ReferenceEntry<K, V>>discardingQueue();
+
+            sketch = map.usesFrequencySketch() ? new FrequencySketch(maxSegmentWeight) : null;
+            offHeapStore = map.storesOffHeap() ? new OffHeapStore(maxSegmentWeight) : null;
+            heapFallbacks = map.storesOffHeap() ? new ArrayDeque<ReferenceEntry<K, V>>() : null;
+
+            timerWheel = map.expiresVariably() ? new TimerWheel<K, V>(map.ticker.read()) : null;
+        }
+
+        /**
+         * 先尝试不等待地获取锁，失败时记一次竞争；计数在拿到锁之后修改，不需要原子操作
+         */
+        @Override
+        public void lock() {
+            if (!tryLock()) {
+                super.lock();
+                contendedLockCount++;
+            }
+            lockCount++;
         }
 
         //创建一个原子引用的数组
@@ -1973,25 +3037,156 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
                 // value collected
                 return null;
             }
-
-            ReferenceEntry<K, V> newEntry = map.entryFactory.copyEntry(this, original, newNext);
-            newEntry.setValueReference(valueReference.copyFor(this.valueReferenceQueue, value, newEntry));
-            return newEntry;
+
+            ReferenceEntry<K, V> newEntry = map.entryFactory.copyEntry(this, original, newNext);
+            newEntry.setValueReference(valueReference.copyFor(this.valueReferenceQueue, value, newEntry));
+            if (valueReference instanceof PendingOffHeapValueReference) {
+                heapFallbacks.add(newEntry);
+            }
+            return newEntry;
+        }
+
+        /**
+         * 给entry设置一个新的值. 将新创建的entry加入到access queue的尾部.
+         */
+        @GuardedBy("this")
+        void setValue(ReferenceEntry<K, V> entry, K key, V value, long now) {
+            ValueReference<K, V> previous = entry.getValueReference();
+            ValueReference<K, V> valueReference;
+            int weight;
+            if (offHeapStore != null) {
+                valueReference = offHeapValue(entry, value);
+                weight = valueReference.getWeight();
+            } else {
+                weight = map.weigher.weigh(key, value);
+                checkState(weight >= 0, "Weights must be non-negative");
+                valueReference = map.valueStrength.referenceValue(this, entry, value, weight);
+            }
+            entry.setValueReference(valueReference);
+            recordWrite(entry, weight, now);
+            scheduleTimer(entry, key, value, previous.get() != null, now);
+            previous.notifyNewValue(value);
+            releaseValue(previous);
+            invalidateDiskTier(key);
+            if (map.negativeCache != null) {
+                map.negativeCache.invalidate(key);
+            }
+        }
+
+        /**
+         * 删除二级缓存中的旧值，必须在Segment的锁内调用，否则可能和spillToDiskTier交错，删除后又被写回
+         */
+        @GuardedBy("this")
+        void invalidateDiskTier(Object key) {
+            if (map.diskTier != null) {
+                map.diskTier.invalidate(key);
+            }
+        }
+
+        /**
+         * 序列化value并保存到堆外，按序列化后的字节数计算weight
+         *
+         * 超过slab大小的value只能保存在堆上；对应大小等级没有空闲chunk时先暂时保存在堆上，
+         * 这里不能淘汰别的entry(调用者还持有table中的位置)，由写操作最后的{@link #evictEntries}腾出空间后移回堆外
+         */
+        @GuardedBy("this")
+        ValueReference<K, V> offHeapValue(ReferenceEntry<K, V> entry, V value) {
+            byte[] bytes = map.serializer.serialize(value);
+            int chunk = offHeapStore.chunkSize(bytes.length);
+            if (chunk < 0) {
+                offHeapFallbackCount++;
+                return new WeightedStrongValueReference<>(value, bytes.length);
+            }
+            long handle = offHeapStore.allocate(bytes);
+            if (handle == OffHeapStore.NO_HANDLE) {
+                heapFallbacks.add(entry);
+                // 和堆外时的weight一样，移回堆外时不需要调整totalWeight
+                return new PendingOffHeapValueReference<>(value, bytes, chunk);
+            }
+            return new OffHeapValueReference<>(offHeapStore, map.serializer, handle, chunk);
+        }
+
+        /**
+         * 把暂时保存在堆上的value移回堆外，空间不足时淘汰entry，优先淘汰同一大小等级中最久未访问的
+         */
+        @GuardedBy("this")
+        void reclaimOffHeap() {
+            if (heapFallbacks == null) {
+                return;
+            }
+            ReferenceEntry<K, V> e;
+            while ((e = heapFallbacks.poll()) != null) {
+                ValueReference<K, V> valueReference = e.getValueReference();
+                // 已经被移除、复制或者写入了新值
+                if (!(valueReference instanceof PendingOffHeapValueReference) || !accessQueue.contains(e)) {
+                    continue;
+                }
+                byte[] bytes = ((PendingOffHeapValueReference<K, V>) valueReference).bytes;
+                int chunk = valueReference.getWeight();
+                long handle = OffHeapStore.NO_HANDLE;
+                for (int i = 0; i < OFF_HEAP_RECLAIM_MAX; i++) {
+                    handle = offHeapStore.allocate(bytes);
+                    if (handle != OffHeapStore.NO_HANDLE) {
+                        break;
+                    }
+                    ReferenceEntry<K, V> victim = nextOffHeapEvictable(chunk);
+                    if (victim == null) {
+                        break;
+                    }
+                    spillToDiskTier(victim);
+                    if (!removeEntry(victim, victim.getHash(), RemovalCause.SIZE)) {
+                        throw new AssertionError();
+                    }
+                }
+                if (handle != OffHeapStore.NO_HANDLE) {
+                    e.setValueReference(new OffHeapValueReference<>(offHeapStore, map.serializer, handle, chunk));
+                } else {
+                    //留在堆上，不再保留序列化后的字节
+                    offHeapFallbackCount++;
+                    e.setValueReference(new WeightedStrongValueReference<>(valueReference.get(), chunk));
+                }
+            }
         }
 
         /**
-         * 给entry设置一个新的值. 将新创建的entry加入到access queue的尾部.
+         * @return 最久未访问的同一大小等级的堆外entry，前{@link #OFF_HEAP_RECLAIM_MAX}个中没有时返回最久未访问的堆外entry
          */
         @GuardedBy("this")
-        void setValue(ReferenceEntry<K, V> entry, K key, V value, long now) {
-            ValueReference<K, V> previous = entry.getValueReference();
-            int weight = map.weigher.weigh(key, value);
-            checkState(weight >= 0, "Weights must be non-negative");
+        @Nullable
+        ReferenceEntry<K, V> nextOffHeapEvictable(int chunk) {
+            ReferenceEntry<K, V> oldest = null;
+            int scanned = 0;
+            for (ReferenceEntry<K, V> e : accessQueue) {
+                ValueReference<K, V> valueReference = e.getValueReference();
+                if (valueReference instanceof OffHeapValueReference) {
+                    if (valueReference.getWeight() == chunk) {
+                        return e;
+                    }
+                    if (oldest == null) {
+                        oldest = e;
+                    }
+                }
+                if (++scanned >= OFF_HEAP_RECLAIM_MAX) {
+                    break;
+                }
+            }
+            return oldest;
+        }
 
-            ValueReference<K, V> valueReference = map.valueStrength.referenceValue(this, entry, value, weight);
-            entry.setValueReference(valueReference);
-            recordWrite(entry, weight, now);
-            previous.notifyNewValue(value);
+        /**
+         * 释放已经不在表中的value占用的堆外内存；正在刷新时释放被替换的旧值，重复释放会被忽略
+         */
+        @GuardedBy("this")
+        void releaseValue(ValueReference<K, V> valueReference) {
+            if (offHeapStore == null) {
+                return;
+            }
+            while (valueReference instanceof LoadingValueReference) {
+                valueReference = ((LoadingValueReference<K, V>) valueReference).oldValue;
+            }
+            if (valueReference instanceof OffHeapValueReference) {
+                offHeapStore.free(((OffHeapValueReference<K, V>) valueReference).handle);
+            }
         }
 
         // loading
@@ -2019,6 +3214,15 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
                     }
                 }
 
+                // 最近加载失败过的key直接抛出缓存的异常，不再访问后端
+                if (map.negativeCache != null) {
+                    NegativeCache.Failure failure = map.negativeCache.activeFailure(key);
+                    if (failure != null) {
+                        statsCounter.recordMisses(1);
+                        return failure.rethrow(key);
+                    }
+                }
+
                 // 此时要么是空的要么是过期的
                 return lockedGetOrLoad(key, hash, loader);
             } catch (ExecutionException ee) {
@@ -2106,6 +3310,8 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
                             // immediately reuse invalid entries
                             writeQueue.remove(e);
                             accessQueue.remove(e);
+                            descheduleTimer(e);
+                            releaseValue(valueReference);
                             this.count = newCount; // write-volatile
                         }
                         break;
@@ -2131,6 +3337,13 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             }
 
             if (createNewEntry) {
+                LoadCoalescer<K, V> coalescer = map.loadCoalescer;
+                if (coalescer != null && loader == map.defaultLoader) {
+                    //交给合并器和其他线程的未命中一起加载，当前线程像并发加载的等待者一样等待结果
+                    coalescer.submit(Collections.singletonList(
+                            new LoadCoalescer.Request<>(this, key, hash, loadingValueReference)));
+                    return waitForLoadingValue(e, key, loadingValueReference);
+                }
                 try {
                     synchronized (e) {
                         return loadSync(key, hash, loadingValueReference, loader);
@@ -2144,6 +3357,65 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             }
         }
 
+        /**
+         * 为key放入一个LoadingValueReference占位，由调用者负责完成加载
+         *
+         * @return 新的占位，key已经有有效值或者正在被加载时返回null
+         */
+        @Nullable
+        LoadingValueReference<K, V> reserveLoad(K key, int hash) {
+            lock();
+            try {
+                long now = map.ticker.read();
+                preWriteCleanup(now);
+
+                int newCount = this.count - 1;
+                AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
+                int index = hash & (table.length() - 1);
+                ReferenceEntry<K, V> first = table.get(index);
+
+                ReferenceEntry<K, V> e;
+                for (e = first; e != null; e = e.getNext()) {
+                    K entryKey = e.getKey();
+                    if (e.getHash() == hash && entryKey != null && map.keyEquivalence.equivalent(key, entryKey)) {
+                        ValueReference<K, V> valueReference = e.getValueReference();
+                        if (valueReference.isLoading()) {
+                            return null;
+                        }
+                        V value = valueReference.get();
+                        if (value == null) {
+                            enqueueNotification(
+                                    entryKey, hash, value, valueReference.getWeight(), RemovalCause.COLLECTED);
+                        } else if (map.isExpired(e, now)) {
+                            enqueueNotification(
+                                    entryKey, hash, value, valueReference.getWeight(), RemovalCause.EXPIRED);
+                        } else {
+                            return null;
+                        }
+                        writeQueue.remove(e);
+                        accessQueue.remove(e);
+                        descheduleTimer(e);
+                        releaseValue(valueReference);
+                        this.count = newCount; // write-volatile
+                        break;
+                    }
+                }
+
+                LoadingValueReference<K, V> loadingValueReference = new LoadingValueReference<>();
+                if (e == null) {
+                    e = newEntry(key, hash, first);
+                    e.setValueReference(loadingValueReference);
+                    table.set(index, e);
+                } else {
+                    e.setValueReference(loadingValueReference);
+                }
+                return loadingValueReference;
+            } finally {
+                unlock();
+                postWriteCleanup();
+            }
+        }
+
         V waitForLoadingValue(ReferenceEntry<K, V> e, K key, ValueReference<K, V> valueReference)
                 throws ExecutionException {
             if (!valueReference.isLoading()) {
@@ -2203,6 +3475,7 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
                         // immediately reuse invalid entries
                         writeQueue.remove(e);
                         accessQueue.remove(e);
+                        descheduleTimer(e);
                         createNewEntry = false;
                         break;
                     }
@@ -2236,9 +3509,11 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
                     }
                 } else if (createNewEntry) {
                     removeLoadingValue(key, hash, loadingValueReference);
+                    invalidateDiskTier(key);
                     return null;
                 } else {
                     removeEntry(e, hash, RemovalCause.EXPLICIT);
+                    invalidateDiskTier(key);
                     return null;
                 }
             } finally {
@@ -2254,10 +3529,24 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
          */
         V loadSync(K key, int hash, LoadingValueReference<K, V> loadingValueReference, CacheLoader<? super K, V> loader)
                 throws ExecutionException {
+            V promoted = takeFromDiskTier(key);
+            if (promoted != null) {
+                loadingValueReference.set(promoted);
+                return getAndRecordStats(key, hash, loadingValueReference, Futures.immediateFuture(promoted));
+            }
             ListenableFuture<V> loadingFuture = loadingValueReference.loadFuture(key, loader);
             return getAndRecordStats(key, hash, loadingValueReference, loadingFuture);
         }
 
+        /**
+         * 一级缓存未命中时先查二级缓存
+         */
+        @Nullable
+        V takeFromDiskTier(K key) {
+            DiskTier<K, V> tier = map.diskTier;
+            return (tier == null) ? null : tier.take(key, map.ticker.read(), diskTierEpoch);
+        }
+
         /**
          * 异步
          */
@@ -2299,6 +3588,10 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             } finally {
                 if (value == null) {
                     statsCounter.recordLoadException(loadingValueReference.elapsedNanos());
+                    if (map.negativeCache != null) {
+                        // 先记录失败再移除占位，之后的未命中不会再访问后端
+                        map.negativeCache.recordFailure(key, newValue);
+                    }
                     removeLoadingValue(key, hash, loadingValueReference);
                 }
             }
@@ -2309,9 +3602,9 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
          */
         V scheduleRefresh(ReferenceEntry<K, V> entry, K key, int hash, V oldValue, long now,
                           CacheLoader<? super K, V> loader) {
-            if (map.refreshes() && (now - entry.getWriteTime() > map.refreshNanos)
+            if (map.refreshes() && (now - entry.getWriteTime() > map.refreshThreshold(hash))
                     && !entry.getValueReference().isLoading()) {
-                V newValue = refresh(key, hash, loader, true);
+                V newValue = refresh(key, hash, map.refreshLoader(loader), true);
                 if (newValue != null) {
                     return newValue;
                 }
@@ -2341,6 +3634,48 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             return null;
         }
 
+        /**
+         * 主动刷新已经到达刷新时间、并且在最近一个刷新周期内被读过的entry
+         *
+         * 每次只持锁检查{@link #REFRESH_SCAN_BUCKETS}个桶，挑出需要刷新的key后释放锁，reload在锁外交给refreshExecutor。
+         * 扫描期间table扩容时从新table的同一位置继续，最多漏掉或者重复检查一部分entry，
+         * 漏掉的entry在下一轮扫描或者读取时刷新。
+         */
+        void refreshAhead() {
+            List<ReferenceEntry<K, V>> due = new ArrayList<>();
+            for (int start = 0; ; start += REFRESH_SCAN_BUCKETS) {
+                lock();
+                try {
+                    AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
+                    if (start >= table.length()) {
+                        return;
+                    }
+                    long now = map.ticker.read();
+                    int end = Math.min(start + REFRESH_SCAN_BUCKETS, table.length());
+                    for (int i = start; i < end; ++i) {
+                        for (ReferenceEntry<K, V> e = table.get(i); e != null; e = e.getNext()) {
+                            if (e.getValueReference().isLoading() || getLiveValue(e, now) == null) {
+                                continue;
+                            }
+                            if (now - e.getWriteTime() > map.refreshThreshold(e.getHash())
+                                    && now - e.getAccessTime() < map.refreshNanos) {
+                                due.add(e);
+                            }
+                        }
+                    }
+                } finally {
+                    unlock();
+                }
+                for (ReferenceEntry<K, V> e : due) {
+                    K key = e.getKey();
+                    if (key != null) {
+                        refresh(key, e.getHash(), map.refreshAheadLoader, true);
+                    }
+                }
+                due.clear();
+            }
+        }
+
         /**
          * Returns a newly inserted {@code LoadingValueReference}, or null if the live value reference
          * is already loading.
@@ -2368,7 +3703,7 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
 
                         ValueReference<K, V> valueReference = e.getValueReference();
                         if (valueReference.isLoading()
-                                || (checkTime && (now - e.getWriteTime() < map.refreshNanos))) {
+                                || (checkTime && (now - e.getWriteTime() < map.refreshThreshold(hash)))) {
                             // refresh is a no-op if loading is pending
                             // if checkTime, we want to check *after* acquiring the lock if refresh still needs
                             // to be scheduled
@@ -2479,7 +3814,7 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
 
         /**
          * Records the relative order in which this read was performed by adding {@code entry} to the
-         * recency queue. At write-time, or when the queue is full past the threshold, the queue will be
+         * read buffer. At write-time, or when a stripe of the buffer is full, the buffer will be
          * drained and the entries therein processed.
          *
          * <p>Note: locked reads should use {@link #recordLockedRead}.
@@ -2488,7 +3823,11 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             if (map.recordsAccess()) {
                 entry.setAccessTime(now);
             }
-            recencyQueue.add(entry);
+            recordTimerRead(entry, now);
+            if (readBuffer != null && readBuffer.offer(entry) == ReadBuffer.FULL) {
+                //缓冲区满了，清空它并顺带做一次清理，代替每次读都累加readCount；拿不到锁就丢弃这次记录
+                scheduleMaintenance();
+            }
         }
 
         /**
@@ -2503,16 +3842,29 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             if (map.recordsAccess()) {
                 entry.setAccessTime(now);
             }
+            recordTimerRead(entry, now);
+            recordFrequency(entry);
             accessQueue.add(entry);
         }
 
+        /**
+         * TinyLFU准入时，记录一次访问频率
+         */
+        @GuardedBy("this")
+        void recordFrequency(ReferenceEntry<K, V> entry) {
+            if (sketch != null) {
+                sketch.ensureCapacity(count);
+                sketch.increment(entry.getHash());
+            }
+        }
+
         /**
          * 记录写
          */
         @GuardedBy("this")
         void recordWrite(ReferenceEntry<K, V> entry, int weight, long now) {
-            // we are already under lock, so drain the recency queue immediately
-            drainRecencyQueue();
+            // we are already under lock, so drain the read buffer immediately
+            drainReadBuffer();
             totalWeight += weight;
 
             if (map.recordsAccess()) {
@@ -2521,24 +3873,30 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             if (map.recordsWrite()) {
                 entry.setWriteTime(now);
             }
+            recordFrequency(entry);
             accessQueue.add(entry);
             writeQueue.add(entry);
         }
 
         /**
-         * 将recencyQueue移动到accessQueue
+         * 将readBuffer中的记录移动到accessQueue
          */
         @GuardedBy("this")
-        void drainRecencyQueue() {
-            ReferenceEntry<K, V> e;
-            while ((e = recencyQueue.poll()) != null) {
-                // An entry may be in the recency queue despite it being removed from
-                // the map . This can occur when the entry was concurrently read while a
-                // writer is removing it from the segment or after a clear has removed
-                // all of the segment's entries.
-                if (accessQueue.contains(e)) {
-                    accessQueue.add(e);
-                }
+        void drainReadBuffer() {
+            if (readBuffer != null) {
+                readBuffer.drainTo(readBufferDrainer);
+            }
+        }
+
+        @GuardedBy("this")
+        void onAccess(ReferenceEntry<K, V> e) {
+            // An entry may be in the read buffer despite it being removed from
+            // the map . This can occur when the entry was concurrently read while a
+            // writer is removing it from the segment or after a clear has removed
+            // all of the segment's entries.
+            if (accessQueue.contains(e)) {
+                recordFrequency(e);
+                accessQueue.add(e);
             }
         }
 
@@ -2560,7 +3918,10 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
 
         @GuardedBy("this")
         void expireEntries(long now) {
-            drainRecencyQueue();
+            drainReadBuffer();
+            if (timerWheel != null) {
+                timerWheel.advance(now, timerExpirer);
+            }
             //清除过期的元素
             ReferenceEntry<K, V> e;
             while ((e = writeQueue.peek()) != null && map.isExpired(e, now)) {
@@ -2575,6 +3936,79 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             }
         }
 
+        // variable expiration
+
+        /**
+         * 写入后根据Expiry计算新的过期时间，并放入时间轮
+         */
+        @GuardedBy("this")
+        void scheduleTimer(ReferenceEntry<K, V> entry, K key, V value, boolean update, long now) {
+            if (timerWheel == null) {
+                return;
+            }
+            TimerWheel.Node<K, V> timer = timerOf(entry);
+            long duration;
+            if (update && timer != null) {
+                duration = map.expiry.expireAfterUpdate(key, value, now, Math.max(0L, timer.time - now));
+            } else {
+                duration = map.expiry.expireAfterCreate(key, value, now);
+            }
+            if (timer == null) {
+                timer = new TimerWheel.Node<>(entry, now + duration);
+                setTimer(entry, timer);
+            } else {
+                timer.time = now + duration;
+            }
+            timerWheel.schedule(timer);
+        }
+
+        /**
+         * 读取后根据Expiry延长或缩短过期时间，无需加锁。
+         * 节点在时间轮中的位置不变，到达所在的桶时如果还没过期会被重新调度
+         */
+        void recordTimerRead(ReferenceEntry<K, V> entry, long now) {
+            if (timerWheel == null) {
+                return;
+            }
+            TimerWheel.Node<K, V> timer = timerOf(entry);
+            if (timer == null) {
+                return;
+            }
+            K key = entry.getKey();
+            V value = entry.getValueReference().get();
+            if (key != null && value != null) {
+                long duration = map.expiry.expireAfterRead(key, value, now, Math.max(0L, timer.time - now));
+                timer.time = now + duration;
+            }
+        }
+
+        /**
+         * entry被移除时，把节点移出时间轮
+         */
+        @GuardedBy("this")
+        void descheduleTimer(ReferenceEntry<K, V> entry) {
+            if (timerWheel != null) {
+                TimerWheel.Node<K, V> timer = timerOf(entry);
+                if (timer != null) {
+                    timerWheel.deschedule(timer);
+                    setTimer(entry, null);
+                }
+            }
+        }
+
+        /**
+         * 时间轮中到期的节点，移除对应的entry
+         */
+        @GuardedBy("this")
+        boolean expireTimer(TimerWheel.Node<K, V> timer) {
+            ReferenceEntry<K, V> e = timer.entry;
+            if (e == null || !e.getValueReference().isActive()) {
+                //正在加载，等加载完成后由setValue重新调度
+                return false;
+            }
+            return removeEntry(e, e.getHash(), RemovalCause.EXPIRED);
+        }
+
         /**将回收的缓存（包含了 key，value）以及回收原因包装成之前定义的事件接口
         加入removalNotificationQueue队列*/
         @GuardedBy("this")
@@ -2582,9 +4016,15 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
                 @Nullable K key, int hash, @Nullable V value, int weight, RemovalCause cause) {
             totalWeight -= weight;
             if (cause.wasEvicted()) {
-                statsCounter.recordEviction();
+                if (statsCounter instanceof ConcurrentStatsCounter) {
+                    ((ConcurrentStatsCounter) statsCounter).recordEviction(cause, weight);
+                } else {
+                    statsCounter.recordEviction();
+                }
             }
-            if (map.removalNotificationQueue != DISCARDING_QUEUE) {
+            if (map.removalPipeline != null) {
+                map.removalPipeline.offer(RemovalNotification.create(key, value, cause));
+            } else if (map.removalNotificationQueue != DISCARDING_QUEUE) {
                 RemovalNotification<K, V> notification = RemovalNotification.create(key, value, cause);
                 map.removalNotificationQueue.offer(notification);
             }
@@ -2602,25 +4042,175 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
                 return;
             }
 
-            drainRecencyQueue();
+            drainReadBuffer();
 
             // If the newest entry by itself is too heavy for the segment, don't bother evicting
             // anything else, just that
             if (newest.getValueReference().getWeight() > maxSegmentWeight) {
+                spillToDiskTier(newest);
                 if (!removeEntry(newest, newest.getHash(), RemovalCause.SIZE)) {
                     throw new AssertionError();
                 }
             }
 
-            while (totalWeight > maxSegmentWeight) {
+            reclaimOffHeap();
+
+            boolean admitted = false;
+            long limit = effectiveMaxWeight();
+            while (totalWeight > limit) {
                 //LRU
                 ReferenceEntry<K, V> e = getNextEvictable();
+                if (sketch != null && !admitted && e != newest && accessQueue.contains(newest)) {
+                    //TinyLFU：新元素的频率不高于受害者时，淘汰新元素本身
+                    if (!admit(newest, e)) {
+                        e = newest;
+                    }
+                    admitted = true;
+                }
+                spillToDiskTier(e);
                 if (!removeEntry(e, e.getHash(), RemovalCause.SIZE)) {
                     throw new AssertionError();
                 }
             }
         }
 
+        /**
+         * @return 考虑内存压力之后的最大weight
+         */
+        long effectiveMaxWeight() {
+            MemorySentinel sentinel = map.memorySentinel;
+            return (sentinel == null) ? maxSegmentWeight : (long) (maxSegmentWeight * sentinel.fraction());
+        }
+
+        /**
+         * 不等下一次写入，立即按LRU淘汰到{@link #effectiveMaxWeight()}
+         */
+        void evictToEffectiveWeight() {
+            if (!map.evictsBySize()) {
+                return;
+            }
+            lock();
+            try {
+                drainReadBuffer();
+                long limit = effectiveMaxWeight();
+                while (totalWeight > limit) {
+                    ReferenceEntry<K, V> e = getNextEvictable();
+                    spillToDiskTier(e);
+                    if (!removeEntry(e, e.getHash(), RemovalCause.SIZE)) {
+                        throw new AssertionError();
+                    }
+                }
+            } finally {
+                unlock();
+                postWriteCleanup();
+            }
+        }
+
+        /**
+         * 把因为容量被淘汰的entry写入二级缓存，保留它剩余的存活时间
+         */
+        @GuardedBy("this")
+        void spillToDiskTier(ReferenceEntry<K, V> e) {
+            DiskTier<K, V> tier = map.diskTier;
+            K key = e.getKey();
+            ValueReference<K, V> valueReference = e.getValueReference();
+            if (tier == null || key == null || valueReference.isLoading()) {
+                return;
+            }
+            V value = valueReference.get();
+            if (value == null) {
+                return;
+            }
+            tier.put(key, value, expirationTime(e), diskTierEpoch);
+        }
+
+        /**
+         * entry按ticker计算的过期时间，不过期时返回Long.MAX_VALUE
+         */
+        long expirationTime(ReferenceEntry<K, V> e) {
+            long expirationTime = Long.MAX_VALUE;
+            if (map.expiresAfterWrite()) {
+                expirationTime = e.getWriteTime() + map.expireAfterWriteNanos;
+            }
+            if (map.expiresAfterAccess()) {
+                expirationTime = Math.min(expirationTime, e.getAccessTime() + map.expireAfterAccessNanos);
+            }
+            if (map.expiresVariably()) {
+                TimerWheel.Node<K, V> node = timerOf(e);
+                if (node != null) {
+                    expirationTime = Math.min(expirationTime, node.time);
+                }
+            }
+            return expirationTime;
+        }
+
+        /**
+         * 按访问顺序(从最久未访问到最近访问)复制一份entry列表，用于生成快照
+         *
+         * 锁内只复制引用，读取和序列化value在锁外进行
+         */
+        List<ReferenceEntry<K, V>> snapshotOrder() {
+            List<ReferenceEntry<K, V>> entries = new ArrayList<>(count);
+            lock();
+            try {
+                if (map.usesAccessQueue()) {
+                    drainReadBuffer();
+                    entries.addAll(accessQueue);
+                } else if (map.usesWriteQueue()) {
+                    entries.addAll(writeQueue);
+                } else {
+                    AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
+                    for (int i = 0; i < table.length(); ++i) {
+                        for (ReferenceEntry<K, V> e = table.get(i); e != null; e = e.getNext()) {
+                            entries.add(e);
+                        }
+                    }
+                }
+            } finally {
+                unlock();
+            }
+            return entries;
+        }
+
+        /**
+         * 从快照中恢复一个entry，已经存在的key不覆盖
+         *
+         * @param remainingNanos 生成快照时剩余的存活时间，小于0表示不过期
+         */
+        void restore(K key, int hash, V value, long remainingNanos) {
+            if (put(key, hash, value, true) != null || remainingNanos < 0) {
+                return;
+            }
+            if (!map.expiresAfterWrite() && !map.expiresAfterAccess()) {
+                return;
+            }
+            lock();
+            try {
+                ReferenceEntry<K, V> e = getEntry(key, hash);
+                if (e == null) {
+                    return;
+                }
+                // 把写入和访问时间往前挪，使剩余的存活时间和生成快照时一样
+                long now = map.ticker.read();
+                if (map.expiresAfterWrite()) {
+                    e.setWriteTime(now - Math.max(0, map.expireAfterWriteNanos - remainingNanos));
+                }
+                if (map.expiresAfterAccess()) {
+                    e.setAccessTime(now - Math.max(0, map.expireAfterAccessNanos - remainingNanos));
+                }
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * @return 候选者的估计频率是否高于受害者
+         */
+        @GuardedBy("this")
+        boolean admit(ReferenceEntry<K, V> candidate, ReferenceEntry<K, V> victim) {
+            return sketch.frequency(candidate.getHash()) > sketch.frequency(victim.getHash());
+        }
+
         // LRU算法
         @GuardedBy("this")
         ReferenceEntry<K, V> getNextEvictable() {
@@ -3016,10 +4606,14 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
 
         @Nullable
         V remove(Object key, int hash) {
+            if (map.negativeCache != null) {
+                map.negativeCache.invalidate(key);
+            }
             lock();
             try {
                 long now = map.ticker.read();
                 preWriteCleanup(now);
+                invalidateDiskTier(key);
 
                 int newCount = this.count - 1;
                 AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
@@ -3083,6 +4677,7 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
                         RemovalCause cause;
                         if (map.valueEquivalence.equivalent(value, entryValue)) {
                             cause = RemovalCause.EXPLICIT;
+                            invalidateDiskTier(key);
                         } else if (entryValue == null && valueReference.isActive()) {
                             cause = RemovalCause.COLLECTED;
                         } else {
@@ -3168,7 +4763,8 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
         }
 
         void clear() {
-            if (count != 0) { // read-volatile
+            // 一级缓存为空时二级缓存中也可能有这个Segment的记录
+            if (count != 0 || map.diskTier != null) { // read-volatile
                 lock();
                 try {
                     long now = map.ticker.read();
@@ -3186,6 +4782,7 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
                                 enqueueNotification(
                                         key, e.getHash(), value, e.getValueReference().getWeight(), cause);
                             }
+                            releaseValue(e.getValueReference());
                         }
                     }
                     for (int i = 0; i < table.length(); ++i) {
@@ -3194,7 +4791,14 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
                     clearReferenceQueues();
                     writeQueue.clear();
                     accessQueue.clear();
+                    if (heapFallbacks != null) {
+                        heapFallbacks.clear();
+                    }
+                    if (timerWheel != null) {
+                        timerWheel.clear();
+                    }
                     readCount.set(0);
+                    ++diskTierEpoch;
 
                     ++modCount;
                     count = 0; // write-volatile
@@ -3218,7 +4822,9 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             enqueueNotification(key, hash, value, valueReference.getWeight(), cause);
             writeQueue.remove(entry);
             accessQueue.remove(entry);
+            descheduleTimer(entry);
 
+            releaseValue(valueReference);
             if (valueReference.isLoading()) {
                 valueReference.notifyNewValue(null);
                 return first;
@@ -3255,6 +4861,8 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
                     RemovalCause.COLLECTED);
             writeQueue.remove(entry);
             accessQueue.remove(entry);
+            descheduleTimer(entry);
+            releaseValue(entry.getValueReference());
         }
 
         /**
@@ -3405,11 +5013,35 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
 
         /**
          * 当其达到64时（DRAIN_THRESHOLD为0x3F，即0011 1111），引发cleanUp操作。.
+         *
+         * 有readBuffer时不计数：所有读线程累加同一个readCount是读路径上的竞争写，
+         * 清理改由readBuffer满时的recordRead、写操作和定时清理触发
          */
         void postReadCleanup() {
+            if (readBuffer != null) {
+                return;
+            }
+            if ((readCount.incrementAndGet() & DRAIN_THRESHOLD) == 0) {
+                scheduleMaintenance();
+            }
+        }
 
-            if ((readCount.incrementAndGet() & DRAIN_THRESHOLD) == 0) {
+        /**
+         * 有maintenanceExecutor时把清理交给它，同一时间最多只有一个任务在排队；
+         * 没有时在当前线程清理
+         */
+        void scheduleMaintenance() {
+            Executor executor = map.maintenanceExecutor;
+            if (executor == null) {
                 cleanUp();
+            } else if (maintenancePending.compareAndSet(false, true)) {
+                try {
+                    executor.execute(maintenanceTask);
+                } catch (RejectedExecutionException e) {
+                    maintenancePending.set(false);
+                    logger.log(Level.WARNING, "Exception thrown when submitting cache maintenance", e);
+                    cleanUp();
+                }
             }
         }
 
@@ -3438,7 +5070,7 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             if (tryLock()) {
                 try {
                     drainReferenceQueues();
-                    expireEntries(now); // calls drainRecencyQueue
+                    expireEntries(now); // calls drainReadBuffer
                     //将读的次数设为0
                     readCount.set(0);
                 } finally {
@@ -3450,7 +5082,10 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
         void runUnlockedCleanup() {
             // locked cleanup may generate notifications we can send unlocked
             if (!isHeldByCurrentThread()) {
-                map.processPendingNotifications();
+                map.dispatchPendingNotifications();
+                if (map.diskTier != null) {
+                    map.diskTier.flush();
+                }
             }
         }
     }
@@ -3879,6 +5514,114 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
         }
     }
 
+    /**
+     * 在ForkJoinPool上并行遍历所有entry，弱一致，不影响访问顺序
+     */
+    void forEachParallel(BiConsumer<? super K, ? super V> action) {
+        checkNotNull(action);
+        StreamSupport.stream(new EntrySpliterator<WriteThroughEntry>(Function.identity()), true)
+                .forEach(e -> action.accept(e.key, e.value));
+    }
+
+    /**
+     * 在ForkJoinPool上并行删除满足条件的entry，每次删除只短暂持有一个Segment的锁；
+     * 判断之后entry被并发修改过时不删除
+     *
+     * @return 删除的entry数量
+     */
+    long removeIfParallel(BiPredicate<? super K, ? super V> filter) {
+        checkNotNull(filter);
+        return StreamSupport.stream(new EntrySpliterator<WriteThroughEntry>(Function.identity()), true)
+                .filter(e -> filter.test(e.key, e.value) && remove(e.key, e.value))
+                .count();
+    }
+
+    /**
+     * 每个Segment在ForkJoinPool上各自清空
+     */
+    void clearParallel() {
+        Arrays.stream(segments).parallel().forEach(Segment::clear);
+        if (diskTier != null) {
+            diskTier.invalidateAll();
+        }
+        if (negativeCache != null) {
+            negativeCache.invalidateAll();
+        }
+    }
+
+    /**
+     * 每个Segment在ForkJoinPool上各自清理
+     */
+    void cleanUpParallel() {
+        Arrays.stream(segments).parallel().forEach(Segment::cleanUp);
+    }
+
+    /**
+     * 汇总全局和每个Segment的统计
+     */
+    CacheMetrics metrics() {
+        List<StatsCounter> counters = new ArrayList<>(segments.length + 1);
+        counters.add(globalStatsCounter);
+        long lockCount = 0;
+        long contendedLockCount = 0;
+        long offHeapFallbacks = 0;
+        for (Segment<K, V> segment : segments) {
+            counters.add(segment.statsCounter);
+            // 不加锁读取，只是个近似值
+            lockCount += segment.lockCount;
+            contendedLockCount += segment.contendedLockCount;
+            offHeapFallbacks += segment.offHeapFallbackCount;
+        }
+        long droppedNotifications = (removalPipeline == null) ? 0 : removalPipeline.droppedCount.sum();
+        long negativeHits = (negativeCache == null) ? 0 : negativeCache.hitCount.sum();
+        long negativeEntries = (negativeCache == null) ? 0 : negativeCache.size();
+        return CacheMetrics.aggregate(counters, longSize(), segments.length, lockCount, contendedLockCount,
+                droppedNotifications, negativeHits, negativeEntries, offHeapFallbacks);
+    }
+
+    /**
+     * MemorySentinel收缩容量后调用，每个Segment立即淘汰到新的有效容量
+     */
+    void evictForMemoryPressure() {
+        for (Segment<K, V> segment : segments) {
+            segment.evictToEffectiveWeight();
+        }
+    }
+
+    /**
+     * 定时清理，有maintenanceExecutor时交给它执行
+     */
+    void scheduleCleanUp() {
+        for (Segment<?, ?> segment : segments) {
+            segment.scheduleMaintenance();
+        }
+        if (refreshesAhead()) {
+            scheduleRefreshAhead();
+        }
+    }
+
+    /**
+     * 有maintenanceExecutor时在它上面扫描，同一时间最多只有一个扫描任务；没有时在调用线程上扫描
+     */
+    void scheduleRefreshAhead() {
+        if (maintenanceExecutor == null) {
+            refreshAhead();
+        } else if (refreshAheadPending.compareAndSet(false, true)) {
+            try {
+                maintenanceExecutor.execute(refreshAheadTask);
+            } catch (RejectedExecutionException e) {
+                refreshAheadPending.set(false);
+                logger.log(Level.WARNING, "Exception thrown when submitting refresh-ahead scan", e);
+            }
+        }
+    }
+
+    void refreshAhead() {
+        for (Segment<K, V> segment : segments) {
+            segment.refreshAhead();
+        }
+    }
+
     // ConcurrentMap methods
 
     @Override
@@ -4009,7 +5752,12 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
         }
 
         try {
-            if (!keysToLoad.isEmpty()) {
+            if (!keysToLoad.isEmpty() && diskTier != null) {
+                promoteFromDiskTier(keysToLoad, result);
+            }
+            if (!keysToLoad.isEmpty() && loadCoalescer != null) {
+                misses -= coalesceAll(keysToLoad, result); // get will count these misses
+            } else if (!keysToLoad.isEmpty()) {
                 try {
                     Map<K, V> newEntries = loadAll(keysToLoad, defaultLoader);
                     for (K key : keysToLoad) {
@@ -4034,6 +5782,71 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
         }
     }
 
+    /**
+     * 从二级缓存中取回getAll未命中的key，放回一级缓存，并从keysToLoad中去掉
+     */
+    void promoteFromDiskTier(Set<K> keysToLoad, Map<K, V> result) {
+        long now = ticker.read();
+        for (Iterator<K> it = keysToLoad.iterator(); it.hasNext(); ) {
+            K key = it.next();
+            V value = takeFromDiskTier(key, now);
+            if (value != null) {
+                put(key, value);
+                result.put(key, value);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * 从二级缓存中取出key，clear之前写入的记录视为不存在
+     */
+    @Nullable
+    V takeFromDiskTier(Object key, long now) {
+        return diskTier.take(key, now, segmentFor(hash(key)).diskTierEpoch);
+    }
+
+    /**
+     * 通过loadCoalescer加载getAll中未命中的key，和其他线程的未命中合并为一次loadAll
+     *
+     * 已经被其他线程加载中的key不重复提交，通过get等待
+     *
+     * @return 通过get获取的key的数量，这些key的命中或未命中已经由get统计
+     */
+    int coalesceAll(Set<K> keysToLoad, Map<K, V> result) throws ExecutionException {
+        Map<K, LoadingValueReference<K, V>> reserved = Maps.newLinkedHashMap();
+        List<LoadCoalescer.Request<K, V>> requests = new ArrayList<>(keysToLoad.size());
+        for (K key : keysToLoad) {
+            int hash = hash(checkNotNull(key));
+            Segment<K, V> segment = segmentFor(hash);
+            LoadingValueReference<K, V> loadingValueReference = segment.reserveLoad(key, hash);
+            if (loadingValueReference != null) {
+                reserved.put(key, loadingValueReference);
+                requests.add(new LoadCoalescer.Request<>(segment, key, hash, loadingValueReference));
+            }
+        }
+        if (!requests.isEmpty()) {
+            loadCoalescer.submit(requests);
+        }
+        int counted = 0;
+        for (K key : keysToLoad) {
+            LoadingValueReference<K, V> loadingValueReference = reserved.get(key);
+            V value;
+            if (loadingValueReference == null) {
+                // 已经有值或者正在被其他线程加载
+                value = get(key, defaultLoader);
+                counted++;
+            } else {
+                value = loadingValueReference.waitForValue();
+            }
+            if (value == null) {
+                throw new InvalidCacheLoadException("loadAll failed to return a value for " + key);
+            }
+            result.put(key, value);
+        }
+        return counted;
+    }
+
     /**
      * Returns the result of calling {@link CacheLoader#loadAll}, or null if {@code loader} doesn't
      * implement {@code loadAll}.
@@ -4261,6 +6074,12 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
         for (Segment<K, V> segment : segments) {
             segment.clear();
         }
+        if (diskTier != null) {
+            diskTier.invalidateAll();
+        }
+        if (negativeCache != null) {
+            negativeCache.invalidateAll();
+        }
     }
 
     void invalidateAll(Iterable<?> keys) {
@@ -4489,6 +6308,142 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
         }
     }
 
+    /**
+     * 按Segment和table下标拆分的Spliterator，先按Segment对半拆，只剩一个Segment时再按table下标拆，
+     * 并行流和{@link CacheOperations}用它把全表扫描分给ForkJoinPool的多个线程
+     *
+     * 和HashIterator一样弱一致并且不加锁：每个Segment遍历开始遍历时的table，
+     * 遍历过程中的写入可能看到也可能看不到；不影响访问顺序，也不触发清理
+     */
+    final class EntrySpliterator<T> implements Spliterator<T> {
+
+        /**
+         * table下标范围小于这个值时不再拆分
+         */
+        static final int MIN_SPLIT_BINS = 64;
+
+        final Function<? super WriteThroughEntry, ? extends T> mapper;
+        /*values()可能有重复的元素，不能带DISTINCT*/
+        final int characteristics;
+        final int segmentLimit;
+        int segmentIndex;
+        /*正在遍历的Segment的table，为null时还没开始遍历segmentIndex*/
+        @Nullable AtomicReferenceArray<ReferenceEntry<K, V>> currentTable;
+        int tableIndex;
+        int tableLimit;
+        /*当前桶中还没交给调用者的元素*/
+        final ArrayDeque<T> buffer = new ArrayDeque<>();
+
+        EntrySpliterator(Function<? super WriteThroughEntry, ? extends T> mapper) {
+            this(mapper, Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.CONCURRENT);
+        }
+
+        EntrySpliterator(Function<? super WriteThroughEntry, ? extends T> mapper, int characteristics) {
+            this(mapper, characteristics, 0, segments.length, null, 0, 0);
+        }
+
+        EntrySpliterator(Function<? super WriteThroughEntry, ? extends T> mapper, int characteristics,
+                         int segmentIndex, int segmentLimit,
+                         @Nullable AtomicReferenceArray<ReferenceEntry<K, V>> currentTable,
+                         int tableIndex, int tableLimit) {
+            this.mapper = mapper;
+            this.characteristics = characteristics;
+            this.segmentIndex = segmentIndex;
+            this.segmentLimit = segmentLimit;
+            this.currentTable = currentTable;
+            this.tableIndex = tableIndex;
+            this.tableLimit = tableLimit;
+        }
+
+        @Override
+        public @Nullable Spliterator<T> trySplit() {
+            if (!buffer.isEmpty()) {
+                return null;
+            }
+            if (currentTable == null && segmentLimit - segmentIndex > 1) {
+                int mid = (segmentIndex + segmentLimit) >>> 1;
+                EntrySpliterator<T> prefix = new EntrySpliterator<>(
+                        mapper, characteristics, segmentIndex, mid, null, 0, 0);
+                segmentIndex = mid;
+                return prefix;
+            }
+            if (currentTable == null && segmentIndex < segmentLimit) {
+                startSegment();
+            }
+            if (currentTable != null && segmentLimit - segmentIndex == 1 && tableLimit - tableIndex >= MIN_SPLIT_BINS) {
+                int mid = (tableIndex + tableLimit) >>> 1;
+                EntrySpliterator<T> prefix = new EntrySpliterator<>(
+                        mapper, characteristics, segmentIndex, segmentIndex + 1, currentTable, tableIndex, mid);
+                tableIndex = mid;
+                return prefix;
+            }
+            return null;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            checkNotNull(action);
+            while (buffer.isEmpty()) {
+                if (!fillFromNextBin()) {
+                    return false;
+                }
+            }
+            action.accept(buffer.poll());
+            return true;
+        }
+
+        /**
+         * 把下一个桶中还活着的entry放进buffer
+         *
+         * @return 已经遍历完所有范围时返回false
+         */
+        boolean fillFromNextBin() {
+            while (segmentIndex < segmentLimit) {
+                if (currentTable == null) {
+                    startSegment();
+                }
+                if (tableIndex < tableLimit) {
+                    long now = ticker.read();
+                    for (ReferenceEntry<K, V> e = currentTable.get(tableIndex++); e != null; e = e.getNext()) {
+                        K key = e.getKey();
+                        V value = getLiveValue(e, now);
+                        if (value != null) {
+                            buffer.add(mapper.apply(new WriteThroughEntry(key, value)));
+                        }
+                    }
+                    return true;
+                }
+                segmentIndex++;
+                currentTable = null;
+            }
+            return false;
+        }
+
+        void startSegment() {
+            currentTable = segments[segmentIndex].table;
+            tableIndex = 0;
+            tableLimit = currentTable.length();
+        }
+
+        @Override
+        public long estimateSize() {
+            if (currentTable != null) {
+                long count = segments[segmentIndex].count;
+                return buffer.size() + count * (tableLimit - tableIndex) / Math.max(1, currentTable.length());
+            }
+            long size = buffer.size();
+            for (int i = segmentIndex; i < segmentLimit; i++) {
+                size += Math.max(0, segments[i].count);
+            }
+            return size;
+        }
+
+        @Override
+        public int characteristics() {
+            return characteristics;
+        }
+    }
+
     abstract class AbstractCacheSet<T> extends AbstractSet<T> {
         @Weak
         final ConcurrentMap<?, ?> map;
@@ -4562,6 +6517,11 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             return new KeyIterator();
         }
 
+        @Override
+        public Spliterator<K> spliterator() {
+            return new EntrySpliterator<K>(WriteThroughEntry::getKey);
+        }
+
         @Override
         public boolean contains(Object o) {
             return map.containsKey(o);
@@ -4601,6 +6561,11 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             return new ValueIterator();
         }
 
+        @Override
+        public Spliterator<V> spliterator() {
+            return new EntrySpliterator<V>(WriteThroughEntry::getValue, Spliterator.NONNULL | Spliterator.CONCURRENT);
+        }
+
         @Override
         public boolean removeIf(Predicate<? super V> filter) {
             checkNotNull(filter);
@@ -4638,6 +6603,11 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             return new EntryIterator();
         }
 
+        @Override
+        public Spliterator<Entry<K, V>> spliterator() {
+            return new EntrySpliterator<Entry<K, V>>(Function.identity());
+        }
+
         @Override
         public boolean removeIf(Predicate<? super Entry<K, V>> filter) {
             checkNotNull(filter);
@@ -4984,4 +6954,224 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             return new LoadingSerializationProxy<>(localCache);
         }
     }
+
+    /**
+     * AsyncLoadingCache接口的实现类，value是CompletableFuture
+     *
+     * 缺失时先用putIfAbsent放入一个未完成的future占位，抢到位置的线程发起加载，
+     * 其他线程直接拿到同一个future，不需要像lockedGetOrLoad那样等待。
+     */
+    static class LocalAsyncLoadingCache<K, V> implements AsyncLoadingCache<K, V> {
+        final LocalCache<K, CompletableFuture<V>> localCache;
+        final AsyncCacheLoader<? super K, V> loader;
+        final Executor executor;
+
+        LocalAsyncLoadingCache(CacheBuilder<? super K, ? super CompletableFuture<V>> builder,
+                               AsyncCacheLoader<? super K, V> loader, Executor executor) {
+            this.localCache = new LocalCache<K, CompletableFuture<V>>(builder, null);
+            this.loader = checkNotNull(loader);
+            this.executor = checkNotNull(executor);
+        }
+
+        @Override
+        public CompletableFuture<V> get(K key) {
+            checkNotNull(key);
+            CompletableFuture<V> existing = localCache.get(key);
+            if (existing != null) {
+                localCache.globalStatsCounter.recordHits(1);
+                return existing;
+            }
+            CompletableFuture<V> future = new CompletableFuture<>();
+            CompletableFuture<V> prior = localCache.putIfAbsent(key, future);
+            if (prior != null) {
+                //并发加载，共享已有的future
+                localCache.globalStatsCounter.recordHits(1);
+                return prior;
+            }
+            localCache.globalStatsCounter.recordMisses(1);
+            removeOnFailure(key, future);
+            load(key, future);
+            return future;
+        }
+
+        /**
+         * 调用loader，把结果转交给占位的future
+         */
+        void load(final K key, final CompletableFuture<V> future) {
+            final long startTime = localCache.ticker.read();
+            CompletableFuture<V> loading;
+            try {
+                loading = loader.asyncLoad(key, executor);
+                if (loading == null) {
+                    throw new InvalidCacheLoadException("AsyncCacheLoader returned null future for key " + key + ".");
+                }
+            } catch (Throwable t) {
+                localCache.globalStatsCounter.recordLoadException(localCache.ticker.read() - startTime);
+                future.completeExceptionally(t);
+                return;
+            }
+            loading.whenComplete((value, error) -> {
+                long loadTime = localCache.ticker.read() - startTime;
+                if (error == null && value != null) {
+                    localCache.globalStatsCounter.recordLoadSuccess(loadTime);
+                    future.complete(value);
+                } else {
+                    localCache.globalStatsCounter.recordLoadException(loadTime);
+                    future.completeExceptionally((error != null)
+                            ? error
+                            : new InvalidCacheLoadException("AsyncCacheLoader returned null for key " + key + "."));
+                }
+            });
+        }
+
+        /**
+         * future失败或结果为null时，从缓存中移除它，只移除同一个future
+         */
+        void removeOnFailure(final K key, final CompletableFuture<V> future) {
+            future.whenComplete((value, error) -> {
+                if (error != null || value == null) {
+                    localCache.remove(key, future);
+                }
+            });
+        }
+
+        @Override
+        public CompletableFuture<Map<K, V>> getAll(Iterable<? extends K> keys) {
+            Map<K, CompletableFuture<V>> futures = Maps.newLinkedHashMap();
+            Map<K, CompletableFuture<V>> keysToLoad = Maps.newLinkedHashMap();
+            int hits = 0;
+            for (K key : keys) {
+                checkNotNull(key);
+                if (futures.containsKey(key)) {
+                    continue;
+                }
+                CompletableFuture<V> future = localCache.get(key);
+                if (future == null) {
+                    CompletableFuture<V> placeholder = new CompletableFuture<>();
+                    future = localCache.putIfAbsent(key, placeholder);
+                    if (future == null) {
+                        future = placeholder;
+                        keysToLoad.put(key, placeholder);
+                    } else {
+                        hits++;
+                    }
+                } else {
+                    hits++;
+                }
+                futures.put(key, future);
+            }
+            localCache.globalStatsCounter.recordHits(hits);
+            localCache.globalStatsCounter.recordMisses(keysToLoad.size());
+
+            if (!keysToLoad.isEmpty()) {
+                for (Entry<K, CompletableFuture<V>> entry : keysToLoad.entrySet()) {
+                    removeOnFailure(entry.getKey(), entry.getValue());
+                }
+                loadAll(keysToLoad);
+            }
+
+            CompletableFuture<?>[] all = futures.values().toArray(new CompletableFuture<?>[0]);
+            return CompletableFuture.allOf(all).thenApply(ignored -> {
+                Map<K, V> result = Maps.newLinkedHashMap();
+                for (Entry<K, CompletableFuture<V>> entry : futures.entrySet()) {
+                    result.put(entry.getKey(), entry.getValue().join());
+                }
+                return ImmutableMap.copyOf(result);
+            });
+        }
+
+        /**
+         * 所有缺失的key合并为一次asyncLoadAll，没有实现时逐个加载
+         */
+        void loadAll(final Map<K, CompletableFuture<V>> keysToLoad) {
+            final long startTime = localCache.ticker.read();
+            CompletableFuture<? extends Map<? extends K, V>> loading;
+            try {
+                @SuppressWarnings("unchecked") // safe since all keys extend K
+                CompletableFuture<? extends Map<? extends K, V>> bulk =
+                        ((AsyncCacheLoader<K, V>) loader).asyncLoadAll(keysToLoad.keySet(), executor);
+                loading = bulk;
+                if (loading == null) {
+                    throw new InvalidCacheLoadException(loader + " returned null future from asyncLoadAll");
+                }
+            } catch (UnsupportedOperationException e) {
+                for (Entry<K, CompletableFuture<V>> entry : keysToLoad.entrySet()) {
+                    load(entry.getKey(), entry.getValue());
+                }
+                return;
+            } catch (Throwable t) {
+                failAll(keysToLoad, t, startTime);
+                return;
+            }
+            loading.whenComplete((result, error) -> {
+                if (error != null || result == null) {
+                    failAll(keysToLoad, (error != null)
+                            ? error
+                            : new InvalidCacheLoadException(loader + " returned null map from asyncLoadAll"), startTime);
+                    return;
+                }
+                localCache.globalStatsCounter.recordLoadSuccess(localCache.ticker.read() - startTime);
+                for (Entry<K, CompletableFuture<V>> entry : keysToLoad.entrySet()) {
+                    V value = result.get(entry.getKey());
+                    if (value != null) {
+                        entry.getValue().complete(value);
+                    } else {
+                        entry.getValue().completeExceptionally(
+                                new InvalidCacheLoadException("asyncLoadAll failed to return a value for " + entry.getKey()));
+                    }
+                }
+            });
+        }
+
+        void failAll(Map<K, CompletableFuture<V>> keysToLoad, Throwable t, long startTime) {
+            localCache.globalStatsCounter.recordLoadException(localCache.ticker.read() - startTime);
+            for (CompletableFuture<V> future : keysToLoad.values()) {
+                future.completeExceptionally(t);
+            }
+        }
+
+        @Override
+        public @Nullable CompletableFuture<V> getIfPresent(Object key) {
+            return localCache.getIfPresent(key);
+        }
+
+        @Override
+        public void put(K key, CompletableFuture<V> valueFuture) {
+            checkNotNull(key);
+            checkNotNull(valueFuture);
+            localCache.put(key, valueFuture);
+            removeOnFailure(key, valueFuture);
+        }
+
+        @Override
+        public void invalidate(Object key) {
+            checkNotNull(key);
+            localCache.remove(key);
+        }
+
+        @Override
+        public long size() {
+            return localCache.longSize();
+        }
+
+        @Override
+        public CacheStats stats() {
+            SimpleStatsCounter aggregator = new SimpleStatsCounter();
+            aggregator.incrementBy(localCache.globalStatsCounter);
+            for (Segment<K, CompletableFuture<V>> segment : localCache.segments) {
+                aggregator.incrementBy(segment.statsCounter);
+            }
+            return aggregator.snapshot();
+        }
+
+        @Override
+        public void cleanUp() {
+            localCache.cleanUp();
+        }
+
+        @Override
+        public ConcurrentMap<K, CompletableFuture<V>> asMap() {
+            return localCache;
+        }
+    }
 }
@@ -0,0 +1,551 @@
+package com.google.common.cache;
+
+import com.google.common.annotations.GwtIncompatible;
+import com.google.common.base.Ticker;
+import com.google.common.cache.AbstractCache.StatsCounter;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongFunction;
+import java.util.logging.Level;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+
+/**
+ * key为long的缓存，由{@link CacheBuilder#buildLongKeyed()}创建
+ *
+ * 和LocalCache一样分成多个Segment，但每个Segment不再为每个entry创建ReferenceEntry对象，
+ * 而是用开放寻址(线性探测)的并行数组保存：key在long[]中，value在Object[]中，
+ * 访问时间和写入时间在long[]中(只有设置了对应的过期时间才分配)。
+ * 每个entry只剩value本身一个对象，key不装箱，5000万entry时可以省下几个GB的对象头和引用。
+ *
+ * 读操作使用{@link StampedLock}的乐观读，不加锁；写操作持有Segment的写锁。
+ * 按容量淘汰使用CLOCK(second chance)近似LRU：读命中时设置引用位，淘汰时跳过并清除引用位。
+ * 删除的位置用TOMBSTONE占位，扩容时清理。
+ *
+ * 移除通知在写操作结束后由调用线程投递，只有这时才会把key装箱。
+ */
+@GwtIncompatible
+public final class LongKeyCache<V> {
+
+    /**
+     * 已删除的位置，探测时需要跳过而不能停止
+     */
+    static final Object TOMBSTONE = new Object();
+
+    /**
+     * 已使用的位置(包括TOMBSTONE)超过这个比例时扩容或清理
+     */
+    static final float MAX_LOAD = 0.75f;
+
+    static final int MINIMUM_CAPACITY = 8;
+
+    /**
+     * 每次写操作顺带检查过期的位置数
+     */
+    static final int EXPIRY_SCAN = 16;
+
+    final Segment<V>[] segments;
+    final int segmentShift;
+    final int segmentMask;
+
+    final long expireAfterWriteNanos;
+    final long expireAfterAccessNanos;
+    final Ticker ticker;
+    final StatsCounter statsCounter;
+    final RemovalListener<Long, V> removalListener;
+    final Queue<RemovalNotification<Long, V>> removalNotificationQueue;
+
+    @SuppressWarnings("unchecked")
+    LongKeyCache(CacheBuilder<?, ?> builder) {
+        expireAfterWriteNanos = builder.getExpireAfterWriteNanos();
+        expireAfterAccessNanos = builder.getExpireAfterAccessNanos();
+        ticker = builder.getTicker(expiresAfterWrite() || expiresAfterAccess());
+        statsCounter = builder.getStatsCounterSupplier().get();
+        RemovalListener<?, ?> listener = builder.getRemovalListener();
+        removalListener = (RemovalListener<Long, V>) listener;
+        removalNotificationQueue = (listener == CacheBuilder.NullListener.INSTANCE)
+                ? LocalCache.<RemovalNotification<Long, V>>discardingQueue()
+                : new ConcurrentLinkedQueue<RemovalNotification<Long, V>>();
+
+        long maxSize = builder.getMaximumWeight();
+        boolean evictsBySize = maxSize >= 0;
+        int concurrencyLevel = Math.min(builder.getConcurrencyLevel(), LocalCache.MAX_SEGMENTS);
+        int shift = 0;
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel && (!evictsBySize || segmentCount * 20 <= maxSize)) {
+            ++shift;
+            segmentCount <<= 1;
+        }
+        segmentShift = 32 - shift;
+        segmentMask = segmentCount - 1;
+
+        int segmentCapacity = ReadBuffer.ceilingPowerOfTwo(
+                Math.max(MINIMUM_CAPACITY, (int) (builder.getInitialCapacity() / segmentCount / MAX_LOAD) + 1));
+        segments = newSegmentArray(segmentCount);
+        long maxSegmentSize = evictsBySize ? maxSize / segmentCount + 1 : CacheBuilder.UNSET_INT;
+        long remainder = maxSize % segmentCount;
+        for (int i = 0; i < segmentCount; i++) {
+            if (evictsBySize && i == remainder) {
+                maxSegmentSize--;
+            }
+            segments[i] = new Segment<>(this, segmentCapacity, maxSegmentSize);
+        }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    static <V> Segment<V>[] newSegmentArray(int size) {
+        return new Segment[size];
+    }
+
+    boolean expiresAfterWrite() {
+        return expireAfterWriteNanos > 0;
+    }
+
+    boolean expiresAfterAccess() {
+        return expireAfterAccessNanos > 0;
+    }
+
+    static int hash(long key) {
+        return LocalCache.rehash(Long.hashCode(key));
+    }
+
+    Segment<V> segmentFor(int hash) {
+        return segments[(hash >>> segmentShift) & segmentMask];
+    }
+
+    /**
+     * @return 不存在或者已经过期时返回null
+     */
+    public @Nullable V getIfPresent(long key) {
+        int hash = hash(key);
+        V value = segmentFor(hash).get(key, hash);
+        if (value == null) {
+            statsCounter.recordMisses(1);
+        } else {
+            statsCounter.recordHits(1);
+        }
+        return value;
+    }
+
+    /**
+     * 不存在时调用{@code loader}加载并放入缓存
+     *
+     * 加载在锁外进行，同一个key的并发未命中可能各自加载一次，先放入缓存的值生效，其余的值被丢弃
+     *
+     * @throws InvalidCacheLoadException loader返回null
+     * @throws UncheckedExecutionException loader抛出了RuntimeException
+     * @throws ExecutionError loader抛出了Error
+     */
+    public V get(long key, LongFunction<? extends V> loader) {
+        checkNotNull(loader);
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+        V value = segment.get(key, hash);
+        if (value != null) {
+            statsCounter.recordHits(1);
+            return value;
+        }
+        statsCounter.recordMisses(1);
+
+        long start = System.nanoTime();
+        V loaded;
+        try {
+            loaded = loader.apply(key);
+        } catch (RuntimeException e) {
+            statsCounter.recordLoadException(System.nanoTime() - start);
+            throw new UncheckedExecutionException(e);
+        } catch (Error e) {
+            statsCounter.recordLoadException(System.nanoTime() - start);
+            throw new ExecutionError(e);
+        }
+        if (loaded == null) {
+            statsCounter.recordLoadException(System.nanoTime() - start);
+            throw new InvalidCacheLoadException("CacheLoader returned null for key " + key + ".");
+        }
+        statsCounter.recordLoadSuccess(System.nanoTime() - start);
+        V existing = segment.put(key, hash, loaded, true);
+        processPendingNotifications();
+        return (existing == null) ? loaded : existing;
+    }
+
+    public void put(long key, V value) {
+        checkNotNull(value);
+        int hash = hash(key);
+        segmentFor(hash).put(key, hash, value, false);
+        processPendingNotifications();
+    }
+
+    public void invalidate(long key) {
+        int hash = hash(key);
+        segmentFor(hash).remove(key, hash);
+        processPendingNotifications();
+    }
+
+    public void invalidateAll() {
+        for (Segment<V> segment : segments) {
+            segment.clear();
+        }
+        processPendingNotifications();
+    }
+
+    /**
+     * @return entry数量，包括已过期但还没有清理的
+     */
+    public long size() {
+        long sum = 0;
+        for (Segment<V> segment : segments) {
+            sum += segment.count;
+        }
+        return sum;
+    }
+
+    public CacheStats stats() {
+        return statsCounter.snapshot();
+    }
+
+    /**
+     * 清理所有过期的entry
+     */
+    public void cleanUp() {
+        for (Segment<V> segment : segments) {
+            segment.expireAll();
+        }
+        processPendingNotifications();
+    }
+
+    boolean isExpired(Table table, int index, long now) {
+        if (expiresAfterWrite() && now - table.writeTimes[index] >= expireAfterWriteNanos) {
+            return true;
+        }
+        return expiresAfterAccess() && now - table.accessTimes[index] >= expireAfterAccessNanos;
+    }
+
+    /**
+     * 消费removalNotificationQueue队列
+     */
+    void processPendingNotifications() {
+        RemovalNotification<Long, V> notification;
+        while ((notification = removalNotificationQueue.poll()) != null) {
+            try {
+                removalListener.onRemoval(notification);
+            } catch (Throwable e) {
+                LocalCache.logger.log(Level.WARNING, "Exception thrown by removal listener", e);
+            }
+        }
+    }
+
+    /**
+     * 一个Segment的哈希表，扩容时整个替换，所以乐观读看到的数组长度总是一致的
+     */
+    static final class Table {
+        final int mask;
+        final long[] keys;
+        final Object[] values;
+        final long @Nullable [] writeTimes;
+        final long @Nullable [] accessTimes;
+        /*CLOCK的引用位，只有按容量淘汰时才分配*/
+        final byte @Nullable [] referenced;
+
+        Table(int capacity, boolean recordsWrite, boolean recordsAccess, boolean evictsBySize) {
+            mask = capacity - 1;
+            keys = new long[capacity];
+            values = new Object[capacity];
+            writeTimes = recordsWrite ? new long[capacity] : null;
+            accessTimes = recordsAccess ? new long[capacity] : null;
+            referenced = evictsBySize ? new byte[capacity] : null;
+        }
+
+        /**
+         * @return key所在的位置，没有时返回-1；并发修改时可能返回错误结果，由调用者校验
+         */
+        int find(long key, int hash) {
+            for (int n = 0; n <= mask; n++) {
+                int i = (hash + n) & mask;
+                Object value = values[i];
+                if (value == null) {
+                    return -1;
+                }
+                if (value != TOMBSTONE && keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return 可以插入key的第一个空位置或TOMBSTONE，调用者保证key不存在并且表没有满
+         */
+        int insertionSlot(int hash) {
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                Object value = values[i];
+                if (value == null || value == TOMBSTONE) {
+                    return i;
+                }
+            }
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+    }
+
+    static final class Segment<V> {
+        final LongKeyCache<V> map;
+        final long maxSegmentSize;
+        final StampedLock lock = new StampedLock();
+
+        /*以下字段只在持有写锁时修改*/
+        Table table;
+        volatile int count;
+        /*非空的位置数，包括TOMBSTONE*/
+        int used;
+        int clockHand;
+        int expiryHand;
+
+        Segment(LongKeyCache<V> map, int initialCapacity, long maxSegmentSize) {
+            this.map = map;
+            this.maxSegmentSize = maxSegmentSize;
+            this.table = newTable(initialCapacity);
+        }
+
+        Table newTable(int capacity) {
+            return new Table(capacity, map.expiresAfterWrite(), map.expiresAfterAccess(), maxSegmentSize >= 0);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Nullable V get(long key, int hash) {
+            long now = map.ticker.read();
+            long stamp = lock.tryOptimisticRead();
+            Table t = table;
+            int i = t.find(key, hash);
+            Object value = (i < 0) ? null : t.values[i];
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    t = table;
+                    i = t.find(key, hash);
+                    value = (i < 0) ? null : t.values[i];
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            if (value == null || map.isExpired(t, i, now)) {
+                // 过期的entry留给写操作清理
+                return null;
+            }
+            // 不加锁记录访问，位置被并发重用时最多让另一个entry多活一轮
+            recordAccess(t, i, now);
+            return (V) value;
+        }
+
+        /**
+         * @return 原来的值，没有时返回null
+         */
+        @SuppressWarnings("unchecked")
+        @Nullable V put(long key, int hash, V value, boolean onlyIfAbsent) {
+            long stamp = lock.writeLock();
+            try {
+                long now = map.ticker.read();
+                expireSome(now);
+                Table t = table;
+                int i = t.find(key, hash);
+                if (i >= 0) {
+                    V previous = (V) t.values[i];
+                    if (map.isExpired(t, i, now)) {
+                        removeAt(t, i, RemovalCause.EXPIRED);
+                    } else if (onlyIfAbsent) {
+                        recordAccess(t, i, now);
+                        return previous;
+                    } else {
+                        t.values[i] = value;
+                        recordWrite(t, i, now);
+                        enqueueNotification(key, previous, RemovalCause.REPLACED);
+                        return previous;
+                    }
+                }
+
+                if (used + 1 > (int) (t.capacity() * MAX_LOAD)) {
+                    t = rehash();
+                }
+                i = t.insertionSlot(hash);
+                if (t.values[i] == null) {
+                    used++;
+                }
+                t.keys[i] = key;
+                t.values[i] = value;
+                recordWrite(t, i, now);
+                count++;
+                evictEntries(now);
+                return null;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void remove(long key, int hash) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int i = t.find(key, hash);
+                if (i >= 0) {
+                    removeAt(t, i, map.isExpired(t, i, map.ticker.read())
+                            ? RemovalCause.EXPIRED
+                            : RemovalCause.EXPLICIT);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void clear() {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                for (int i = 0; i <= t.mask; i++) {
+                    Object value = t.values[i];
+                    if (value != null && value != TOMBSTONE) {
+                        removeAt(t, i, RemovalCause.EXPLICIT);
+                    }
+                }
+                table = newTable(MINIMUM_CAPACITY);
+                used = 0;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void expireAll() {
+            if (!map.expiresAfterWrite() && !map.expiresAfterAccess()) {
+                return;
+            }
+            long stamp = lock.writeLock();
+            try {
+                long now = map.ticker.read();
+                Table t = table;
+                for (int i = 0; i <= t.mask; i++) {
+                    expireAt(t, i, now);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * 从上次停下的位置开始检查EXPIRY_SCAN个位置，把清理过期entry的开销分摊到写操作上
+         */
+        void expireSome(long now) {
+            if (!map.expiresAfterWrite() && !map.expiresAfterAccess()) {
+                return;
+            }
+            Table t = table;
+            for (int n = 0; n < EXPIRY_SCAN; n++) {
+                expiryHand = (expiryHand + 1) & t.mask;
+                expireAt(t, expiryHand, now);
+            }
+        }
+
+        private void expireAt(Table t, int i, long now) {
+            Object value = t.values[i];
+            if (value != null && value != TOMBSTONE && map.isExpired(t, i, now)) {
+                removeAt(t, i, RemovalCause.EXPIRED);
+            }
+        }
+
+        /**
+         * CLOCK淘汰：引用位为1的entry清除引用位后跳过，为0的被淘汰；顺带移除遇到的过期entry
+         */
+        void evictEntries(long now) {
+            if (maxSegmentSize < 0) {
+                return;
+            }
+            Table t = table;
+            while (count > maxSegmentSize) {
+                int i = clockHand = (clockHand + 1) & t.mask;
+                Object value = t.values[i];
+                if (value == null || value == TOMBSTONE) {
+                    continue;
+                }
+                if ((map.expiresAfterWrite() || map.expiresAfterAccess()) && map.isExpired(t, i, now)) {
+                    removeAt(t, i, RemovalCause.EXPIRED);
+                } else if (t.referenced[i] != 0) {
+                    t.referenced[i] = 0;
+                } else {
+                    removeAt(t, i, RemovalCause.SIZE);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void removeAt(Table t, int i, RemovalCause cause) {
+            V value = (V) t.values[i];
+            t.values[i] = TOMBSTONE;
+            count--;
+            enqueueNotification(t.keys[i], value, cause);
+        }
+
+        /**
+         * 按存活的entry数重建哈希表，同时清掉所有TOMBSTONE；删除较多时容量可能不变
+         */
+        private Table rehash() {
+            Table old = table;
+            int capacity = ReadBuffer.ceilingPowerOfTwo(Math.max(MINIMUM_CAPACITY, (count + 1) * 2));
+            Table t = newTable(capacity);
+            for (int i = 0; i <= old.mask; i++) {
+                Object value = old.values[i];
+                if (value == null || value == TOMBSTONE) {
+                    continue;
+                }
+                int j = t.insertionSlot(hash(old.keys[i]));
+                t.keys[j] = old.keys[i];
+                t.values[j] = value;
+                if (t.writeTimes != null) {
+                    t.writeTimes[j] = old.writeTimes[i];
+                }
+                if (t.accessTimes != null) {
+                    t.accessTimes[j] = old.accessTimes[i];
+                }
+                if (t.referenced != null) {
+                    t.referenced[j] = old.referenced[i];
+                }
+            }
+            table = t;
+            used = count;
+            clockHand = 0;
+            expiryHand = 0;
+            return t;
+        }
+
+        private void recordAccess(Table t, int i, long now) {
+            if (t.accessTimes != null) {
+                t.accessTimes[i] = now;
+            }
+            if (t.referenced != null) {
+                t.referenced[i] = 1;
+            }
+        }
+
+        private void recordWrite(Table t, int i, long now) {
+            if (t.writeTimes != null) {
+                t.writeTimes[i] = now;
+            }
+            recordAccess(t, i, now);
+        }
+
+        private void enqueueNotification(long key, V value, RemovalCause cause) {
+            if (cause.wasEvicted()) {
+                map.statsCounter.recordEviction();
+            }
+            if (map.removalNotificationQueue != LocalCache.DISCARDING_QUEUE) {
+                map.removalNotificationQueue.offer(RemovalNotification.create(key, value, cause));
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.google.common.cache;
+
+import com.google.common.annotations.GwtIncompatible;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+
+/**
+ * 根据堆内存压力收缩缓存容量，由{@link CacheBuilder#evictOnMemoryPressure}开启
+ *
+ * 在支持的堆内存池上设置collection usage threshold，GC之后存活对象仍超过阈值时JVM发出通知，
+ * 每次通知把所有Segment的有效容量乘以{@link #SHRINK_FACTOR}，并立即按正常的淘汰策略淘汰到新容量。
+ * 收缩之后每隔{@link #RECOVERY_INTERVAL_NANOS}检查一次，GC后的占用回落到阈值以下时逐步恢复容量。
+ *
+ * 和softValues相比，GC不需要追踪SoftReference，淘汰的也是LRU尾部的冷数据而不是随机的entry。
+ *
+ * 阈值是JVM全局的，多个缓存设置不同的阈值时取最小的那个，每个缓存收到通知后再按自己的阈值判断。
+ */
+@GwtIncompatible
+final class MemorySentinel {
+
+    /**
+     * 每次收缩保留的比例
+     */
+    static final double SHRINK_FACTOR = 0.75;
+
+    /**
+     * 有效容量的下限，避免持续的内存压力把缓存完全清空
+     */
+    static final double MIN_FRACTION = 0.05;
+
+    static final long RECOVERY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    final double usageThreshold;
+    final List<MemoryPoolMXBean> pools = new ArrayList<>();
+
+    /**
+     * 当前的有效容量比例，1表示没有收缩
+     */
+    volatile double fraction = 1.0;
+    volatile long nextRecoveryCheck;
+
+    MemorySentinel(double usageThreshold) {
+        this.usageThreshold = usageThreshold;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                    && pool.getUsage().getMax() > 0) {
+                pools.add(pool);
+            }
+        }
+    }
+
+    /**
+     * 设置阈值并注册通知，监听器只持有cache的弱引用，cache被回收后注销自身
+     */
+    static <K, V> MemorySentinel register(LocalCache<K, V> cache, double usageThreshold) {
+        final MemorySentinel sentinel = new MemorySentinel(usageThreshold);
+        synchronized (MemorySentinel.class) {
+            for (MemoryPoolMXBean pool : sentinel.pools) {
+                long threshold = (long) (pool.getUsage().getMax() * usageThreshold);
+                long current = pool.getCollectionUsageThreshold();
+                if (current == 0 || threshold < current) {
+                    pool.setCollectionUsageThreshold(threshold);
+                }
+            }
+        }
+        if (sentinel.pools.isEmpty()) {
+            LocalCache.logger.log(Level.WARNING,
+                    "No heap memory pool supports collection usage thresholds, evictOnMemoryPressure is disabled");
+            return sentinel;
+        }
+
+        final NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+        final WeakReference<LocalCache<K, V>> cacheRef = new WeakReference<>(cache);
+        emitter.addNotificationListener(new NotificationListener() {
+            @Override
+            public void handleNotification(Notification notification, Object handback) {
+                LocalCache<K, V> localCache = cacheRef.get();
+                if (localCache == null) {
+                    try {
+                        emitter.removeNotificationListener(this);
+                    } catch (ListenerNotFoundException e) {
+                        // 已经注销过
+                    }
+                    return;
+                }
+                if (sentinel.overThreshold()) {
+                    sentinel.shrink();
+                    try {
+                        localCache.evictForMemoryPressure();
+                    } catch (Throwable t) {
+                        LocalCache.logger.log(Level.WARNING, "Exception thrown when evicting for memory pressure", t);
+                    }
+                }
+            }
+        }, notification -> MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType()),
+                null);
+        return sentinel;
+    }
+
+    /**
+     * 当前的有效容量比例；收缩过并且到了检查时间时，先尝试恢复一步
+     */
+    double fraction() {
+        double current = fraction;
+        if (current < 1.0 && System.nanoTime() - nextRecoveryCheck >= 0) {
+            recover();
+        }
+        return fraction;
+    }
+
+    synchronized void shrink() {
+        fraction = Math.max(MIN_FRACTION, fraction * SHRINK_FACTOR);
+        nextRecoveryCheck = System.nanoTime() + RECOVERY_INTERVAL_NANOS;
+    }
+
+    synchronized void recover() {
+        long now = System.nanoTime();
+        if (now - nextRecoveryCheck < 0) {
+            return;
+        }
+        nextRecoveryCheck = now + RECOVERY_INTERVAL_NANOS;
+        if (!overThreshold()) {
+            fraction = Math.min(1.0, fraction / SHRINK_FACTOR);
+        }
+    }
+
+    /**
+     * 最近一次GC之后，是否有内存池的占用超过了这个缓存的阈值
+     */
+    boolean overThreshold() {
+        for (MemoryPoolMXBean pool : pools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && usage.getMax() > 0 && usage.getUsed() > usage.getMax() * usageThreshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,166 @@
+package com.google.common.cache;
+
+import com.google.common.annotations.GwtIncompatible;
+import com.google.common.base.Ticker;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+
+
+/**
+ * 缓存加载失败的结果，由{@link CacheBuilder#negativeCaching}开启
+ *
+ * CacheLoader抛出异常或者返回null之后，在一段时间内同一个key的未命中直接抛出同样的异常，不再访问后端。
+ * 连续失败时这段时间按指数增长：第n次失败缓存initialTtl * 2^(n-1)，最多maxTtl。
+ * 失败记录过期后再保留maxTtl用来累计失败次数，加载成功、写入或删除key时清除。
+ *
+ * 失败记录不在Segment的table中，不占用maximumSize/maximumWeight，也不会出现在asMap()中；
+ * 为了防止故障期间大量不同的key撑爆内存，最多保留{@link #MAXIMUM_SIZE}条，超出后不再记录新的失败。
+ */
+@GwtIncompatible
+final class NegativeCache {
+
+    static final int MAXIMUM_SIZE = 1 << 16;
+
+    /**
+     * 指数退避的最大次数，防止移位溢出
+     */
+    static final int MAX_BACKOFF_SHIFT = 30;
+
+    final long initialTtlNanos;
+    final long maxTtlNanos;
+    final Ticker ticker;
+    final ConcurrentHashMap<Object, Failure> failures = new ConcurrentHashMap<>();
+
+    final LongAdder hitCount = new LongAdder();
+
+    NegativeCache(long initialTtlNanos, long maxTtlNanos, Ticker ticker) {
+        this.initialTtlNanos = initialTtlNanos;
+        this.maxTtlNanos = maxTtlNanos;
+        this.ticker = ticker;
+    }
+
+    /**
+     * 一次失败的加载
+     */
+    static final class Failure {
+        /*为null表示CacheLoader返回了null*/
+        final @Nullable Throwable cause;
+        final long expirationTime;
+        final int attempts;
+
+        Failure(@Nullable Throwable cause, long expirationTime, int attempts) {
+            this.cause = cause;
+            this.expirationTime = expirationTime;
+            this.attempts = attempts;
+        }
+
+        /**
+         * 按加载失败时的方式抛出异常
+         *
+         * @throws ExecutionException 缓存的失败原因
+         * @throws CacheLoader.InvalidCacheLoadException CacheLoader返回了null
+         */
+        <V> V rethrow(Object key) throws ExecutionException {
+            if (cause == null) {
+                throw new CacheLoader.InvalidCacheLoadException(
+                        "CacheLoader returned null for key " + key + " (cached negative result).");
+            }
+            throw new ExecutionException(cause);
+        }
+    }
+
+    /**
+     * @return key最近一次还没过期的失败，没有时返回null
+     */
+    @Nullable Failure activeFailure(Object key) {
+        Failure failure = failures.get(key);
+        if (failure == null) {
+            return null;
+        }
+        long now = ticker.read();
+        if (now - failure.expirationTime >= 0) {
+            if (now - failure.expirationTime >= maxTtlNanos) {
+                failures.remove(key, failure);
+            }
+            return null;
+        }
+        hitCount.increment();
+        return failure;
+    }
+
+    /**
+     * 记录一次失败的加载，{@code future}已经完成
+     */
+    void recordFailure(Object key, Future<?> future) {
+        long now = ticker.read();
+        if (failures.size() >= MAXIMUM_SIZE && !failures.containsKey(key)) {
+            purgeStale(now);
+            if (failures.size() >= MAXIMUM_SIZE) {
+                return;
+            }
+        }
+        Throwable cause = causeOf(future);
+        failures.compute(key, (k, previous) -> {
+            int attempts = (previous != null && now - previous.expirationTime < maxTtlNanos)
+                    ? previous.attempts + 1
+                    : 1;
+            long ttl = initialTtlNanos << Math.min(attempts - 1, MAX_BACKOFF_SHIFT);
+            if (ttl <= 0 || ttl > maxTtlNanos) {
+                ttl = maxTtlNanos;
+            }
+            return new Failure(cause, now + ttl, attempts);
+        });
+    }
+
+    void invalidate(Object key) {
+        if (!failures.isEmpty()) {
+            failures.remove(key);
+        }
+    }
+
+    void invalidateAll() {
+        failures.clear();
+    }
+
+    /**
+     * @return 还没过期的失败记录数
+     */
+    long size() {
+        long now = ticker.read();
+        long size = 0;
+        for (Failure failure : failures.values()) {
+            if (now - failure.expirationTime < 0) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private void purgeStale(long now) {
+        for (Iterator<Map.Entry<Object, Failure>> it = failures.entrySet().iterator(); it.hasNext(); ) {
+            if (now - it.next().getValue().expirationTime >= maxTtlNanos) {
+                it.remove();
+            }
+        }
+    }
+
+    private static @Nullable Throwable causeOf(Future<?> future) {
+        try {
+            getUninterruptibly(future);
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (RuntimeException | Error e) {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.google.common.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+
+/**
+ * 堆外的slab分配器，每个Segment一个，保存序列化后的value
+ *
+ * 内存按slab从{@link ByteBuffer#allocateDirect}申请，每个slab只切分成一种大小的chunk，
+ * chunk大小从{@link #MIN_CHUNK}开始按2的n次方递增(和memcached一样)。
+ * 一个slab上的chunk全部释放后，slab回到空闲池，可以改切成其他大小，避免内存固化在某个大小上。
+ * slab的总大小不超过capacity，某个大小等级没有空闲chunk时由Segment淘汰同等级的entry腾出空间。
+ *
+ * 每个chunk的头部是[int stamp][int length]。handle中也带着分配时的stamp，
+ * chunk释放时stamp改变，所以持有旧handle的读线程只会读到null，不会读到别的value。
+ *
+ * 分配和释放只在Segment的锁内调用；读不加Segment的锁，用StampedLock的乐观读保证看到完整的chunk。
+ */
+final class OffHeapStore {
+
+    /**
+     * 最小的chunk，包括头部
+     */
+    static final int MIN_CHUNK = 64;
+
+    /**
+     * 最大的slab，也是能保存的最大chunk
+     */
+    static final int MAX_SLAB_SIZE = 1 << 20;
+
+    static final int HEADER_SIZE = 8;
+
+    /**
+     * handle的编码：stamp(24位) | slab(20位) | offset(20位)
+     */
+    static final int OFFSET_BITS = 20;
+    static final int SLAB_BITS = 20;
+    static final int STAMP_MASK = (1 << 24) - 1;
+
+    /**
+     * 分配失败
+     */
+    static final long NO_HANDLE = -1;
+
+    final int slabSize;
+    final int classCount;
+
+    final ByteBuffer[] slabs;
+    /*slab被切分的chunk大小等级，-1表示空闲*/
+    final int[] slabClass;
+    /*每个slab中空闲chunk的offset栈*/
+    final int[][] slabFree;
+    final int[] slabFreeTop;
+
+    /*每个大小等级还有空闲chunk的slab，以及slab在其中的位置*/
+    final int[][] partial;
+    final int[] partialCount;
+    final int[] partialIndex;
+
+    /*空闲的slab*/
+    final int[] freeSlabs;
+    int freeSlabCount;
+
+    final StampedLock lock = new StampedLock();
+    int nextStamp;
+
+    /**
+     * @param capacity 最多申请的堆外字节数，小于{@link #MIN_CHUNK}时按一个最小的chunk申请
+     */
+    OffHeapStore(long capacity) {
+        slabSize = Integer.highestOneBit((int) Math.min(Math.max(capacity, MIN_CHUNK), MAX_SLAB_SIZE));
+        classCount = Integer.numberOfTrailingZeros(slabSize) - Integer.numberOfTrailingZeros(MIN_CHUNK) + 1;
+        int maxSlabs = (int) Math.min(1 << SLAB_BITS, Math.max(1, capacity / slabSize));
+
+        slabs = new ByteBuffer[maxSlabs];
+        slabClass = new int[maxSlabs];
+        Arrays.fill(slabClass, -1);
+        slabFree = new int[maxSlabs][];
+        slabFreeTop = new int[maxSlabs];
+        partial = new int[classCount][maxSlabs];
+        partialCount = new int[classCount];
+        partialIndex = new int[maxSlabs];
+        freeSlabs = new int[maxSlabs];
+        for (int i = 0; i < maxSlabs; i++) {
+            freeSlabs[i] = maxSlabs - 1 - i;
+        }
+        freeSlabCount = maxSlabs;
+    }
+
+    /**
+     * 能保存bytes的chunk大小，包括头部，放不下时返回-1
+     */
+    int chunkSize(int length) {
+        int size = length + HEADER_SIZE;
+        if (size > slabSize) {
+            return -1;
+        }
+        return Math.max(MIN_CHUNK, ReadBuffer.ceilingPowerOfTwo(size));
+    }
+
+    /**
+     * 保存bytes，调用时必须持有Segment的锁
+     *
+     * @return handle，放不下或者没有空间时返回{@link #NO_HANDLE}
+     */
+    long allocate(byte[] bytes) {
+        int chunk = chunkSize(bytes.length);
+        if (chunk < 0) {
+            return NO_HANDLE;
+        }
+        int sizeClass = Integer.numberOfTrailingZeros(chunk) - Integer.numberOfTrailingZeros(MIN_CHUNK);
+
+        long writeStamp = lock.writeLock();
+        try {
+            int slab;
+            if (partialCount[sizeClass] > 0) {
+                slab = partial[sizeClass][partialCount[sizeClass] - 1];
+            } else if (freeSlabCount > 0) {
+                slab = freeSlabs[--freeSlabCount];
+                carve(slab, sizeClass, chunk);
+            } else {
+                return NO_HANDLE;
+            }
+
+            int offset = slabFree[slab][--slabFreeTop[slab]];
+            if (slabFreeTop[slab] == 0) {
+                removePartial(slab);
+            }
+
+            int stamp = nextStamp = (nextStamp + 1) & STAMP_MASK;
+            ByteBuffer buffer = slabs[slab];
+            buffer.putInt(offset, stamp);
+            buffer.putInt(offset + 4, bytes.length);
+            ByteBuffer target = buffer.duplicate();
+            target.position(offset + HEADER_SIZE);
+            target.put(bytes);
+            return ((long) stamp << (SLAB_BITS + OFFSET_BITS)) | ((long) slab << OFFSET_BITS) | offset;
+        } finally {
+            lock.unlockWrite(writeStamp);
+        }
+    }
+
+    /**
+     * 释放handle指向的chunk，重复释放会被忽略，调用时必须持有Segment的锁
+     */
+    void free(long handle) {
+        int slab = slab(handle);
+        int offset = offset(handle);
+        long writeStamp = lock.writeLock();
+        try {
+            ByteBuffer buffer = slabs[slab];
+            if (buffer == null || buffer.getInt(offset) != stamp(handle)) {
+                return;
+            }
+            // 让持有这个handle的读线程失效
+            buffer.putInt(offset, (stamp(handle) + 1) & STAMP_MASK);
+
+            int sizeClass = slabClass[slab];
+            if (slabFreeTop[slab] == 0) {
+                addPartial(slab, sizeClass);
+            }
+            slabFree[slab][slabFreeTop[slab]++] = offset;
+            if (slabFreeTop[slab] == slabFree[slab].length) {
+                // 整个slab都空闲了，交回空闲池
+                removePartial(slab);
+                slabClass[slab] = -1;
+                slabFree[slab] = null;
+                freeSlabs[freeSlabCount++] = slab;
+            }
+        } finally {
+            lock.unlockWrite(writeStamp);
+        }
+    }
+
+    /**
+     * 读取handle指向的字节，chunk已经被释放时返回null
+     */
+    byte[] read(long handle) {
+        long readStamp = lock.tryOptimisticRead();
+        byte[] bytes = copy(handle);
+        if (!lock.validate(readStamp)) {
+            readStamp = lock.readLock();
+            try {
+                bytes = copy(handle);
+            } finally {
+                lock.unlockRead(readStamp);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 乐观读时可能读到正在修改的数据，所以所有下标都要检查，出错时返回null，由validate决定是否重读
+     */
+    private byte[] copy(long handle) {
+        int slab = slab(handle);
+        int offset = offset(handle);
+        ByteBuffer buffer = (slab < slabs.length) ? slabs[slab] : null;
+        if (buffer == null || offset + HEADER_SIZE > slabSize) {
+            return null;
+        }
+        if (buffer.getInt(offset) != stamp(handle)) {
+            return null;
+        }
+        int length = buffer.getInt(offset + 4);
+        if (length < 0 || offset + HEADER_SIZE + length > slabSize) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset + HEADER_SIZE);
+        source.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 把slab切分成chunk大小的块
+     */
+    private void carve(int slab, int sizeClass, int chunk) {
+        if (slabs[slab] == null) {
+            slabs[slab] = ByteBuffer.allocateDirect(slabSize);
+        }
+        int chunks = slabSize / chunk;
+        int[] free = new int[chunks];
+        for (int i = 0; i < chunks; i++) {
+            free[i] = (chunks - 1 - i) * chunk;
+        }
+        slabClass[slab] = sizeClass;
+        slabFree[slab] = free;
+        slabFreeTop[slab] = chunks;
+        addPartial(slab, sizeClass);
+    }
+
+    private void addPartial(int slab, int sizeClass) {
+        partialIndex[slab] = partialCount[sizeClass];
+        partial[sizeClass][partialCount[sizeClass]++] = slab;
+    }
+
+    private void removePartial(int slab) {
+        int sizeClass = slabClass[slab];
+        int index = partialIndex[slab];
+        int last = partial[sizeClass][--partialCount[sizeClass]];
+        partial[sizeClass][index] = last;
+        partialIndex[last] = index;
+    }
+
+    static int stamp(long handle) {
+        return (int) (handle >>> (SLAB_BITS + OFFSET_BITS)) & STAMP_MASK;
+    }
+
+    static int slab(long handle) {
+        return (int) (handle >>> OFFSET_BITS) & ((1 << SLAB_BITS) - 1);
+    }
+
+    static int offset(long handle) {
+        return (int) handle & ((1 << OFFSET_BITS) - 1);
+    }
+}
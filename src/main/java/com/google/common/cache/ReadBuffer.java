@@ -0,0 +1,136 @@
+package com.google.common.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+
+/**
+ * 有界、分段(striped)、有损的读缓冲区，替代Segment中的recencyQueue
+ *
+ * recencyQueue是无界的ConcurrentLinkedQueue，每次读都要分配一个节点。
+ * 这里按线程把读记录散列到若干个固定大小的环形缓冲区中：
+ * 写入只需要一次CAS，不分配对象；缓冲区满时直接丢弃这次访问记录，
+ * 只会让LRU顺序稍微不那么精确，而不会让队列无限增长。
+ *
+ * 多个生产者，单个消费者，消费者(drainTo)必须持有Segment的锁。
+ */
+final class ReadBuffer<E> {
+
+    /**
+     * 条带数量的上限
+     */
+    static final int MAX_STRIPES = ceilingPowerOfTwo(4 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * 每个环形缓冲区的容量，必须为2的n次方
+     */
+    static final int BUFFER_SIZE = 16;
+    static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+    /**
+     * offer的结果
+     */
+    static final int SUCCESS = 0;
+    static final int FULL = 1;
+    static final int FAILED = 2;
+
+    /**
+     * 条带按需创建，只有被用到的条带才会占用内存
+     */
+    final AtomicReferenceArray<RingBuffer<E>> stripes;
+    final int stripeMask;
+
+    ReadBuffer() {
+        this(MAX_STRIPES);
+    }
+
+    ReadBuffer(int stripeCount) {
+        int size = ceilingPowerOfTwo(stripeCount);
+        stripes = new AtomicReferenceArray<>(size);
+        stripeMask = size - 1;
+    }
+
+    /**
+     * 记录一次读
+     *
+     * @return {@link #SUCCESS}，缓冲区满时返回{@link #FULL}，CAS竞争失败时返回{@link #FAILED}
+     */
+    int offer(E e) {
+        int index = probe() & stripeMask;
+        RingBuffer<E> buffer = stripes.get(index);
+        if (buffer == null) {
+            buffer = new RingBuffer<>();
+            if (!stripes.compareAndSet(index, null, buffer)) {
+                buffer = stripes.get(index);
+            }
+        }
+        return buffer.offer(e);
+    }
+
+    /**
+     * 把所有条带中的记录交给consumer处理，调用时必须持有Segment的锁
+     */
+    void drainTo(Consumer<E> consumer) {
+        for (int i = 0; i < stripes.length(); i++) {
+            RingBuffer<E> buffer = stripes.get(i);
+            if (buffer != null) {
+                buffer.drainTo(consumer);
+            }
+        }
+    }
+
+    /**
+     * 用线程id散列到条带上，同一个线程总是落在同一个条带
+     */
+    static int probe() {
+        return LocalCache.rehash((int) Thread.currentThread().getId());
+    }
+
+    static int ceilingPowerOfTwo(int x) {
+        return 1 << -Integer.numberOfLeadingZeros(Math.max(x, 1) - 1);
+    }
+
+    /**
+     * 单个条带，多生产者单消费者的环形缓冲区
+     *
+     * tail由生产者CAS推进，head只由消费者推进。
+     * 生产者先抢占位置再写入元素，消费者读到null说明生产者还没写完，停止本次消费。
+     */
+    static final class RingBuffer<E> {
+        final AtomicLong head = new AtomicLong();
+        final AtomicLong tail = new AtomicLong();
+        final AtomicReferenceArray<E> buffer = new AtomicReferenceArray<>(BUFFER_SIZE);
+
+        int offer(E e) {
+            long h = head.get();
+            long t = tail.get();
+            if (t - h >= BUFFER_SIZE) {
+                //满了，丢弃这次访问记录
+                return FULL;
+            }
+            if (tail.compareAndSet(t, t + 1)) {
+                buffer.lazySet((int) (t & BUFFER_MASK), e);
+                return SUCCESS;
+            }
+            return FAILED;
+        }
+
+        void drainTo(Consumer<E> consumer) {
+            long h = head.get();
+            long t = tail.get();
+            while (h < t) {
+                int index = (int) (h & BUFFER_MASK);
+                E e = buffer.get(index);
+                if (e == null) {
+                    // 生产者已经抢到位置但还没有写入
+                    break;
+                }
+                buffer.lazySet(index, null);
+                consumer.accept(e);
+                h++;
+            }
+            head.lazySet(h);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.google.common.cache;
+
+import com.google.common.annotations.GwtIncompatible;
+import com.google.common.cache.CacheLoader.UnsupportedLoadingOperationException;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+
+/**
+ * 以Redis作为二级缓存的CacheLoader，本地缓存未命中时先查Redis，Redis也没有才调用{@code origin}加载并写回Redis
+ *
+ * 配合{@link CacheBuilder#build(CacheLoader)}使用，本地的并发未命中由LocalCache的LoadingValueReference合并，
+ * 同一个key同一时刻在一个进程内只有一个线程访问Redis和后端，本地缓存过期时不会有大量请求同时打到Redis。
+ *
+ * 传入{@code revalidateExecutor}并且缓存配置了{@link CacheBuilder#refreshAfterWrite}时，过了刷新时间的key
+ * 在executor上异步从{@code origin}重新加载并写回Redis，读线程直接返回旧值(stale-while-revalidate)。
+ * 刷新不读Redis，Redis中的值可能和本地的旧值一样旧。
+ *
+ * Redis不可用时直接从{@code origin}加载，不写回Redis，也不把异常抛给调用者；{@code origin}的异常照常抛出。
+ * 两级缓存的命中情况由{@link #stats(Cache)}统一统计。
+ */
+@GwtIncompatible
+public final class RedisCacheLoader<K, V> extends CacheLoader<K, V> {
+
+    final JedisPool pool;
+    final String keyPrefix;
+    final Serializer<V> serializer;
+    final long ttlMillis;
+    final CacheLoader<K, V> origin;
+    final @Nullable Executor revalidateExecutor;
+
+    final LongAdder redisHitCount = new LongAdder();
+    final LongAdder redisMissCount = new LongAdder();
+    final LongAdder redisErrorCount = new LongAdder();
+    final LongAdder redisTotalTime = new LongAdder();
+    final LongAdder originLoadCount = new LongAdder();
+
+    /**
+     * @param pool               Redis连接池
+     * @param keyPrefix          Redis key的前缀，Redis key为前缀加上{@code String.valueOf(key)}
+     * @param serializer         value和Redis中字节的转换
+     * @param ttl                写入Redis的过期时间
+     * @param origin             Redis未命中时的加载器
+     * @param revalidateExecutor 异步刷新用的线程池，为null时刷新在读线程上同步进行
+     * @throws IllegalArgumentException {@code ttl}不是正数
+     */
+    public RedisCacheLoader(JedisPool pool, String keyPrefix, Serializer<V> serializer, long ttl, TimeUnit unit,
+                            CacheLoader<K, V> origin, @Nullable Executor revalidateExecutor) {
+        checkArgument(ttl > 0, "ttl must be positive: %s %s", ttl, unit);
+        this.pool = checkNotNull(pool);
+        this.keyPrefix = checkNotNull(keyPrefix);
+        this.serializer = checkNotNull(serializer);
+        this.ttlMillis = Math.max(1, unit.toMillis(ttl));
+        this.origin = checkNotNull(origin);
+        this.revalidateExecutor = revalidateExecutor;
+    }
+
+    /**
+     * 不做异步刷新的两级加载器
+     */
+    public static <K, V> RedisCacheLoader<K, V> from(JedisPool pool, String keyPrefix, Serializer<V> serializer,
+                                                     long ttl, TimeUnit unit, CacheLoader<K, V> origin) {
+        return new RedisCacheLoader<>(pool, keyPrefix, serializer, ttl, unit, origin, null);
+    }
+
+    @Override
+    public V load(K key) throws Exception {
+        byte[] redisKey = redisKey(key);
+        byte[] bytes = redisGet(redisKey);
+        if (bytes != null) {
+            return serializer.deserialize(bytes);
+        }
+        return loadFromOrigin(key, redisKey);
+    }
+
+    /**
+     * 刷新时直接从{@code origin}加载并写回Redis
+     */
+    @Override
+    public ListenableFuture<V> reload(final K key, V oldValue) throws Exception {
+        if (revalidateExecutor == null) {
+            return Futures.immediateFuture(loadFromOrigin(key, redisKey(key)));
+        }
+        ListenableFutureTask<V> task = ListenableFutureTask.create(() -> loadFromOrigin(key, redisKey(key)));
+        revalidateExecutor.execute(task);
+        return task;
+    }
+
+    V loadFromOrigin(K key, byte[] redisKey) throws Exception {
+        originLoadCount.increment();
+        V value = origin.load(key);
+        if (value != null) {
+            redisSet(redisKey, serializer.serialize(value));
+        }
+        return value;
+    }
+
+    /**
+     * 用一次MGET读取所有key，Redis未命中的key交给{@code origin}的loadAll，
+     * {@code origin}不支持批量加载时逐个加载
+     */
+    @Override
+    public Map<K, V> loadAll(Iterable<? extends K> keys) throws Exception {
+        List<K> keyList = new ArrayList<>();
+        for (K key : keys) {
+            keyList.add(key);
+        }
+        byte[][] redisKeys = new byte[keyList.size()][];
+        for (int i = 0; i < redisKeys.length; i++) {
+            redisKeys[i] = redisKey(keyList.get(i));
+        }
+
+        Map<K, V> result = new LinkedHashMap<>();
+        List<K> missing = new ArrayList<>();
+        List<byte[]> values = redisMultiGet(redisKeys);
+        for (int i = 0; i < keyList.size(); i++) {
+            byte[] bytes = (values == null) ? null : values.get(i);
+            if (bytes != null) {
+                result.put(keyList.get(i), serializer.deserialize(bytes));
+            } else {
+                missing.add(keyList.get(i));
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        Map<K, V> loaded;
+        try {
+            loaded = origin.loadAll(missing);
+            originLoadCount.add(missing.size());
+        } catch (UnsupportedLoadingOperationException e) {
+            loaded = new HashMap<>();
+            for (K key : missing) {
+                originLoadCount.increment();
+                loaded.put(key, origin.load(key));
+            }
+        }
+        for (Map.Entry<? extends K, ? extends V> entry : loaded.entrySet()) {
+            if (entry.getKey() != null && entry.getValue() != null) {
+                redisSet(redisKey(entry.getKey()), serializer.serialize(entry.getValue()));
+            }
+        }
+        result.putAll(loaded);
+        return result;
+    }
+
+    /**
+     * 删除Redis中的key，本地缓存需要调用者另外invalidate
+     */
+    public void invalidate(K key) {
+        byte[] redisKey = redisKey(key);
+        long start = System.nanoTime();
+        try (Jedis jedis = pool.getResource()) {
+            jedis.del(redisKey);
+        } catch (JedisException e) {
+            redisErrorCount.increment();
+            LocalCache.logger.log(Level.WARNING, "Exception thrown when deleting " + key + " from redis", e);
+        } finally {
+            redisTotalTime.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 本地缓存{@code cache}和Redis合在一起的统计
+     *
+     * @param cache 使用这个加载器创建的缓存，开启{@link CacheBuilder#recordStats()}时本地的计数才有意义
+     */
+    public Stats stats(Cache<?, ?> cache) {
+        return new Stats(cache.stats(), redisHitCount.sum(), redisMissCount.sum(), redisErrorCount.sum(),
+                redisTotalTime.sum(), originLoadCount.sum());
+    }
+
+    byte[] redisKey(K key) {
+        return (keyPrefix + key).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Redis中的value，未命中或者Redis不可用时返回null
+     */
+    @Nullable byte[] redisGet(byte[] redisKey) {
+        long start = System.nanoTime();
+        try (Jedis jedis = pool.getResource()) {
+            byte[] bytes = jedis.get(redisKey);
+            (bytes == null ? redisMissCount : redisHitCount).increment();
+            return bytes;
+        } catch (JedisException e) {
+            redisErrorCount.increment();
+            LocalCache.logger.log(Level.WARNING, "Exception thrown when reading from redis", e);
+            return null;
+        } finally {
+            redisTotalTime.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return 和{@code redisKeys}一一对应的value，Redis不可用时返回null
+     */
+    @Nullable List<byte[]> redisMultiGet(byte[][] redisKeys) {
+        long start = System.nanoTime();
+        try (Jedis jedis = pool.getResource()) {
+            List<byte[]> values = jedis.mget(redisKeys);
+            for (byte[] bytes : values) {
+                (bytes == null ? redisMissCount : redisHitCount).increment();
+            }
+            return values;
+        } catch (JedisException e) {
+            redisErrorCount.increment();
+            LocalCache.logger.log(Level.WARNING, "Exception thrown when reading from redis", e);
+            return null;
+        } finally {
+            redisTotalTime.add(System.nanoTime() - start);
+        }
+    }
+
+    void redisSet(byte[] redisKey, byte[] bytes) {
+        long start = System.nanoTime();
+        try (Jedis jedis = pool.getResource()) {
+            jedis.psetex(redisKey, ttlMillis, bytes);
+        } catch (JedisException e) {
+            redisErrorCount.increment();
+            LocalCache.logger.log(Level.WARNING, "Exception thrown when writing to redis", e);
+        } finally {
+            redisTotalTime.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 两级缓存的统计快照
+     *
+     * 本地缓存的一次未命中会先访问Redis，Redis也未命中时才访问后端，
+     * 所以{@code localStats().missCount() ≈ redisHitCount() + redisMissCount() + redis不可用的次数}
+     */
+    public static final class Stats {
+        final CacheStats localStats;
+        final long redisHitCount;
+        final long redisMissCount;
+        final long redisErrorCount;
+        final long redisTotalTime;
+        final long originLoadCount;
+
+        Stats(CacheStats localStats, long redisHitCount, long redisMissCount, long redisErrorCount,
+              long redisTotalTime, long originLoadCount) {
+            this.localStats = localStats;
+            this.redisHitCount = redisHitCount;
+            this.redisMissCount = redisMissCount;
+            this.redisErrorCount = redisErrorCount;
+            this.redisTotalTime = redisTotalTime;
+            this.originLoadCount = originLoadCount;
+        }
+
+        /**
+         * 本地缓存的统计
+         */
+        public CacheStats localStats() {
+            return localStats;
+        }
+
+        public long redisHitCount() {
+            return redisHitCount;
+        }
+
+        public long redisMissCount() {
+            return redisMissCount;
+        }
+
+        /**
+         * 访问Redis失败的次数，包括从连接池借不到连接
+         */
+        public long redisErrorCount() {
+            return redisErrorCount;
+        }
+
+        /**
+         * 访问Redis的平均耗时，单位纳秒
+         */
+        public double averageRedisPenalty() {
+            long count = redisHitCount + redisMissCount + redisErrorCount;
+            return (count == 0) ? 0.0 : (double) redisTotalTime / count;
+        }
+
+        /**
+         * 调用后端加载的key数
+         */
+        public long originLoadCount() {
+            return originLoadCount;
+        }
+
+        /**
+         * 本地或者Redis命中的请求占所有请求的比例
+         */
+        public double hitRate() {
+            long requestCount = localStats.requestCount();
+            return (requestCount == 0) ? 1.0 : (double) (localStats.hitCount() + redisHitCount) / requestCount;
+        }
+
+        /**
+         * 需要访问后端的请求占所有请求的比例
+         */
+        public double originLoadRate() {
+            long requestCount = localStats.requestCount();
+            return (requestCount == 0) ? 0.0 : (double) originLoadCount / requestCount;
+        }
+
+        @Override
+        public String toString() {
+            return "RedisCacheLoader.Stats{local=" + localStats
+                    + ", redisHitCount=" + redisHitCount
+                    + ", redisMissCount=" + redisMissCount
+                    + ", redisErrorCount=" + redisErrorCount
+                    + ", averageRedisPenalty=" + averageRedisPenalty()
+                    + ", originLoadCount=" + originLoadCount + "}";
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.google.common.cache;
+
+
+import com.google.common.annotations.GwtIncompatible;
+
+
+/**
+ * 异步投递移除通知时，队列满了怎么办，见{@link CacheBuilder#removalExecutor}
+ */
+@GwtIncompatible
+public enum RemovalOverflowPolicy {
+    /**
+     * 产生通知的写线程在释放Segment锁之后等待，直到队列降到容量以下。
+     * 通知不会丢失，但监听器持续跟不上时写操作会变慢
+     */
+    BLOCK,
+
+    /**
+     * 丢弃最早的通知，给新通知腾出位置
+     */
+    DROP_OLDEST,
+
+    /**
+     * 丢弃新产生的通知
+     */
+    DROP_NEWEST
+}
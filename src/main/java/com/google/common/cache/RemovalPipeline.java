@@ -0,0 +1,188 @@
+package com.google.common.cache;
+
+import com.google.common.annotations.GwtIncompatible;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+
+/**
+ * 在{@link CacheBuilder#removalExecutor}指定的线程池上批量投递移除通知
+ *
+ * Segment在持有锁时调用{@link #offer}，只是入队，从不阻塞；
+ * 释放锁之后调用{@link #dispatch}，提交投递任务，BLOCK策略下队列超过容量时在这里等待。
+ * 同一时刻最多只有一个投递任务在运行，所以监听器看到的通知是有序的。
+ */
+@GwtIncompatible
+final class RemovalPipeline<K, V> {
+
+    /**
+     * 每次交给监听器的通知数上限
+     */
+    static final int MAX_BATCH_SIZE = 256;
+
+    /**
+     * BLOCK时每次等待的时间，超时后重新提交投递任务，防止线程池拒绝后一直等下去
+     */
+    static final long BLOCK_RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    final RemovalListener<K, V> listener;
+    final Executor executor;
+    final int capacity;
+    final RemovalOverflowPolicy overflowPolicy;
+
+    final Queue<RemovalNotification<K, V>> queue = new ConcurrentLinkedQueue<>();
+    /*ConcurrentLinkedQueue.size()是O(n)的，单独计数*/
+    final AtomicInteger size = new AtomicInteger();
+    final AtomicBoolean scheduled = new AtomicBoolean();
+    final LongAdder droppedCount = new LongAdder();
+
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition notFull = lock.newCondition();
+
+    /**
+     * 正在执行投递任务的线程，监听器里写缓存时不能让它等自己
+     */
+    volatile Thread deliveringThread;
+
+    final Runnable deliveryTask = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    RemovalPipeline(RemovalListener<K, V> listener, Executor executor, int capacity,
+                    RemovalOverflowPolicy overflowPolicy) {
+        this.listener = listener;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * 加入一个通知，队列满时按overflowPolicy丢弃；BLOCK时先放进去，由{@link #dispatch}等待
+     */
+    void offer(RemovalNotification<K, V> notification) {
+        if (size.get() >= capacity) {
+            if (overflowPolicy == RemovalOverflowPolicy.DROP_NEWEST) {
+                droppedCount.increment();
+                return;
+            } else if (overflowPolicy == RemovalOverflowPolicy.DROP_OLDEST && queue.poll() != null) {
+                size.decrementAndGet();
+                droppedCount.increment();
+            }
+        }
+        queue.offer(notification);
+        size.incrementAndGet();
+    }
+
+    /**
+     * 提交投递任务，调用时不能持有Segment锁
+     */
+    void dispatch() {
+        schedule();
+        if (overflowPolicy != RemovalOverflowPolicy.BLOCK || size.get() <= capacity
+                || Thread.currentThread() == deliveringThread) {
+            return;
+        }
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            while (size.get() > capacity) {
+                try {
+                    notFull.awaitNanos(BLOCK_RECHECK_NANOS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                schedule();
+            }
+        } finally {
+            lock.unlock();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void schedule() {
+        if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(deliveryTask);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                LocalCache.logger.log(Level.WARNING, "Exception thrown when submitting removal notifications", e);
+            }
+        }
+    }
+
+    /**
+     * 投递队列中所有的通知，结束前再检查一次，避免丢掉清除标记之前刚入队的通知
+     */
+    void deliver() {
+        deliveringThread = Thread.currentThread();
+        try {
+            do {
+                List<RemovalNotification<K, V>> batch;
+                while (!(batch = pollBatch()).isEmpty()) {
+                    signalNotFull();
+                    deliver(batch);
+                }
+                scheduled.set(false);
+            } while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+        } finally {
+            deliveringThread = null;
+        }
+    }
+
+    private List<RemovalNotification<K, V>> pollBatch() {
+        List<RemovalNotification<K, V>> batch = new ArrayList<>(Math.min(MAX_BATCH_SIZE, Math.max(1, size.get())));
+        RemovalNotification<K, V> notification;
+        while (batch.size() < MAX_BATCH_SIZE && (notification = queue.poll()) != null) {
+            batch.add(notification);
+        }
+        size.addAndGet(-batch.size());
+        return batch;
+    }
+
+    private void deliver(List<RemovalNotification<K, V>> batch) {
+        if (listener instanceof BatchRemovalListener) {
+            try {
+                ((BatchRemovalListener<K, V>) listener).onRemovals(batch);
+            } catch (Throwable e) {
+                LocalCache.logger.log(Level.WARNING, "Exception thrown by removal listener", e);
+            }
+            return;
+        }
+        for (RemovalNotification<K, V> notification : batch) {
+            try {
+                listener.onRemoval(notification);
+            } catch (Throwable e) {
+                LocalCache.logger.log(Level.WARNING, "Exception thrown by removal listener", e);
+            }
+        }
+    }
+
+    private void signalNotFull() {
+        // 每批只有一次，不值得再判断有没有等待者
+        if (overflowPolicy == RemovalOverflowPolicy.BLOCK) {
+            lock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.google.common.cache;
+
+import com.google.common.annotations.GwtIncompatible;
+
+
+/**
+ * 把value转换为字节，用于{@link CacheBuilder#offHeap}把value存放在堆外
+ *
+ * 实现必须是线程安全的，deserialize(serialize(v))应该与v相等
+ */
+@GwtIncompatible
+public interface Serializer<V> {
+
+    /**
+     * 把value序列化为字节数组
+     */
+    byte[] serialize(V value);
+
+    /**
+     * 从字节数组还原value，每次读取缓存都会调用
+     */
+    V deserialize(byte[] bytes);
+}
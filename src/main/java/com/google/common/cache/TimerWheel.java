@@ -0,0 +1,187 @@
+package com.google.common.cache;
+
+
+import java.util.function.Predicate;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+
+/**
+ * 分层时间轮，用于每个entry过期时间各不相同的情况
+ *
+ * expireAfterWrite/expireAfterAccess所有entry的存活时长相同，写队列和访问队列天然按过期时间有序，
+ * 从队头开始检查即可。存活时长不同时队列不再有序，这里把entry按过期时间放入不同粒度的桶中，
+ * 时间推进时只需要处理经过的桶，调度、取消、推进的均摊复杂度都是O(1)。
+ *
+ * 每层的桶数和每个桶的跨度:
+ * 64 * 1.07s, 64 * 1.14m, 32 * 1.22h, 4 * 1.63d, 1 * 6.5d (溢出桶)
+ *
+ * 不是线程安全的，调用时必须持有Segment的锁。
+ */
+final class TimerWheel<K, V> {
+
+    static final int[] BUCKETS = {64, 64, 32, 4, 1};
+    static final long[] SPANS = {
+            1L << 30, // 1.07s
+            1L << 36, // 1.14m
+            1L << 42, // 1.22h
+            1L << 47, // 1.63d
+            1L << 49, // 6.5d
+            1L << 49, // 6.5d
+    };
+    static final long[] SHIFT = {
+            Long.numberOfTrailingZeros(SPANS[0]),
+            Long.numberOfTrailingZeros(SPANS[1]),
+            Long.numberOfTrailingZeros(SPANS[2]),
+            Long.numberOfTrailingZeros(SPANS[3]),
+            Long.numberOfTrailingZeros(SPANS[4]),
+    };
+
+    final Node<K, V>[][] wheel;
+
+    /*上一次推进到的时间*/
+    long nanos;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long now) {
+        nanos = now;
+        wheel = new Node[BUCKETS.length][];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Node[BUCKETS[i]];
+            for (int j = 0; j < wheel[i].length; j++) {
+                wheel[i][j] = new Node<>(null, 0);
+            }
+        }
+    }
+
+    /**
+     * 推进时间，处理所有经过的桶
+     *
+     * @param expirer 对已到期的entry调用，返回false表示没有被移除，需要重新调度
+     */
+    void advance(long currentTime, Predicate<Node<K, V>> expirer) {
+        long previousTime = nanos;
+        nanos = currentTime;
+        for (int i = 0; i < SHIFT.length; i++) {
+            long previousTicks = previousTime >>> SHIFT[i];
+            long currentTicks = currentTime >>> SHIFT[i];
+            if ((currentTicks - previousTicks) <= 0L) {
+                break;
+            }
+            expire(i, previousTicks, currentTicks - previousTicks, expirer);
+        }
+    }
+
+    void expire(int index, long previousTicks, long delta, Predicate<Node<K, V>> expirer) {
+        Node<K, V>[] timerWheel = wheel[index];
+        int mask = timerWheel.length - 1;
+        int steps = (int) Math.min(delta + 1, timerWheel.length);
+        int start = (int) (previousTicks & mask);
+        for (int i = start; i < start + steps; i++) {
+            Node<K, V> sentinel = timerWheel[i & mask];
+            Node<K, V> node = sentinel.next;
+            //先整体摘下这个桶，再逐个处理
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            while (node != sentinel) {
+                Node<K, V> next = node.next;
+                node.prev = null;
+                node.next = null;
+                if ((node.time - nanos) > 0L || !expirer.test(node)) {
+                    //读操作延长了存活时间，或者没能移除，重新放入合适的桶
+                    schedule(node);
+                }
+                node = next;
+            }
+        }
+    }
+
+    /**
+     * 按过期时间把节点放入对应的桶
+     */
+    void schedule(Node<K, V> node) {
+        if (node.next != null) {
+            unlink(node);
+        }
+        Node<K, V> sentinel = findBucket(node.time);
+        link(sentinel, node);
+    }
+
+    /**
+     * 把节点移出时间轮，不在时间轮中时什么都不做
+     */
+    void deschedule(Node<K, V> node) {
+        if (node.next != null) {
+            unlink(node);
+        }
+    }
+
+    /**
+     * 清空时间轮
+     */
+    void clear() {
+        for (Node<K, V>[] buckets : wheel) {
+            for (Node<K, V> sentinel : buckets) {
+                Node<K, V> node = sentinel.next;
+                while (node != sentinel) {
+                    Node<K, V> next = node.next;
+                    node.prev = null;
+                    node.next = null;
+                    node = next;
+                }
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+            }
+        }
+    }
+
+    Node<K, V> findBucket(long time) {
+        long duration = time - nanos;
+        int length = wheel.length - 1;
+        for (int i = 0; i < length; i++) {
+            if (duration < SPANS[i + 1]) {
+                long ticks = (time >>> SHIFT[i]);
+                int index = (int) (ticks & (wheel[i].length - 1));
+                return wheel[i][index];
+            }
+        }
+        return wheel[length][0];
+    }
+
+    static <K, V> void link(Node<K, V> sentinel, Node<K, V> node) {
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    static <K, V> void unlink(Node<K, V> node) {
+        node.next.prev = node.prev;
+        node.prev.next = node.next;
+        node.prev = null;
+        node.next = null;
+    }
+
+    /**
+     * 时间轮中的节点，链接到entry上
+     *
+     * entry在扩容等操作中会被复制，复制时只需要修改{@link #entry}。
+     * time在读操作时会被无锁地修改，所以是volatile的。
+     */
+    static final class Node<K, V> {
+        @Nullable ReferenceEntry<K, V> entry;
+        volatile long time;
+        @Nullable Node<K, V> prev;
+        @Nullable Node<K, V> next;
+
+        Node(@Nullable ReferenceEntry<K, V> entry, long time) {
+            this.entry = entry;
+            this.time = time;
+            if (entry == null) {
+                //哨兵节点
+                prev = this;
+                next = this;
+            }
+        }
+    }
+}
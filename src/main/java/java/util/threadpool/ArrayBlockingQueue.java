@@ -231,6 +231,34 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
         }
     }
 
+    /**
+     * 在一次加锁中按顺序插入c中的元素，直到队列满了
+     * @return 插入的元素个数，插入的是c的前若干个元素
+     * @throws NullPointerException 如果c或其中的元素为null，这时不插入任何元素
+     */
+    public int offerAll(Collection<? extends E> c) {
+        checkNotNull(c);
+        for (E e : c) {
+            checkNotNull(e);
+        }
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            int n = 0;
+            for (E e : c) {
+                if (count == items.length) {
+                    //队列满了
+                    break;
+                }
+                enqueue(e);
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * 插入元素到队列中，如果队列满啦则挂起线程等待队列中有位置
      */
@@ -0,0 +1,507 @@
+package java.util.threadpool;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 无锁的有界多生产者多消费者队列，可以代替ArrayBlockingQueue作为ThreadPoolExecutor的workQueue
+ *
+ * 1、基于数组的先进先出队列，容量不可变
+ * 2、每个位置有一个序号(Vyukov)：序号等于pos表示可以写入，等于pos+1表示可以读取，
+ *    生产者和消费者分别CAS tail和head抢占位置，不共用一把锁
+ * 3、head和tail做了缓存行填充，避免生产者和消费者互相干扰
+ * 4、只有队列满(put)或者空(take)时才先自旋，再在lock上等待
+ * 5、remove(Object)把元素替换为REMOVED，出队时跳过，位置在出队时才释放
+ * 6、迭代器是弱一致的快照
+ */
+public class MpmcArrayBlockingQueue<E> extends AbstractQueue<E>
+        implements BlockingQueue<E> {
+
+    /** 被remove(Object)删除的元素 */
+    private static final Object REMOVED = new Object();
+
+    /** 阻塞前自旋的次数 */
+    private static final int SPINS = 64;
+
+    /** 队列中元素 */
+    private final AtomicReferenceArray<Object> items;
+
+    /** 每个位置的序号 */
+    private final AtomicLongArray sequences;
+
+    private final int capacity;
+
+    /** 下一个取出元素的位置 */
+    private final PaddedAtomicLong head = new PaddedAtomicLong();
+
+    /** 下一个插入元素的位置 */
+    private final PaddedAtomicLong tail = new PaddedAtomicLong();
+
+    /** 只在队列满或者空需要阻塞时使用 */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** 等待取元素的Condition对象 */
+    private final Condition notEmpty = lock.newCondition();
+
+    /** 等待插入元素的Condition对象 */
+    private final Condition notFull = lock.newCondition();
+
+    /** 在notEmpty上等待的线程数，只在lock中修改 */
+    private volatile int waitingConsumers;
+
+    /** 在notFull上等待的线程数，只在lock中修改 */
+    private volatile int waitingProducers;
+
+    /**
+     * 填充到独占一个缓存行的AtomicLong
+     */
+    @SuppressWarnings("unused")
+    static final class PaddedAtomicLong extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    /**
+     * @param capacity 队列的容量
+     * @throws IllegalArgumentException capacity < 1
+     */
+    public MpmcArrayBlockingQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.capacity = capacity;
+        this.items = new AtomicReferenceArray<Object>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @param capacity 队列的容量
+     * @param c 初始的元素
+     * @throws IllegalArgumentException capacity < 1或者c的元素个数大于capacity
+     * @throws NullPointerException c或其中的元素为null
+     */
+    public MpmcArrayBlockingQueue(int capacity, Collection<? extends E> c) {
+        this(capacity);
+        for (E e : c) {
+            if (! offer(e)) {
+                throw new IllegalArgumentException();
+            }
+        }
+    }
+
+    /**
+     * 如果参数为null，则抛出NullPointerException
+     */
+    private static void checkNotNull(Object v) {
+        if (v == null) {
+            throw new NullPointerException();
+        }
+    }
+
+    private int index(long pos) {
+        return (int) (pos % capacity);
+    }
+
+    /**
+     * 插入元素，队列满了返回false
+     */
+    public boolean offer(E e) {
+        checkNotNull(e);
+        long pos = tail.get();
+        for (;;) {
+            int index = index(pos);
+            long dif = sequences.get(index) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items.lazySet(index, e);
+                    // volatile写，之后读waitingConsumers不会被重排到前面
+                    sequences.set(index, pos + 1);
+                    break;
+                }
+                pos = tail.get();
+            } else if (dif < 0) {
+                // 这个位置上一轮的元素还没有被取走，队列满了
+                return false;
+            } else {
+                // 被其他生产者抢先了
+                pos = tail.get();
+            }
+        }
+        if (waitingConsumers > 0) {
+            signal(notEmpty);
+        }
+        return true;
+    }
+
+    /**
+     * 取出元素，队列空了返回null
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long pos = head.get();
+        for (;;) {
+            int index = index(pos);
+            long dif = sequences.get(index) - (pos + 1);
+            if (dif == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    Object e = items.getAndSet(index, null);
+                    sequences.set(index, pos + capacity);
+                    if (waitingProducers > 0) {
+                        signal(notFull);
+                    }
+                    if (e != REMOVED) {
+                        return (E) e;
+                    }
+                }
+                pos = head.get();
+            } else if (dif < 0) {
+                // 这个位置还没有写入，队列空了
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    private void signal(Condition condition) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            condition.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 插入元素，队列满了则先自旋，再等待直到有空位
+     */
+    public void put(E e) throws InterruptedException {
+        checkNotNull(e);
+        for (int spins = SPINS; spins > 0; spins--) {
+            if (offer(e)) {
+                return;
+            }
+            Thread.yield();
+        }
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            waitingProducers++;
+            try {
+                // waitingProducers加1之后再检查，取元素的线程不会错过唤醒
+                while (! offer(e)) {
+                    notFull.await();
+                }
+            } finally {
+                waitingProducers--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 插入元素，队列满了则最多等待timeout
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        checkNotNull(e);
+        long nanos = unit.toNanos(timeout);
+        final long deadline = System.nanoTime() + nanos;
+        for (int spins = SPINS; spins > 0; spins--) {
+            if (offer(e)) {
+                return true;
+            }
+            if (nanos <= 0) {
+                return false;
+            }
+            Thread.yield();
+        }
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            waitingProducers++;
+            try {
+                while (! offer(e)) {
+                    nanos = deadline - System.nanoTime();
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    notFull.awaitNanos(nanos);
+                }
+                return true;
+            } finally {
+                waitingProducers--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出元素，队列空了则先自旋，再等待直到有元素
+     */
+    public E take() throws InterruptedException {
+        E e;
+        for (int spins = SPINS; spins > 0; spins--) {
+            if ((e = poll()) != null) {
+                return e;
+            }
+            Thread.yield();
+        }
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            waitingConsumers++;
+            try {
+                while ((e = poll()) == null) {
+                    notEmpty.await();
+                }
+                return e;
+            } finally {
+                waitingConsumers--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出元素，队列空了则最多等待timeout
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final long deadline = System.nanoTime() + nanos;
+        E e;
+        for (int spins = SPINS; spins > 0; spins--) {
+            if ((e = poll()) != null) {
+                return e;
+            }
+            if (nanos <= 0) {
+                return null;
+            }
+            Thread.yield();
+        }
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            waitingConsumers++;
+            try {
+                while ((e = poll()) == null) {
+                    nanos = deadline - System.nanoTime();
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    notEmpty.awaitNanos(nanos);
+                }
+                return e;
+            } finally {
+                waitingConsumers--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 返回队首的元素，不删除
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        long t = tail.get();
+        for (long pos = head.get(); pos < t; pos++) {
+            Object e = itemAt(pos);
+            if (e != null) {
+                return (E) e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * pos位置上已经写入并且没有被删除的元素，否则返回null
+     */
+    private Object itemAt(long pos) {
+        int index = index(pos);
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        Object e = items.get(index);
+        if (e == REMOVED || sequences.get(index) != pos + 1) {
+            return null;
+        }
+        return e;
+    }
+
+    /**
+     * 元素数量的估计值，包括已经被remove(Object)删除但还没有出队的元素
+     */
+    public int size() {
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.max(0, Math.min(capacity, t - h));
+    }
+
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    /**
+     * 剩余的容量
+     */
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    /**
+     * 删除一个和o相等的元素
+     */
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        long t = tail.get();
+        for (long pos = head.get(); pos < t; pos++) {
+            Object e = itemAt(pos);
+            if (e != null && o.equals(e) && items.compareAndSet(index(pos), e, REMOVED)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 按引用删除，迭代器使用
+     */
+    private boolean removeExact(Object o) {
+        long t = tail.get();
+        for (long pos = head.get(); pos < t; pos++) {
+            if (itemAt(pos) == o && items.compareAndSet(index(pos), o, REMOVED)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 是否包含o
+     */
+    public boolean contains(Object o) {
+        if (o == null) {
+            return false;
+        }
+        long t = tail.get();
+        for (long pos = head.get(); pos < t; pos++) {
+            Object e = itemAt(pos);
+            if (e != null && o.equals(e)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 当前元素的快照
+     */
+    public Object[] toArray() {
+        List<Object> list = new ArrayList<Object>();
+        long t = tail.get();
+        for (long pos = head.get(); pos < t; pos++) {
+            Object e = itemAt(pos);
+            if (e != null) {
+                list.add(e);
+            }
+        }
+        return list.toArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        Object[] snapshot = toArray();
+        if (a.length < snapshot.length) {
+            return (T[]) Arrays.copyOf(snapshot, snapshot.length, a.getClass());
+        }
+        System.arraycopy(snapshot, 0, a, 0, snapshot.length);
+        if (a.length > snapshot.length) {
+            a[snapshot.length] = null;
+        }
+        return a;
+    }
+
+    /**
+     * 清空队列
+     */
+    public void clear() {
+        while (poll() != null) {
+        }
+    }
+
+    /**
+     * 取出所有元素添加到c中
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 最多取出maxElements个元素添加到c中
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        checkNotNull(c);
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int n = 0;
+        E e;
+        while (n < maxElements && (e = poll()) != null) {
+            c.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * 弱一致的迭代器，遍历创建时的快照，remove会删除队列中的同一个元素
+     */
+    public Iterator<E> iterator() {
+        final Object[] snapshot = toArray();
+        return new Iterator<E>() {
+            int cursor;
+            int lastRet = -1;
+
+            public boolean hasNext() {
+                return cursor < snapshot.length;
+            }
+
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if (cursor >= snapshot.length) {
+                    throw new NoSuchElementException();
+                }
+                lastRet = cursor;
+                return (E) snapshot[cursor++];
+            }
+
+            public void remove() {
+                if (lastRet < 0) {
+                    throw new IllegalStateException();
+                }
+                removeExact(snapshot[lastRet]);
+                lastRet = -1;
+            }
+        };
+    }
+
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
@@ -1,10 +1,12 @@
 package java.util.threadpool;
 
+import java.lang.reflect.Method;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.AbstractQueuedSynchronizer;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 
@@ -149,6 +151,53 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      */
     private volatile int maximumPoolSize;
 
+    /**
+     * 是否使用work stealing模式，见allowWorkStealing
+     */
+    private volatile boolean workStealing;
+
+    /**
+     * work stealing模式下等待执行的任务数上限，取开启时workQueue的剩余容量
+     */
+    private volatile int stealingCapacity;
+
+    /**
+     * work stealing模式下，在各个worker的队列和sharedTasks中等待执行的任务数
+     * 放入队列前先加1，取出后再减1，所以不会小于实际的任务数
+     */
+    private final AtomicInteger stealingTaskCount = new AtomicInteger();
+
+    /**
+     * work stealing模式下，没有worker时提交的任务以及退出的worker剩下的任务
+     */
+    private final ConcurrentLinkedDeque<Runnable> sharedTasks = new ConcurrentLinkedDeque<Runnable>();
+
+    /**
+     * workers的快照，用于挑选放入任务和窃取任务的worker. 只在mainLock锁中修改
+     */
+    private volatile Worker[] stealTargets = new Worker[0];
+
+    /**
+     * 正在park等待任务的worker数量
+     */
+    private final AtomicInteger parkedCount = new AtomicInteger();
+
+    /**
+     * 当前线程对应的worker，不是这个线程池的线程时为null
+     */
+    private final ThreadLocal<Worker> currentWorker = new ThreadLocal<Worker>();
+
+    /**
+     * worker一次从workQueue中取出的最大任务数，1表示不批量取
+     */
+    private volatile int taskBatchSize = 1;
+
+    /**
+     * 每个任务一个虚拟线程的模式下，限制同时运行的任务数，每个worker持有一个许可
+     * 为null表示普通的线程池，见newVirtualThreadPerTaskExecutor
+     */
+    private final Semaphore concurrencyLimit;
+
     /**
      * 默认饱和处理策略
      */
@@ -176,6 +225,14 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         Runnable firstTask;
         /** 完成任务的数量 */
         volatile long completedTasks;
+        /** work stealing模式下的任务队列，自己从头部取，其他worker从尾部窃取 */
+        final ConcurrentLinkedDeque<Runnable> tasks = new ConcurrentLinkedDeque<Runnable>();
+        /** 是否正在park等待任务 */
+        volatile boolean parked;
+        /** 是否已经退出，退出后才放入tasks的任务要转移到sharedTasks */
+        volatile boolean exited;
+        /** 批量从workQueue中取出、还没有执行的任务 */
+        final ConcurrentLinkedQueue<Runnable> batch = new ConcurrentLinkedQueue<Runnable>();
 
         /**
          * @param firstTask 第一个任务，没有则为null
@@ -261,7 +318,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             int c = ctl.get();
             if (isRunning(c) ||
                 runStateAtLeast(c, TIDYING) ||
-                (runStateOf(c) == SHUTDOWN && ! workQueue.isEmpty())) {
+                (runStateOf(c) == SHUTDOWN && ! isQueueEmpty())) {
                 return;
             }
             if (workerCountOf(c) != 0) { // Eligible to terminate
@@ -403,6 +460,21 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         BlockingQueue<Runnable> q = workQueue;
         ArrayList<Runnable> taskList = new ArrayList<Runnable>();
         q.drainTo(taskList);
+        for (Worker w : workers) {
+            Runnable r;
+            while ((r = w.batch.poll()) != null) {
+                taskList.add(r);
+            }
+        }
+        if (workStealing) {
+            for (Deque<Runnable> tasks : stealingQueues()) {
+                Runnable r;
+                while ((r = tasks.pollFirst()) != null) {
+                    stealingTaskCount.decrementAndGet();
+                    taskList.add(r);
+                }
+            }
+        }
         //当队列为DelayQueue或者其他可能移动元素失败的队列时，再一次删除他们并添加到list中
         if (!q.isEmpty()) {
             for (Runnable r : q.toArray(new Runnable[0])) {
@@ -431,7 +503,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
 
             // 如果线程池的状态值大于或等于SHUTDOWN，则不处理提交的任务，直接返回
             if (rs >= SHUTDOWN && 
-            		! (rs == SHUTDOWN && firstTask == null &&! workQueue.isEmpty())) {
+            		! (rs == SHUTDOWN && firstTask == null &&! isQueueEmpty())) {
                 return false;
             }
 
@@ -479,6 +551,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
                         }
                         //将新建的worker加入到Set中
                         workers.add(w);
+                        updateStealTargets();
                         int s = workers.size();
                         if (s > largestPoolSize) {
                             largestPoolSize = s;
@@ -511,6 +584,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             if (w != null) {
             	//如果worker存在，从集合中删掉
                 workers.remove(w);
+                updateStealTargets();
             }
             //减少 worker数量
             decrementWorkerCount();
@@ -530,6 +604,18 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         if (completedAbruptly) {
             decrementWorkerCount();
         }
+        if (! w.batch.isEmpty()) {
+            requeueBatch(w);
+        }
+        if (workStealing) {
+            //自己队列中剩下的任务交给其他worker
+            currentWorker.remove();
+            w.exited = true;
+            Runnable r;
+            while ((r = w.tasks.pollFirst()) != null) {
+                sharedTasks.offerLast(r);
+            }
+        }
 
         final ReentrantLock mainLock = this.mainLock;
 
@@ -539,21 +625,33 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             completedTaskCount += w.completedTasks;
             //从HashSet<Worker>中移除
             workers.remove(w);
+            updateStealTargets();
         } finally {
             mainLock.unlock();
         }
+        if (workStealing && !sharedTasks.isEmpty()) {
+            signalWork(null);
+        }
         //尝试设置线程池状态为TERMINATED，如果当前是shutdonw状态并且工作队列为空
         //或者当前是stop状态当前线程池里面没有活动线程
         tryTerminate();
 
         //如果当前线程个数小于核心个数，则增加
         int c = ctl.get();
+        if (concurrencyLimit != null) {
+            //归还许可后再检查队列，避免提交任务的线程没拿到许可，这里又没看到它放入的任务
+            concurrencyLimit.release();
+            if (runStateLessThan(c, STOP) && ! isQueueEmpty()) {
+                startVirtualWorker(null);
+            }
+            return;
+        }
         //如果状态是running、shutdown，即tryTerminate()没有成功终止线程池，尝试再添加一个worker
         if (runStateLessThan(c, STOP)) {
             if (!completedAbruptly) {
                 //allowCoreThreadTimeOut默认为false，即min默认为corePoolSize
                 int min = allowCoreThreadTimeOut ? 0 : corePoolSize;
-                if (min == 0 && ! workQueue.isEmpty()) {
+                if (min == 0 && ! isQueueEmpty()) {
                     min = 1;
                 }
                 //如果线程数量大于最少数量，直接返回，否则下面至少要addWorker一个
@@ -566,8 +664,26 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         }
     }
 
+    /**
+     * worker因为任务抛出异常退出时，把批量取出还没执行的任务放回workQueue
+     * 放不回去时新建线程执行，再失败则执行饱和策略
+     */
+    private void requeueBatch(Worker w) {
+        Runnable r;
+        while ((r = w.batch.poll()) != null) {
+            if (! workQueue.offer(r) && ! addWorker(r, false)) {
+                try {
+                    reject(r);
+                } catch (RuntimeException ignore) {
+                    //提交任务的线程早已返回，没有地方抛出
+                }
+            }
+        }
+    }
+
     /**
      * 从队列获取task
+     * 设置了taskBatchSize时，先执行上次批量取出的任务，没有了再用一次drainTo取出多个
      * 以下情况会返回null
      * 1. 有超过maximumPoolSize数量的工作线程(由于调用了setMaximumPoolSize)
      * 2. 线程池已经stop
@@ -575,7 +691,11 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * 4. 工作线程等待任务超时啦，并且超时的工作线程被终止
      * @return  task或者null， 返回null表示这个worker要结束了，这种情况下workerCount-1
      */
-    private Runnable getTask() {
+    private Runnable getTask(Worker w) {
+        Runnable batched = w.batch.poll();
+        if (batched != null) {
+            return batched;
+        }
     	//最后一次出列是否超时
         boolean timedOut = false; // Did the last poll() time out?
 
@@ -584,18 +704,27 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             int rs = runStateOf(c);
 
             // 线程池已经SHUTDOWN且 线程池已经stop或阻塞队列为空，返回null
-            if (rs >= SHUTDOWN && (rs >= STOP || workQueue.isEmpty())) {
+            if (rs >= SHUTDOWN && (rs >= STOP || isQueueEmpty())) {
                 decrementWorkerCount();
                 return null;
             }
 
+            // 虚拟线程不保留空闲的worker，队列空了就退出
+            if (concurrencyLimit != null) {
+                Runnable r = workQueue.poll();
+                if (r == null) {
+                    decrementWorkerCount();
+                }
+                return r;
+            }
+
             int wc = workerCountOf(c);
 
             // 可以减少workerCount
             boolean timed = allowCoreThreadTimeOut || wc > corePoolSize;
 
             if ((wc > maximumPoolSize || (timed && timedOut))
-                && (wc > 1 || workQueue.isEmpty())) {
+                && (wc > 1 || isQueueEmpty())) {
                 //减少一个workerCount
                 if (compareAndDecrementWorkerCount(c)) {
                     return null;
@@ -604,6 +733,15 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             }
 
             try {
+                //一次加锁取出多个任务，队列空了才阻塞等待
+                int batchSize = taskBatchSize;
+                if (batchSize > 1 && workQueue.drainTo(w.batch, batchSize) > 0) {
+                    batched = w.batch.poll();
+                    if (batched != null) {
+                        return batched;
+                    }
+                    continue;
+                }
                 Runnable r = timed ?
                     workQueue.poll(keepAliveTime, TimeUnit.NANOSECONDS) :
                     workQueue.take();
@@ -618,6 +756,197 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         }
     }
 
+    /**
+     * work stealing模式下获取task，返回null的情况和getTask一样
+     * 依次从自己的队列、sharedTasks、其他worker的队列、workQueue中取任务，
+     * 都没有时park，直到有任务提交、超时或者被中断
+     */
+    private Runnable getStealingTask(Worker w) {
+        boolean timedOut = false;
+
+        for (;;) {
+            int c = ctl.get();
+            int rs = runStateOf(c);
+
+            if (rs >= SHUTDOWN && (rs >= STOP || isQueueEmpty())) {
+                decrementWorkerCount();
+                return null;
+            }
+
+            int wc = workerCountOf(c);
+            boolean timed = allowCoreThreadTimeOut || wc > corePoolSize;
+
+            if ((wc > maximumPoolSize || (timed && timedOut))
+                && (wc > 1 || isQueueEmpty())) {
+                if (compareAndDecrementWorkerCount(c)) {
+                    return null;
+                }
+                continue;
+            }
+
+            Runnable r = findTask(w);
+            if (r != null) {
+                return r;
+            }
+
+            w.parked = true;
+            parkedCount.incrementAndGet();
+            try {
+                // park前再找一次，提交任务的线程先放入任务再检查parkedCount，不会两边都错过
+                r = findTask(w);
+                if (r != null) {
+                    return r;
+                }
+                if (timed) {
+                    long deadline = System.nanoTime() + keepAliveTime;
+                    LockSupport.parkNanos(this, keepAliveTime);
+                    timedOut = System.nanoTime() - deadline >= 0;
+                } else {
+                    LockSupport.park(this);
+                    timedOut = false;
+                }
+            } finally {
+                w.parked = false;
+                parkedCount.decrementAndGet();
+            }
+            if (Thread.interrupted()) {
+                timedOut = false;
+            }
+        }
+    }
+
+    /**
+     * @return 找到的任务，没有则为null
+     */
+    private Runnable findTask(Worker w) {
+        Runnable r = w.tasks.pollFirst();
+        if (r == null) {
+            r = sharedTasks.pollFirst();
+        }
+        if (r == null) {
+            r = steal(w);
+        }
+        if (r == null) {
+            return workQueue.poll();
+        }
+        stealingTaskCount.decrementAndGet();
+        return r;
+    }
+
+    /**
+     * 从随机的一个worker开始，从其他worker的队列尾部窃取一个任务
+     */
+    private Runnable steal(Worker w) {
+        Worker[] targets = stealTargets;
+        int n = targets.length;
+        if (n > 1) {
+            int start = ThreadLocalRandom.current().nextInt(n);
+            for (int i = 0; i < n; i++) {
+                Worker victim = targets[(start + i) % n];
+                if (victim != w) {
+                    Runnable r = victim.tasks.pollLast();
+                    if (r != null) {
+                        return r;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * work stealing模式下放入任务，相当于workQueue.offer
+     * 工作线程提交的任务放入自己的队列，其他线程提交的放入随机一个worker的队列
+     *
+     * @return 等待执行的任务已经达到上限时返回false
+     */
+    private boolean offerStealingTask(Runnable command) {
+        for (;;) {
+            int n = stealingTaskCount.get();
+            if (n >= stealingCapacity) {
+                return false;
+            }
+            if (stealingTaskCount.compareAndSet(n, n + 1)) {
+                break;
+            }
+        }
+        Worker w = currentWorker.get();
+        if (w == null) {
+            Worker[] targets = stealTargets;
+            if (targets.length > 0) {
+                w = targets[ThreadLocalRandom.current().nextInt(targets.length)];
+            }
+        }
+        if (w == null) {
+            sharedTasks.offerLast(command);
+        } else {
+            w.tasks.offerLast(command);
+            //worker已经退出，它不会再取自己队列中的任务
+            if (w.exited && w.tasks.removeLastOccurrence(command)) {
+                sharedTasks.offerLast(command);
+            }
+        }
+        signalWork(w);
+        return true;
+    }
+
+    /**
+     * 唤醒一个park的worker，优先唤醒preferred
+     * 唤醒前清除parked，同时提交的其他线程会去唤醒别的worker
+     */
+    private void signalWork(Worker preferred) {
+        if (parkedCount.get() == 0) {
+            return;
+        }
+        if (preferred != null && preferred.parked) {
+            preferred.parked = false;
+            LockSupport.unpark(preferred.thread);
+            return;
+        }
+        for (Worker w : stealTargets) {
+            if (w.parked) {
+                w.parked = false;
+                LockSupport.unpark(w.thread);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 在mainLock锁中调用
+     */
+    private void updateStealTargets() {
+        if (workStealing) {
+            stealTargets = workers.toArray(new Worker[0]);
+        }
+    }
+
+    /**
+     * 是否没有等待执行的任务，work stealing模式下包括各个worker的队列
+     */
+    private boolean isQueueEmpty() {
+        return workQueue.isEmpty() && stealingTaskCount.get() == 0;
+    }
+
+    /**
+     * 等待执行的任务数，work stealing模式下包括各个worker的队列
+     */
+    private int queuedTaskCount() {
+        return workQueue.size() + stealingTaskCount.get();
+    }
+
+    /**
+     * work stealing模式下所有的任务队列
+     */
+    private List<Deque<Runnable>> stealingQueues() {
+        List<Deque<Runnable>> queues = new ArrayList<Deque<Runnable>>();
+        queues.add(sharedTasks);
+        for (Worker w : stealTargets) {
+            queues.add(w.tasks);
+        }
+        return queues;
+    }
+
     /**
      * 核心方法
      * 反复从队列中获取任务并执行他们
@@ -631,9 +960,12 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         w.firstTask = null;
         //tryRelease中会setState(0)，只有state>=0后才能中断
         w.unlock();
+        if (workStealing) {
+            currentWorker.set(w);
+        }
         boolean completedAbruptly = true;
         try {
-            while (task != null || (task = getTask()) != null) {
+            while (task != null || (task = (workStealing ? getStealingTask(w) : getTask(w))) != null) {
                 w.lock();
                 // 如果线程池当前状态至少是stop，则设置中断标志;
                 // 如果线程池当前状态是RUNNININ，则重置中断标志，重置后需要重新
@@ -765,6 +1097,18 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
                               BlockingQueue<Runnable> workQueue,
                               ThreadFactory threadFactory,
                               RejectedExecutionHandler handler) {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue,
+             threadFactory, handler, null);
+    }
+
+    private ThreadPoolExecutor(int corePoolSize,
+                               int maximumPoolSize,
+                               long keepAliveTime,
+                               TimeUnit unit,
+                               BlockingQueue<Runnable> workQueue,
+                               ThreadFactory threadFactory,
+                               RejectedExecutionHandler handler,
+                               Semaphore concurrencyLimit) {
         if (corePoolSize < 0 ||
             maximumPoolSize <= 0 ||
             maximumPoolSize < corePoolSize ||
@@ -778,6 +1122,60 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         this.keepAliveTime = unit.toNanos(keepAliveTime);
         this.threadFactory = threadFactory;
         this.handler = handler;
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    /**
+     * 创建一个每个任务一个虚拟线程的线程池，适合大部分时间阻塞在I/O上的任务
+     * 运行时不支持虚拟线程(JDK 21之前)时使用普通的平台线程，行为不变，只是线程更贵
+     *
+     * 同时运行的任务数由maxConcurrency个许可限制，不使用corePoolSize和maximumPoolSize，
+     * 也不保留空闲线程：任务结束后worker继续执行workQueue中的任务，队列空了就退出。
+     * 许可用完时任务放入workQueue，workQueue满了执行饱和策略，和普通线程池一样可以使用
+     * CallerRunsPolicy、AbortPolicy、DiscardPolicy、DiscardOldestPolicy
+     *
+     * @param maxConcurrency 同时运行的最大任务数
+     * @param workQueue 许可用完时保存任务的队列，它的容量就是排队的上限
+     * @param handler 排队也满了时的饱和策略
+     * @throws IllegalArgumentException maxConcurrency <= 0
+     * @throws NullPointerException workQueue或handler为null
+     */
+    public static ThreadPoolExecutor newVirtualThreadPerTaskExecutor(int maxConcurrency,
+                                                                     BlockingQueue<Runnable> workQueue,
+                                                                     RejectedExecutionHandler handler) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException();
+        }
+        return new ThreadPoolExecutor(0, CAPACITY, 0, TimeUnit.NANOSECONDS, workQueue,
+                virtualThreadFactory(), handler, new Semaphore(maxConcurrency));
+    }
+
+    /**
+     * 运行时支持时返回Thread.ofVirtual().factory()，否则返回默认的线程工厂
+     * 通过反射调用，在JDK 21之前也能编译和运行
+     */
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return Executors.defaultThreadFactory();
+        }
+    }
+
+    /**
+     * 是否是newVirtualThreadPerTaskExecutor创建的线程池
+     */
+    public boolean isVirtualThreadPerTask() {
+        return concurrencyLimit != null;
+    }
+
+    /**
+     * @return 每个任务一个虚拟线程的模式下还可以同时运行的任务数，普通线程池返回-1
+     */
+    public int getAvailableConcurrency() {
+        return concurrencyLimit != null ? concurrencyLimit.availablePermits() : -1;
     }
 
     /**
@@ -799,6 +1197,10 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
          * 3. 如果无法将任务入队列（可能队列满了）， 需要新开区一个线程（自己：往maxPoolSize发展）如果失败了，
          * 说明线程池shutdown 或者 饱和了，所以我们拒绝任务
          */
+        if (concurrencyLimit != null) {
+            executeVirtual(command);
+            return;
+        }
         int c = ctl.get();
         //如果线程数小于corePoolSize,则执行addWorker方法创建新的线程执行任务
         if (workerCountOf(c) < corePoolSize) {
@@ -812,7 +1214,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         /*---下面的workerCountOf已经 >= corePoolSize啦---*/
 
         //如果线程池处于RUNNING状态，且把提交的任务成功放入阻塞队列中
-        if (isRunning(c) && workQueue.offer(command)) {
+        if (isRunning(c) && (workStealing ? offerStealingTask(command) : workQueue.offer(command))) {
         	//双重校验去确认是否应该新建一个线程
             int recheck = ctl.get();
             //如果线程池已经被关闭，则将任务移出队列并执行饱和策略
@@ -828,6 +1230,128 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         }
     }
 
+    /**
+     * 批量执行任务，效果和依次调用execute一样，但放入workQueue时只加一次锁
+     * 1. 线程数小于corePoolSize时，每个任务新建一个核心线程执行
+     * 2. 剩下的任务一次放入workQueue，ArrayBlockingQueue通过offerAll在一次加锁中完成
+     * 3. 放不下的任务新建非核心线程执行，失败则对这个任务执行饱和策略
+     * AbortPolicy抛出异常时，后面的任务不会被提交
+     * work stealing和每个任务一个虚拟线程的模式下逐个调用execute
+     *
+     * @param commands 要被执行的任务
+     * @throws NullPointerException commands或其中的任务为null，这时不执行任何任务
+     */
+    public void executeAll(Collection<? extends Runnable> commands) {
+        if (commands == null) {
+            throw new NullPointerException();
+        }
+        for (Runnable command : commands) {
+            if (command == null) {
+                throw new NullPointerException();
+            }
+        }
+        if (workStealing || concurrencyLimit != null) {
+            for (Runnable command : commands) {
+                execute(command);
+            }
+            return;
+        }
+
+        List<Runnable> pending = new ArrayList<Runnable>(commands.size());
+        for (Runnable command : commands) {
+            if (pending.isEmpty() && workerCountOf(ctl.get()) < corePoolSize && addWorker(command, true)) {
+                continue;
+            }
+            pending.add(command);
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        int queued = isRunning(ctl.get()) ? offerAll(pending) : 0;
+        if (queued > 0) {
+            int recheck = ctl.get();
+            if (! isRunning(recheck)) {
+                //放入队列后线程池被关闭，移出还在队列中的任务并执行饱和策略
+                for (Runnable command : pending.subList(0, queued)) {
+                    if (remove(command)) {
+                        reject(command);
+                    }
+                }
+            } else if (workerCountOf(recheck) == 0) {
+                addWorker(null, false);
+            }
+        }
+        for (Runnable command : pending.subList(queued, pending.size())) {
+            if (! addWorker(command, false)) {
+                reject(command);
+            }
+        }
+    }
+
+    /**
+     * 按顺序放入workQueue，直到放不下
+     * @return 放入的任务个数
+     */
+    private int offerAll(List<Runnable> tasks) {
+        BlockingQueue<Runnable> q = workQueue;
+        if (q instanceof ArrayBlockingQueue) {
+            return ((ArrayBlockingQueue<Runnable>) q).offerAll(tasks);
+        }
+        int n = 0;
+        for (Runnable task : tasks) {
+            if (! q.offer(task)) {
+                break;
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * 每个任务一个虚拟线程的模式下执行任务
+     * 1. 能拿到许可就新建一个worker执行任务
+     * 2. 拿不到就放入workQueue，等运行中的worker结束时执行
+     * 3. workQueue满了执行饱和策略
+     */
+    private void executeVirtual(Runnable command) {
+        int c = ctl.get();
+        if (isRunning(c) && startVirtualWorker(command)) {
+            return;
+        }
+        if (isRunning(c) && workQueue.offer(command)) {
+            int recheck = ctl.get();
+            if (! isRunning(recheck) && remove(command)) {
+                reject(command);
+            } else {
+                //放入队列之前，运行中的worker可能已经全部结束
+                startVirtualWorker(null);
+            }
+        } else {
+            reject(command);
+        }
+    }
+
+    /**
+     * 拿到许可后新建一个worker，firstTask为null时worker从workQueue取任务
+     *
+     * @return 是否启动了worker，没有启动时许可已经归还
+     */
+    private boolean startVirtualWorker(Runnable firstTask) {
+        if (! concurrencyLimit.tryAcquire()) {
+            return false;
+        }
+        boolean started = false;
+        try {
+            started = addWorker(firstTask, false);
+        } finally {
+            if (! started) {
+                concurrencyLimit.release();
+            }
+        }
+        return started;
+    }
+
     /**
      * 关闭线程池，线程池不会接收新任务，但会处理阻塞队列中的任务
      */
@@ -976,6 +1500,9 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         if (corePoolSize < 0) {
             throw new IllegalArgumentException();
         }
+        if (concurrencyLimit != null) {
+            throw new IllegalStateException("Virtual thread per task executor has no core threads");
+        }
         int delta = corePoolSize - this.corePoolSize;
         this.corePoolSize = corePoolSize;
         if (workerCountOf(ctl.get()) > corePoolSize) {
@@ -985,9 +1512,9 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             // As a heuristic, prestart enough new workers (up to new
             // core size) to handle the current number of tasks in
             // queue, but stop if queue becomes empty while doing so.
-            int k = Math.min(delta, workQueue.size());
+            int k = Math.min(delta, queuedTaskCount());
             while (k-- > 0 && addWorker(null, true)) {
-                if (workQueue.isEmpty()) {
+                if (isQueueEmpty()) {
                     break;
                 }
             }
@@ -1060,6 +1587,63 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         }
     }
 
+    /**
+     * 开启work stealing模式：每个worker有自己的任务队列，空闲时从其他worker的队列窃取任务，
+     * 提交和获取任务都不再经过共享的workQueue，大量短任务时workQueue不会成为瓶颈
+     *
+     * corePoolSize、maximumPoolSize、keepAliveTime和饱和策略的语义不变，workQueue只用来确定容量：
+     * 等待执行的任务数不超过开启时workQueue的剩余容量，超过时和workQueue满了一样新建非核心线程或者执行饱和策略
+     * 这些任务不在getQueue()返回的队列中，DiscardOldestPolicy丢弃的是sharedTasks或者某个worker队列头部的任务
+     *
+     * @param value 是否开启
+     * @throws IllegalStateException 已经启动过线程，或者是每个任务一个虚拟线程的线程池
+     */
+    public void allowWorkStealing(boolean value) {
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            if (workerCountOf(ctl.get()) != 0 || ! workers.isEmpty()) {
+                throw new IllegalStateException("Work stealing must be set before any thread is started");
+            }
+            if (concurrencyLimit != null) {
+                throw new IllegalStateException("Virtual thread per task executor does not support work stealing");
+            }
+            stealingCapacity = workQueue.remainingCapacity();
+            workStealing = value;
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * 是否开启了work stealing模式
+     */
+    public boolean allowsWorkStealing() {
+        return workStealing;
+    }
+
+    /**
+     * 设置worker一次从workQueue中取出的最大任务数，大量很短的任务时可以减少取任务的加锁次数
+     * 取出的任务由这个worker依次执行，其他空闲的worker拿不到，所以任务耗时差别大时不宜设置太大
+     * work stealing和每个任务一个虚拟线程的模式下不生效
+     *
+     * @param taskBatchSize 1表示不批量取
+     * @throws IllegalArgumentException taskBatchSize < 1
+     */
+    public void setTaskBatchSize(int taskBatchSize) {
+        if (taskBatchSize < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.taskBatchSize = taskBatchSize;
+    }
+
+    /**
+     * @return worker一次从workQueue中取出的最大任务数
+     */
+    public int getTaskBatchSize() {
+        return taskBatchSize;
+    }
+
     /**
      * 设置线程池中允许的最大线程数量
      * @param maximumPoolSize 新的maximumPoolSize
@@ -1069,6 +1653,9 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
     public void setMaximumPoolSize(int maximumPoolSize) {
         if (maximumPoolSize <= 0 || maximumPoolSize < corePoolSize)
             throw new IllegalArgumentException();
+        if (concurrencyLimit != null) {
+            throw new IllegalStateException("Virtual thread per task executor is bounded by maxConcurrency");
+        }
         this.maximumPoolSize = maximumPoolSize;
         if (workerCountOf(ctl.get()) > maximumPoolSize)
             interruptIdleWorkers();
@@ -1128,11 +1715,57 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * @return 任务是否被移除
      */
     public boolean remove(Runnable task) {
-        boolean removed = workQueue.remove(task);
+        boolean removed = workQueue.remove(task) || removeFromBatches(task);
+        if (! removed && workStealing) {
+            for (Deque<Runnable> tasks : stealingQueues()) {
+                if (tasks.remove(task)) {
+                    stealingTaskCount.decrementAndGet();
+                    removed = true;
+                    break;
+                }
+            }
+        }
         tryTerminate(); // In case SHUTDOWN and now empty
         return removed;
     }
 
+    /**
+     * 取出最早提交的一个等待中的任务，供DiscardOldestPolicy丢弃
+     * work stealing模式下没有全局的顺序，依次取sharedTasks和各个worker队列头部的任务
+     *
+     * @return 取出的任务，没有等待中的任务时为null
+     */
+    Runnable pollOldestTask() {
+        if (workStealing) {
+            for (Deque<Runnable> tasks : stealingQueues()) {
+                Runnable r = tasks.pollFirst();
+                if (r != null) {
+                    stealingTaskCount.decrementAndGet();
+                    return r;
+                }
+            }
+        }
+        return workQueue.poll();
+    }
+
+    /**
+     * 从各个worker批量取出的任务中删除
+     */
+    private boolean removeFromBatches(Runnable task) {
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            for (Worker w : workers) {
+                if (w.batch.remove(task)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
     /**
      * 删除队列中所有的被取消的任务
      */
@@ -1155,6 +1788,28 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
                     q.remove(r);
                 }
         }
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            for (Worker w : workers) {
+                for (Runnable r : w.batch) {
+                    if (r instanceof Future<?> && ((Future<?>)r).isCancelled()) {
+                        w.batch.remove(r);
+                    }
+                }
+            }
+        } finally {
+            mainLock.unlock();
+        }
+        if (workStealing) {
+            for (Deque<Runnable> tasks : stealingQueues()) {
+                for (Runnable r : tasks) {
+                    if (r instanceof Future<?> && ((Future<?>)r).isCancelled() && tasks.removeFirstOccurrence(r)) {
+                        stealingTaskCount.decrementAndGet();
+                    }
+                }
+            }
+        }
 
         tryTerminate(); // In case SHUTDOWN and now empty
     }
@@ -1217,12 +1872,12 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         try {
             long n = completedTaskCount;
             for (Worker w : workers) {
-                n += w.completedTasks;
+                n += w.completedTasks + w.batch.size();
                 if (w.isLocked()) {
                     ++n;
                 }
             }
-            return n + workQueue.size();
+            return n + queuedTaskCount();
         } finally {
             mainLock.unlock();
         }
@@ -1248,7 +1903,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
     
     public String toString() {
         long ncompleted;
-        int nworkers, nactive;
+        int nworkers, nactive, nbatched = 0;
         final ReentrantLock mainLock = this.mainLock;
         mainLock.lock();
         try {
@@ -1257,6 +1912,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             nworkers = workers.size();
             for (Worker w : workers) {
                 ncompleted += w.completedTasks;
+                nbatched += w.batch.size();
                 if (w.isLocked())
                     ++nactive;
             }
@@ -1271,7 +1927,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             "[" + rs +
             ", pool size = " + nworkers +
             ", active threads = " + nactive +
-            ", queued tasks = " + workQueue.size() +
+            ", queued tasks = " + (queuedTaskCount() + nbatched) +
             ", completed tasks = " + ncompleted +
             "]";
     }
@@ -1345,7 +2001,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
 
         public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
             if (!e.isShutdown()) {
-                e.getQueue().poll();
+                e.pollOldestTask();
                 e.execute(r);
             }
         }
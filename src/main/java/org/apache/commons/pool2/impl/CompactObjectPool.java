@@ -0,0 +1,657 @@
+package org.apache.commons.pool2.impl;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.pool2.ObjectPool;
+import org.apache.commons.pool2.PoolUtils;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectFactory;
+import org.apache.commons.pool2.PooledObjectState;
+
+
+/**
+ * 面向超大池的紧凑实现
+ *
+ * {@link GenericObjectPool}中每个对象都对应一个常驻的{@link DefaultPooledObject}
+ * 和一个allObjects中的IdentityWrapper，对象数上万时这些元数据会成为老年代的负担。
+ * 这里按槽位(slot)编号，把状态、时间戳、借出次数放在基本类型的并行数组中，
+ * 对象到槽位的映射使用开放寻址的int索引，而不是identity hash map。
+ *
+ * 容量在构造时就固定为maxTotal，所以maxTotal必须为正数。
+ * 只有在回调工厂的生命周期方法时才会临时包装一个{@link PooledObject}，
+ * 这种短命对象在新生代就会被回收掉。
+ */
+public class CompactObjectPool<T> implements ObjectPool<T> {
+
+    /**
+     * 索引中表示空位的值，槽位在索引中以slot + 1存储
+     */
+    private static final int EMPTY = 0;
+
+    /**
+     * awaitIdle返回此值表示可以重新尝试创建对象
+     */
+    private static final int RETRY = -2;
+
+    private final PooledObjectFactory<T> factory;
+    private final int capacity;
+
+    private final boolean lifo;
+    private final boolean blockWhenExhausted;
+    private final long maxWaitMillis;
+    private final int maxIdle;
+    private final boolean testOnCreate;
+    private final boolean testOnBorrow;
+    private final boolean testOnReturn;
+
+    /**
+     * 所有状态都由这把锁保护，工厂回调一律在锁外执行
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    // --- 以槽位编号为下标的并行数组 ---------------------------------------
+
+    private final Object[] objects;
+    /*PooledObjectState的ordinal，-1表示槽位未被使用*/
+    private final byte[] states;
+    private final long[] createTimes;
+    private final long[] lastBorrowTimes;
+    private final long[] lastReturnTimes;
+    private final long[] borrowCounts;
+
+    // --- 对象 -> 槽位的开放寻址索引 ---------------------------------------
+
+    private final int[] index;
+    private final int indexMask;
+
+    // --- 空闲槽位和未使用的槽位 -------------------------------------------
+
+    /*空闲对象的槽位组成的环形双端队列*/
+    private final int[] idleSlots;
+    private int idleHead;
+    private int idleCount;
+    /*未被占用的槽位栈*/
+    private final int[] freeSlots;
+    private int freeCount;
+    /*已创建和正在创建的对象数*/
+    private int createCount;
+
+    private volatile boolean closed;
+
+    /**
+     * 使用指定的GenericObjectPoolConfig创建一个新的CompactObjectPool对象
+     *
+     * @throws IllegalArgumentException 如果factory为null或maxTotal不是正数
+     */
+    public CompactObjectPool(PooledObjectFactory<T> factory,
+                             GenericObjectPoolConfig config) {
+        if (factory == null) {
+            throw new IllegalArgumentException("factory may not be null");
+        }
+        if (config.getMaxTotal() <= 0) {
+            throw new IllegalArgumentException(
+                    "CompactObjectPool requires a positive maxTotal");
+        }
+        this.factory = factory;
+        this.capacity = config.getMaxTotal();
+        this.lifo = config.getLifo();
+        this.blockWhenExhausted = config.getBlockWhenExhausted();
+        this.maxWaitMillis = config.getMaxWaitMillis();
+        this.maxIdle = config.getMaxIdle();
+        this.testOnCreate = config.getTestOnCreate();
+        this.testOnBorrow = config.getTestOnBorrow();
+        this.testOnReturn = config.getTestOnReturn();
+
+        objects = new Object[capacity];
+        states = new byte[capacity];
+        Arrays.fill(states, (byte) -1);
+        createTimes = new long[capacity];
+        lastBorrowTimes = new long[capacity];
+        lastReturnTimes = new long[capacity];
+        borrowCounts = new long[capacity];
+
+        //索引至少是容量的两倍，保证负载因子不超过0.5
+        int indexSize = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 2;
+        index = new int[indexSize];
+        indexMask = indexSize - 1;
+
+        idleSlots = new int[capacity];
+        freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+        freeCount = capacity;
+    }
+
+    /**
+     * 从池中取出一个对象，语义与{@link GenericObjectPool#borrowObject(long)}相同
+     */
+    @Override
+    public T borrowObject() throws Exception {
+        assertOpen();
+        while (true) {
+            int slot = pollIdle();
+            boolean create = false;
+            if (slot < 0) {
+                //没有空闲对象，尝试创建一个新的池对象
+                slot = create();
+                create = slot >= 0;
+            }
+            if (slot < 0) {
+                if (!blockWhenExhausted) {
+                    throw new NoSuchElementException("Pool exhausted");
+                }
+                slot = awaitIdle(maxWaitMillis);
+                if (slot == RETRY) {
+                    //等待期间有对象被销毁，腾出了创建新对象的容量
+                    continue;
+                }
+                if (slot < 0) {
+                    throw new NoSuchElementException(
+                            "Timeout waiting for idle object");
+                }
+            }
+
+            @SuppressWarnings("unchecked")
+            T obj = (T) objects[slot];
+            PooledObject<T> p = wrap(obj);
+            try {
+                //重新初始化池返回的实例.
+                factory.activateObject(p);
+            } catch (Exception e) {
+                destroyQuietly(slot);
+                if (create) {
+                    NoSuchElementException nsee = new NoSuchElementException(
+                            "Unable to activate object");
+                    nsee.initCause(e);
+                    throw nsee;
+                }
+                continue;
+            }
+            if (testOnBorrow || create && testOnCreate) {
+                boolean validate = false;
+                Throwable validationThrowable = null;
+                try {
+                    validate = factory.validateObject(p);
+                } catch (Throwable t) {
+                    PoolUtils.checkRethrow(t);
+                    validationThrowable = t;
+                }
+                if (!validate) {
+                    destroyQuietly(slot);
+                    if (create) {
+                        NoSuchElementException nsee = new NoSuchElementException(
+                                "Unable to validate object");
+                        nsee.initCause(validationThrowable);
+                        throw nsee;
+                    }
+                    continue;
+                }
+            }
+            return obj;
+        }
+    }
+
+    /**
+     * 返回对象到池中
+     */
+    @Override
+    public void returnObject(T obj) throws Exception {
+        int slot;
+        lock.lock();
+        try {
+            slot = slotOf(obj);
+            if (slot < 0) {
+                throw new IllegalStateException(
+                        "Returned object not currently part of this pool");
+            }
+            if (states[slot] != PooledObjectState.ALLOCATED.ordinal()) {
+                throw new IllegalStateException(
+                        "Object has already been returned to this pool or is invalid");
+            }
+            states[slot] = (byte) PooledObjectState.RETURNING.ordinal();
+        } finally {
+            lock.unlock();
+        }
+
+        PooledObject<T> p = wrap(obj);
+        if (testOnReturn) {
+            boolean validate = false;
+            try {
+                validate = factory.validateObject(p);
+            } catch (Throwable t) {
+                //校验抛出异常时同样销毁，否则槽位一直停在RETURNING
+                destroyQuietly(slot);
+                PoolUtils.checkRethrow(t);
+                return;
+            }
+            if (!validate) {
+                destroyQuietly(slot);
+                return;
+            }
+        }
+        try {
+            factory.passivateObject(p);
+        } catch (Exception e) {
+            destroyQuietly(slot);
+            return;
+        }
+
+        boolean destroy;
+        lock.lock();
+        try {
+            lastReturnTimes[slot] = System.currentTimeMillis();
+            destroy = closed || maxIdle > -1 && maxIdle <= idleCount;
+            if (!destroy) {
+                states[slot] = (byte) PooledObjectState.IDLE.ordinal();
+                pushIdle(slot);
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (destroy) {
+            //关闭了或空闲数量太多
+            destroyQuietly(slot);
+        }
+    }
+
+    /**
+     * 使池中的对象无效
+     */
+    @Override
+    public void invalidateObject(T obj) throws Exception {
+        int slot;
+        lock.lock();
+        try {
+            slot = slotOf(obj);
+            if (slot < 0) {
+                throw new IllegalStateException(
+                        "Invalidated object not currently part of this pool");
+            }
+            if (states[slot] == PooledObjectState.INVALID.ordinal()) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        destroy(slot);
+    }
+
+    /**
+     * 添加对象
+     */
+    @Override
+    public void addObject() throws Exception {
+        assertOpen();
+        int slot = create();
+        if (slot < 0) {
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        T obj = (T) objects[slot];
+        try {
+            factory.passivateObject(wrap(obj));
+        } catch (Exception e) {
+            destroyQuietly(slot);
+            throw e;
+        }
+        lock.lock();
+        try {
+            states[slot] = (byte) PooledObjectState.IDLE.ordinal();
+            pushIdle(slot);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getNumIdle() {
+        lock.lock();
+        try {
+            return idleCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getNumActive() {
+        lock.lock();
+        try {
+            return capacity - freeCount - idleCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 指定对象被借出的次数，对象不属于此池时返回-1
+     */
+    public long getBorrowedCount(T obj) {
+        lock.lock();
+        try {
+            int slot = slotOf(obj);
+            return slot < 0 ? -1 : borrowCounts[slot];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 指定对象的空闲时长(毫秒)，对象不属于此池或不空闲时返回-1
+     */
+    public long getIdleTimeMillis(T obj) {
+        lock.lock();
+        try {
+            int slot = slotOf(obj);
+            if (slot < 0 || states[slot] != PooledObjectState.IDLE.ordinal()) {
+                return -1;
+            }
+            long lastReturn = Math.max(lastReturnTimes[slot], createTimes[slot]);
+            return System.currentTimeMillis() - lastReturn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 清除池中空闲的所有对象
+     */
+    @Override
+    public void clear() {
+        int slot;
+        while ((slot = pollIdleForDestroy()) >= 0) {
+            destroyQuietly(slot);
+        }
+    }
+
+    /**
+     * 关闭池，已借出的对象在返回时被摧毁
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            //释放所有等待对象的线程
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        clear();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void assertOpen() throws IllegalStateException {
+        if (closed) {
+            throw new IllegalStateException("Pool not open");
+        }
+    }
+
+    // --- 空闲队列 ----------------------------------------------------------
+
+    /**
+     * 取出一个空闲槽位并标记为ALLOCATED，没有空闲对象时返回-1
+     */
+    private int pollIdle() {
+        lock.lock();
+        try {
+            return allocateIdle();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 等待一个空闲槽位，maxWait小于0表示一直等待，超时或池关闭时返回-1，
+     * 有容量可以创建新对象时返回RETRY
+     */
+    private int awaitIdle(long maxWait) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+        lock.lockInterruptibly();
+        try {
+            while (idleCount == 0) {
+                if (closed) {
+                    return -1;
+                }
+                if (createCount < capacity) {
+                    return RETRY;
+                }
+                if (maxWait < 0) {
+                    notEmpty.await();
+                } else {
+                    if (nanos <= 0) {
+                        return -1;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+            }
+            return allocateIdle();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int allocateIdle() {
+        if (idleCount == 0) {
+            return -1;
+        }
+        int slot = idleSlots[idleHead];
+        idleHead = (idleHead + 1) % capacity;
+        idleCount--;
+        states[slot] = (byte) PooledObjectState.ALLOCATED.ordinal();
+        lastBorrowTimes[slot] = System.currentTimeMillis();
+        borrowCounts[slot]++;
+        return slot;
+    }
+
+    private int pollIdleForDestroy() {
+        lock.lock();
+        try {
+            if (idleCount == 0) {
+                return -1;
+            }
+            int slot = idleSlots[idleHead];
+            idleHead = (idleHead + 1) % capacity;
+            idleCount--;
+            return slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 放回空闲队列，lifo放在队头，否则放在队尾。调用时必须持有锁
+     */
+    private void pushIdle(int slot) {
+        if (lifo) {
+            idleHead = (idleHead - 1 + capacity) % capacity;
+            idleSlots[idleHead] = slot;
+        } else {
+            idleSlots[(idleHead + idleCount) % capacity] = slot;
+        }
+        idleCount++;
+    }
+
+    // --- 创建与销毁 --------------------------------------------------------
+
+    /**
+     * 尝试创建一个新的池对象，返回已标记为ALLOCATED的槽位，数量已满时返回-1
+     */
+    private int create() throws Exception {
+        lock.lock();
+        try {
+            if (createCount >= capacity) {
+                return -1;
+            }
+            createCount++;
+        } finally {
+            lock.unlock();
+        }
+
+        final T obj;
+        try {
+            //通过工厂创建一个对象，只保留被包装的实例
+            obj = factory.makeObject().getObject();
+        } catch (Exception e) {
+            lock.lock();
+            try {
+                createCount--;
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+
+        lock.lock();
+        try {
+            int slot = freeSlots[--freeCount];
+            long now = System.currentTimeMillis();
+            objects[slot] = obj;
+            states[slot] = (byte) PooledObjectState.ALLOCATED.ordinal();
+            createTimes[slot] = now;
+            lastBorrowTimes[slot] = now;
+            lastReturnTimes[slot] = now;
+            borrowCounts[slot] = 1;
+            indexPut(obj, slot);
+            return slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 销毁槽位中的对象并回收槽位
+     */
+    private void destroy(int slot) throws Exception {
+        T obj;
+        lock.lock();
+        try {
+            if (states[slot] == PooledObjectState.INVALID.ordinal() || states[slot] < 0) {
+                return;
+            }
+            states[slot] = (byte) PooledObjectState.INVALID.ordinal();
+            removeFromIdle(slot);
+            @SuppressWarnings("unchecked")
+            T o = (T) objects[slot];
+            obj = o;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            factory.destroyObject(wrap(obj));
+        } finally {
+            lock.lock();
+            try {
+                indexRemove(obj);
+                objects[slot] = null;
+                states[slot] = -1;
+                freeSlots[freeCount++] = slot;
+                createCount--;
+                //有新的容量可以创建对象，唤醒等待者自行重试
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void destroyQuietly(int slot) {
+        try {
+            destroy(slot);
+        } catch (Exception e) {
+            // Ignore - the original failure is more important
+        }
+    }
+
+    /**
+     * 从空闲队列中移除指定槽位，调用时必须持有锁
+     */
+    private void removeFromIdle(int slot) {
+        for (int i = 0; i < idleCount; i++) {
+            int pos = (idleHead + i) % capacity;
+            if (idleSlots[pos] == slot) {
+                for (int j = i; j < idleCount - 1; j++) {
+                    idleSlots[(idleHead + j) % capacity] = idleSlots[(idleHead + j + 1) % capacity];
+                }
+                idleCount--;
+                return;
+            }
+        }
+    }
+
+    private PooledObject<T> wrap(T obj) {
+        return new DefaultPooledObject<T>(obj);
+    }
+
+    // --- 开放寻址索引，线性探测 ------------------------------------------
+
+    private int hash(Object obj) {
+        int h = System.identityHashCode(obj);
+        //散列扰动，System.identityHashCode的低位分布并不均匀
+        h *= 0x9E3779B9;
+        return (h ^ (h >>> 16)) & indexMask;
+    }
+
+    /**
+     * @return 对象所在的槽位，不存在时返回-1。调用时必须持有锁
+     */
+    private int slotOf(Object obj) {
+        for (int i = hash(obj); ; i = (i + 1) & indexMask) {
+            int entry = index[i];
+            if (entry == EMPTY) {
+                return -1;
+            }
+            if (objects[entry - 1] == obj) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private void indexPut(Object obj, int slot) {
+        int i = hash(obj);
+        while (index[i] != EMPTY) {
+            i = (i + 1) & indexMask;
+        }
+        index[i] = slot + 1;
+    }
+
+    /**
+     * 删除后把后续冲突的元素向前移动，避免使用墓碑标记
+     */
+    private void indexRemove(Object obj) {
+        int i = hash(obj);
+        while (index[i] != EMPTY && objects[index[i] - 1] != obj) {
+            i = (i + 1) & indexMask;
+        }
+        if (index[i] == EMPTY) {
+            return;
+        }
+        int hole = i;
+        for (int j = (i + 1) & indexMask; index[j] != EMPTY; j = (j + 1) & indexMask) {
+            int home = hash(objects[index[j] - 1]);
+            //home不在(hole, j]之间时，j可以移动到hole
+            if (((j - home) & indexMask) >= ((j - hole) & indexMask)) {
+                index[hole] = index[j];
+                hole = j;
+            }
+        }
+        index[hole] = EMPTY;
+    }
+}